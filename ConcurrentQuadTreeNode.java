@@ -0,0 +1,289 @@
+// QuadTree
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe QuadTree for many concurrent writers and readers.
+ * <p/>
+ * The image is split into a grid of square stripes, each holding an immutable
+ * {@link PersistentQuadTreeNode} in an {@link AtomicReferenceArray}. setColor builds the
+ * updated stripe by path copying and publishes it with a compare-and-set, retrying if
+ * another writer got there first. Writers in different stripes never touch the same
+ * slot, writers in the same stripe never lose each other's updates, and nobody ever
+ * blocks. Readers simply read the current stripe, which is immutable, so they never see
+ * a torn node.
+ * <p/>
+ * Every getColor and setColor is atomic. Operations spanning several stripes
+ * (decompress, getSize, isLeaf above the stripe level) read each stripe atomically but
+ * not all of them at the same instant, so under concurrent writes they may see some
+ * updates and not others. Like for the other implementations, getSize reports the size
+ * of the equivalent QuadTree with uniform stripes merged.
+ * <p/>
+ * A {@link ConcurrentQuadTreeNode} instance is a view of the square at some position of
+ * the image; getQuadrant hands out new views on top of the same grid.
+ */
+public class ConcurrentQuadTreeNode implements QuadTreeNode {
+
+    private static final QuadName[] QUADRANTS = QuadName.values();
+
+    /*
+     * Attributes
+     */
+    private final Stripes stripes; //grid shared by all views of the same tree
+    private final int originX; //position of this node's upper-left pixel in the root
+    private final int originY;
+    private final int level; //log2 of the dimension
+
+    private ConcurrentQuadTreeNode(Stripes stripes, int originX, int originY, int level) {
+        this.stripes = stripes;
+        this.originX = originX;
+        this.originY = originY;
+        this.level = level;
+    }
+
+    /**
+     * Builds a concurrent QuadTree from an image, with up to 16 x 16 stripes.
+     *
+     * @param image image to put into the tree
+     * @return the newly built ConcurrentQuadTreeNode which stores the compressed image
+     * @throws IllegalArgumentException if image is null, empty, not a perfect square
+     *                                  or its length is not a power of 2
+     */
+    public static ConcurrentQuadTreeNode buildFromIntArray(int[][] image) {
+        if (image == null || image.length == 0) {
+            throw new IllegalArgumentException();
+        }
+        return buildFromIntArray(image, Math.max(image.length / 16, 1));
+    }
+
+    /**
+     * Builds a concurrent QuadTree from an image with stripes of the given dimension.
+     * Smaller stripes let more writers work without retrying, larger ones keep more of
+     * the image merged into large leaves.
+     *
+     * @param image image to put into the tree
+     * @param stripeDimension the length and width of a stripe
+     * @return the newly built ConcurrentQuadTreeNode which stores the compressed image
+     * @throws IllegalArgumentException if image is null, empty, not a perfect square or
+     *                                  its length is not a power of 2, or if
+     *                                  stripeDimension is not a power of 2 no larger
+     *                                  than the image
+     */
+    public static ConcurrentQuadTreeNode buildFromIntArray(int[][] image, int stripeDimension) {
+        if (image == null || image.length == 0 ||
+                !QuadTreeNodeImpl.isPowerOfTwo(image.length) ||
+                !QuadTreeNodeImpl.isPerfectSquare(image) || stripeDimension <= 0 ||
+                !QuadTreeNodeImpl.isPowerOfTwo(stripeDimension) ||
+                stripeDimension > image.length) {
+            throw new IllegalArgumentException();
+        }
+        int perRow = image.length / stripeDimension;
+        Stripes stripes = new Stripes(Integer.numberOfTrailingZeros(stripeDimension), perRow);
+        for (int row = 0; row < perRow; row++) {
+            for (int column = 0; column < perRow; column++) {
+                stripes.grid.set(row * perRow + column,
+                        PersistentQuadTreeNode.buildFromArrayHelper(image, stripeDimension,
+                                column * stripeDimension, row * stripeDimension));
+            }
+        }
+        return new ConcurrentQuadTreeNode(stripes, 0, 0,
+                Integer.numberOfTrailingZeros(image.length));
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public int getColor(int x, int y) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        x += originX;
+        y += originY;
+        int mask = (1 << stripes.level) - 1;
+        return stripes.grid.get(stripes.index(x, y)).getColor(x & mask, y & mask);
+    }
+
+    /**
+     * Sets the color of the pixel at the given coordinates. The stripe containing it is
+     * replaced atomically, and the update is retried on a fresh copy if another thread
+     * replaced the stripe in the meantime, so concurrent updates are never lost.
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @param c - the new color of the pixel
+     * @throws IllegalArgumentException if x or y are out of bounds
+     */
+    //Runtime: O(log n) per attempt
+    @Override
+    public void setColor(int x, int y, int c) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        x += originX;
+        y += originY;
+        int mask = (1 << stripes.level) - 1;
+        int index = stripes.index(x, y);
+        while (true) {
+            PersistentQuadTreeNode current = stripes.grid.get(index);
+            PersistentQuadTreeNode updated = current.withColor(x & mask, y & mask, c);
+            if (updated == current || stripes.grid.compareAndSet(index, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    // The node of a view no larger than a stripe, or the leaf covering it
+    private PersistentQuadTreeNode node() {
+        PersistentQuadTreeNode current = stripes.grid.get(stripes.index(originX, originY));
+        for (int k = stripes.level - 1; k >= level && !current.isLeaf(); k--) {
+            int index = ((originY >> k) & 1) << 1 | ((originX >> k) & 1);
+            current = current.getQuadrant(QUADRANTS[index]);
+        }
+        return current;
+    }
+
+    //Runtime: O(log n) within a stripe, O(s) for a view spanning s uniform stripes
+    @Override
+    public ConcurrentQuadTreeNode getQuadrant(QuadName quadrant) {
+        if (isLeaf()) {
+            return null;
+        }
+        int half = 1 << (level - 1);
+        int index = quadrant.ordinal();
+        return new ConcurrentQuadTreeNode(stripes, originX + (index & 1) * half,
+                originY + (index >> 1) * half, level - 1);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getDimension() {
+        return 1 << level;
+    }
+
+    //Runtime: O(1) within a stripe, O(s) for a view spanning s stripes
+    @Override
+    public int getSize() {
+        if (level > stripes.level) {
+            return stripes.size(originX, originY, level);
+        }
+        PersistentQuadTreeNode node = node();
+        return node.isLeaf() ? 1 : node.getSize();
+    }
+
+    //Runtime: O(log n) within a stripe; for a view spanning s stripes O(s) only when they
+    //are uniform, as it stops at the first stripe that is not a leaf of the same color
+    @Override
+    public boolean isLeaf() {
+        if (level > stripes.level) {
+            return stripes.isUniform(originX, originY, level);
+        }
+        return node().isLeaf();
+    }
+
+    //Runtime O(n)
+    @Override
+    public int[][] decompress() {
+        int dimension = getDimension();
+        int[][] decompressedImage = new int[dimension][dimension];
+        if (level <= stripes.level) {
+            PersistentQuadTreeNode node = node();
+            if (node.getDimension() == dimension) {
+                node.decompressRecursive(decompressedImage, 0, 0);
+            } else {
+                int color = node.getColor(0, 0);
+                for (int[] row : decompressedImage) {
+                    Arrays.fill(row, color);
+                }
+            }
+            return decompressedImage;
+        }
+        int stripeDimension = 1 << stripes.level;
+        for (int y = 0; y < dimension; y += stripeDimension) {
+            for (int x = 0; x < dimension; x += stripeDimension) {
+                stripes.grid.get(stripes.index(originX + x, originY + y))
+                        .decompressRecursive(decompressedImage, x, y);
+            }
+        }
+        return decompressedImage;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return (double) getSize() / ((double) getDimension() * getDimension());
+    }
+
+    /**
+     * The grid of stripes in row-major order.
+     */
+    private static final class Stripes {
+        private final AtomicReferenceArray<PersistentQuadTreeNode> grid;
+        private final int level; //log2 of the dimension of a stripe
+        private final int perRow;
+
+        Stripes(int level, int perRow) {
+            this.grid = new AtomicReferenceArray<>(perRow * perRow);
+            this.level = level;
+            this.perRow = perRow;
+        }
+
+        // Index of the stripe containing pixel (x, y) of the root
+        int index(int x, int y) {
+            return (y >> level) * perRow + (x >> level);
+        }
+
+        /**
+         * Size of the square at (x, y) spanning several stripes, merging uniform
+         * quadrants as a single QuadTree would.
+         * @param x - the x coordinate of the square in the root
+         * @param y - the y coordinate of the square in the root
+         * @param squareLevel - log2 of the dimension of the square
+         * @return the number of nodes
+         */
+        int size(int x, int y, int squareLevel) {
+            if (squareLevel == level) {
+                return grid.get(index(x, y)).getSize();
+            }
+            int half = 1 << (squareLevel - 1);
+            int topLeft = size(x, y, squareLevel - 1);
+            int topRight = size(x + half, y, squareLevel - 1);
+            int bottomLeft = size(x, y + half, squareLevel - 1);
+            int bottomRight = size(x + half, y + half, squareLevel - 1);
+            if (topLeft == 1 && topRight == 1 && bottomLeft == 1 && bottomRight == 1) {
+                int color = color(x, y);
+                if (color(x + half, y) == color && color(x, y + half) == color
+                        && color(x + half, y + half) == color) {
+                    return 1;
+                }
+            }
+            return 1 + topLeft + topRight + bottomLeft + bottomRight;
+        }
+
+        /**
+         * Whether the square at (x, y) spanning several stripes is a single leaf, which
+         * is when every stripe in it is a leaf of the same color. Stops at the first
+         * stripe that is not.
+         * @param x - the x coordinate of the square in the root
+         * @param y - the y coordinate of the square in the root
+         * @param squareLevel - log2 of the dimension of the square
+         * @return true if the square has a single color
+         */
+        boolean isUniform(int x, int y, int squareLevel) {
+            int span = 1 << (squareLevel - level);
+            int first = index(x, y);
+            int color = color(x, y);
+            for (int row = 0; row < span; row++) {
+                for (int column = 0; column < span; column++) {
+                    PersistentQuadTreeNode stripe = grid.get(first + row * perRow + column);
+                    if (!stripe.isLeaf() || stripe.getColor(0, 0) != color) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private int color(int x, int y) {
+            int mask = (1 << level) - 1;
+            return grid.get(index(x, y)).getColor(x & mask, y & mask);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+public class ConcurrentQuadTreeNodeTest {
+    //setup
+    int [][] arrayMultiQuadrants;
+
+    @Before
+    public void setUp() {
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+    }
+
+    // Runs every task on its own thread, all starting at once, and rethrows the first failure
+    private static void runConcurrently(List<Runnable> tasks) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (Runnable task : tasks) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    /**
+     * Test building gives the same pixels, sizes and structure as QuadTreeNodeImpl for
+     * every stripe dimension
+     */
+    @Test
+    public void testBuildTreeMatchesImpl() {
+        for (int stripe = 1; stripe <= 4; stripe *= 2) {
+            ConcurrentQuadTreeNode tree =
+                    ConcurrentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants, stripe);
+            assertArrayEquals(arrayMultiQuadrants, tree.decompress());
+            assertEquals(9, tree.getSize());
+            assertTrue(tree.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT).isLeaf());
+            ConcurrentQuadTreeNode topRight = tree.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT);
+            assertEquals(5, topRight.getSize());
+            assertArrayEquals(new int[][]{{2, 3}, {1, 7}}, topRight.decompress());
+            assertNull(tree.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT)
+                    .getQuadrant(QuadTreeNode.QuadName.TOP_LEFT));
+        }
+    }
+
+    @Test
+    public void testSetColorMatchesImpl() {
+        Random random = new Random(121);
+        int[][] image = new int[64][64];
+        QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+        ConcurrentQuadTreeNode tree = ConcurrentQuadTreeNode.buildFromIntArray(image, 8);
+        for (int i = 0; i < 5000; i++) {
+            int x = random.nextInt(64);
+            int y = random.nextInt(64);
+            int c = random.nextInt(2);
+            expected.setColor(x, y, c);
+            tree.setColor(x, y, c);
+        }
+        assertArrayEquals(expected.decompress(), tree.decompress());
+        assertEquals(expected.getSize(), tree.getSize());
+    }
+
+    @Test
+    public void testUniformStripesMerge() {
+        ConcurrentQuadTreeNode tree = ConcurrentQuadTreeNode.buildFromIntArray(new int[16][16], 4);
+        assertTrue(tree.isLeaf());
+        assertEquals(1, tree.getSize());
+        tree.setColor(15, 15, 3);
+        assertEquals(17, tree.getSize());
+        tree.setColor(15, 15, 0);
+        assertNull(tree.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT));
+    }
+
+    // Checks every view of tree is a leaf exactly where the same node of expected is
+    private static void assertSameLeaves(QuadTreeNodeImpl expected, ConcurrentQuadTreeNode tree) {
+        assertEquals(expected.isLeaf(), tree.isLeaf());
+        if (!expected.isLeaf()) {
+            for (QuadTreeNode.QuadName quadrant : QuadTreeNode.QuadName.values()) {
+                assertSameLeaves(expected.getQuadrant(quadrant), tree.getQuadrant(quadrant));
+            }
+        }
+    }
+
+    /**
+     * Test isLeaf above the stripe level, where a leaf is made of stripes that are leaves
+     * of the same color
+     */
+    @Test
+    public void testIsLeafAcrossStripes() {
+        int[][] image = new int[32][32];
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                //uniform 8 x 8 blocks, some 16 x 16 blocks uniform too
+                image[y][x] = x < 16 && y < 16 ? 5 : (x / 8 + y / 8) % 2;
+            }
+        }
+        image[31][31] = 9;
+        ConcurrentQuadTreeNode tree = ConcurrentQuadTreeNode.buildFromIntArray(image, 4);
+        assertSameLeaves(QuadTreeNodeImpl.buildFromIntArray(image), tree);
+        tree.setColor(0, 0, 6);
+        image[0][0] = 6;
+        assertSameLeaves(QuadTreeNodeImpl.buildFromIntArray(image), tree);
+    }
+
+    /**
+     * Stress test: writers interleaved pixel by pixel, so they all contend for the same
+     * stripes, each write increasing sequence numbers to the pixels it owns. Readers
+     * check a pixel never goes back to an older value, and at the end no write may have
+     * been lost.
+     */
+    @Test
+    public void testConcurrentWritersAndReaders() throws InterruptedException {
+        int dimension = 32;
+        int writers = 4;
+        int rounds = 200;
+        ConcurrentQuadTreeNode tree =
+                ConcurrentQuadTreeNode.buildFromIntArray(new int[dimension][dimension], 8);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            tasks.add(() -> {
+                for (int round = 1; round <= rounds; round++) {
+                    for (int pixel = writer; pixel < dimension * dimension; pixel += writers) {
+                        tree.setColor(pixel % dimension, pixel / dimension, round);
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < 2; r++) {
+            long seed = r;
+            tasks.add(() -> {
+                Random random = new Random(seed);
+                int[] lastSeen = new int[dimension * dimension];
+                for (int i = 0; i < 200_000; i++) {
+                    int pixel = random.nextInt(dimension * dimension);
+                    int color = tree.getColor(pixel % dimension, pixel / dimension);
+                    assertTrue(color >= lastSeen[pixel]);
+                    lastSeen[pixel] = color;
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        int[][] expected = new int[dimension][dimension];
+        for (int[] row : expected) {
+            Arrays.fill(row, rounds);
+        }
+        assertArrayEquals(expected, tree.decompress());
+        assertEquals(1, tree.getSize());
+    }
+
+    @Test
+    public void testConcurrentWritersInDisjointQuadrants() throws InterruptedException {
+        ConcurrentQuadTreeNode tree = ConcurrentQuadTreeNode.buildFromIntArray(new int[64][64]);
+        List<Runnable> tasks = new ArrayList<>();
+        for (QuadTreeNode.QuadName name : QuadTreeNode.QuadName.values()) {
+            tasks.add(() -> {
+                int offsetX = (name.ordinal() & 1) * 32;
+                int offsetY = (name.ordinal() >> 1) * 32;
+                for (int y = 0; y < 32; y++) {
+                    for (int x = 0; x < 32; x++) {
+                        tree.setColor(offsetX + x, offsetY + y, (x + y) % 2 + name.ordinal());
+                    }
+                }
+            });
+        }
+        runConcurrently(tasks);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                assertEquals((x % 32 + y % 32) % 2 + (y / 32) * 2 + x / 32, tree.getColor(x, y));
+            }
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testBuildStripeTooLarge() {
+        ConcurrentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants, 8);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testSetColorOutOfBounds() {
+        ConcurrentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants).setColor(-1, 0, 1);
+    }
+}
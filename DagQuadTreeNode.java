@@ -0,0 +1,446 @@
+// QuadTree
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A QuadTree which stores every distinct subtree only once, turning the tree into a
+ * directed acyclic graph.
+ * <p/>
+ * Nodes are immutable and hash-consed: they are only ever created through an interning
+ * table keyed by their color (leaves) or by the identity of their four children
+ * (internal nodes), so two structurally identical subtrees are always the same object.
+ * A leaf does not store its dimension, so a single leaf per color serves every level,
+ * and repeated tiles, textures or sprites are stored once however often they occur.
+ * <p/>
+ * Since nodes are shared, setColor never changes one in place. It copies the path from
+ * the root down to the pixel (through the interning table, so the copies are shared
+ * again wherever possible) and installs the new root. Nodes which become unreachable
+ * stay in the table until {@link #compact()} is called.
+ * <p/>
+ * {@link #getSize()} counts nodes as if the tree were not shared, like
+ * {@link QuadTreeNodeImpl}; {@link #getPhysicalSize()} counts distinct nodes. A
+ * {@link DagQuadTreeNode} instance is a view of the square at some position of the
+ * current tree, so views handed out by getQuadrant see later updates. Unlike
+ * QuadTreeNodeImpl, setColor on a quadrant keeps the whole tree canonical, so a
+ * quadrant may be merged with its siblings.
+ */
+public class DagQuadTreeNode implements QuadTreeNode {
+
+    /*
+     * Attributes
+     */
+    private final Dag dag; //root and interning table shared by all views of the same tree
+    private final int originX; //position of this node's upper-left pixel in the root
+    private final int originY;
+    private final int level; //log2 of the dimension
+
+    private DagQuadTreeNode(Dag dag, int originX, int originY, int level) {
+        this.dag = dag;
+        this.originX = originX;
+        this.originY = originY;
+        this.level = level;
+    }
+
+    /**
+     * Builds a shared QuadTree from an image, interning every subtree as it is built.
+     *
+     * @param image image to put into the tree
+     * @return the newly built DagQuadTreeNode which stores the compressed image
+     * @throws IllegalArgumentException if image is null, empty, not a perfect square
+     *                                  or its length is not a power of 2
+     */
+    public static DagQuadTreeNode buildFromIntArray(int[][] image) {
+        if (image == null || image.length == 0 ||
+                !QuadTreeNodeImpl.isPowerOfTwo(image.length) ||
+                !QuadTreeNodeImpl.isPerfectSquare(image)) {
+            throw new IllegalArgumentException();
+        }
+        Dag dag = new Dag(new Interner(), Integer.numberOfTrailingZeros(image.length));
+        dag.root = buildFromArrayHelper(dag.interner, image, image.length, 0, 0);
+        return new DagQuadTreeNode(dag, 0, 0, dag.level);
+    }
+
+    /**
+     * Recursive helper method to build the shared QuadTree
+     * @param interner - the table to intern the nodes in
+     * @param image - the image to be compressed
+     * @param size - the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     * @return the canonical node of the quadrant
+     */
+    private static Node buildFromArrayHelper(Interner interner, int[][] image,
+                                             int size, int x, int y) {
+        if (size == 1) {
+            return interner.leaf(image[y][x]);
+        }
+        int half = size / 2;
+        return interner.internal(
+                buildFromArrayHelper(interner, image, half, x, y),
+                buildFromArrayHelper(interner, image, half, x + half, y),
+                buildFromArrayHelper(interner, image, half, x, y + half),
+                buildFromArrayHelper(interner, image, half, x + half, y + half));
+    }
+
+    /**
+     * Compacts any QuadTree into a shared one with the same pixels.
+     *
+     * @param tree the tree to compact
+     * @return the newly built DagQuadTreeNode which stores the same image
+     * @throws IllegalArgumentException if tree is null
+     */
+    //Runtime: O(n)
+    public static DagQuadTreeNode fromTree(QuadTreeNode tree) {
+        if (tree == null) {
+            throw new IllegalArgumentException();
+        }
+        Dag dag = new Dag(new Interner(), Integer.numberOfTrailingZeros(tree.getDimension()));
+        dag.root = fromTreeHelper(dag.interner, tree);
+        return new DagQuadTreeNode(dag, 0, 0, dag.level);
+    }
+
+    private static Node fromTreeHelper(Interner interner, QuadTreeNode node) {
+        if (node.isLeaf()) {
+            return interner.leaf(node.getColor(0, 0));
+        }
+        return interner.internal(
+                fromTreeHelper(interner, node.getQuadrant(QuadName.TOP_LEFT)),
+                fromTreeHelper(interner, node.getQuadrant(QuadName.TOP_RIGHT)),
+                fromTreeHelper(interner, node.getQuadrant(QuadName.BOTTOM_LEFT)),
+                fromTreeHelper(interner, node.getQuadrant(QuadName.BOTTOM_RIGHT)));
+    }
+
+    // The node this view currently stands for, or the leaf covering it
+    private Node node() {
+        Node current = dag.root;
+        for (int k = dag.level - 1; k >= level && current.topLeft != null; k--) {
+            current = current.child(((originY >> k) & 1) << 1 | ((originX >> k) & 1));
+        }
+        return current;
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public int getColor(int x, int y) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        Node current = node();
+        for (int k = level - 1; current.topLeft != null; k--) {
+            current = current.child(((y >> k) & 1) << 1 | ((x >> k) & 1));
+        }
+        return current.color;
+    }
+
+    /**
+     * Sets the color of the pixel at the given coordinates by copying the path from the
+     * root down to it; nodes shared with other parts of the image stay untouched.
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @param c - the new color of the pixel
+     * @throws IllegalArgumentException if x or y are out of bounds
+     */
+    //Runtime: O(log n)
+    @Override
+    public void setColor(int x, int y, int c) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        dag.root = setColorHelper(dag.interner, dag.root, dag.level - 1,
+                originX + x, originY + y, c);
+    }
+
+    /**
+     * Recursive helper which returns the canonical copy of node with one pixel changed.
+     * @param interner - the table to intern the copies in
+     * @param node - the node containing the pixel
+     * @param k - log2 of the dimension of node's children
+     * @param x - the x coordinate of the pixel in the root
+     * @param y - the y coordinate of the pixel in the root
+     * @param c - the new color of the pixel
+     * @return the new node
+     */
+    private static Node setColorHelper(Interner interner, Node node, int k, int x, int y,
+                                       int c) {
+        if (node.topLeft == null && node.color == c) {
+            return node;
+        }
+        if (k < 0) {
+            return interner.leaf(c);
+        }
+        int index = ((y >> k) & 1) << 1 | ((x >> k) & 1);
+        //a leaf is split into four references to itself, leaves have no dimension
+        Node[] children = {node.child(0), node.child(1), node.child(2), node.child(3)};
+        Node child = setColorHelper(interner, children[index], k - 1, x, y, c);
+        if (child == children[index]) {
+            return node;
+        }
+        children[index] = child;
+        return interner.internal(children[0], children[1], children[2], children[3]);
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public DagQuadTreeNode getQuadrant(QuadName quadrant) {
+        if (isLeaf()) {
+            return null;
+        }
+        int half = 1 << (level - 1);
+        int index = quadrant.ordinal();
+        return new DagQuadTreeNode(dag, originX + (index & 1) * half,
+                originY + (index >> 1) * half, level - 1);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getDimension() {
+        return 1 << level;
+    }
+
+    /**
+     * Returns the number of nodes as if no subtree were shared, which is what
+     * {@link QuadTreeNodeImpl#getSize()} returns for the same image (capped at
+     * {@link Integer#MAX_VALUE}).
+     *
+     * @return the logical number of nodes
+     */
+    //Runtime: O(log n)
+    @Override
+    public int getSize() {
+        return (int) Math.min(getLogicalSize(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of nodes as if no subtree were shared.
+     *
+     * @return the logical number of nodes
+     */
+    //Runtime: O(log n)
+    public long getLogicalSize() {
+        return node().count;
+    }
+
+    /**
+     * Returns the number of distinct nodes reachable from this node, that is the number
+     * of nodes actually stored for it.
+     *
+     * @return the physical number of nodes
+     */
+    //Runtime: O(p) for p distinct nodes
+    public int getPhysicalSize() {
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        countDistinct(node(), seen);
+        return seen.size();
+    }
+
+    private static void countDistinct(Node node, Set<Node> seen) {
+        if (!seen.add(node) || node.topLeft == null) {
+            return;
+        }
+        countDistinct(node.topLeft, seen);
+        countDistinct(node.topRight, seen);
+        countDistinct(node.bottomLeft, seen);
+        countDistinct(node.bottomRight, seen);
+    }
+
+    /**
+     * Returns the number of nodes held by the interning table of the whole tree,
+     * including nodes left unreachable by setColor until the next {@link #compact()}.
+     *
+     * @return the number of interned nodes
+     */
+    public int getInternedCount() {
+        return dag.interner.size;
+    }
+
+    /**
+     * Drops the nodes which are no longer reachable from the root from the interning
+     * table, so they can be garbage collected.
+     */
+    //Runtime: O(p) for p distinct reachable nodes
+    public void compact() {
+        Interner interner = new Interner();
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        countDistinct(dag.root, seen);
+        for (Node node : seen) {
+            interner.add(node);
+        }
+        dag.interner = interner;
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public boolean isLeaf() {
+        return node().topLeft == null;
+    }
+
+    //Runtime O(n)
+    @Override
+    public int[][] decompress() {
+        int[][] decompressedImage = new int[getDimension()][getDimension()];
+        decompressRecursive(node(), decompressedImage, 0, 0, getDimension());
+        return decompressedImage;
+    }
+
+    private static void decompressRecursive(Node node, int[][] array, int startX, int startY,
+                                            int dimension) {
+        if (node.topLeft == null) {
+            for (int y = startY; y < startY + dimension; y++) {
+                Arrays.fill(array[y], startX, startX + dimension, node.color);
+            }
+            return;
+        }
+        int half = dimension / 2;
+        decompressRecursive(node.topLeft, array, startX, startY, half);
+        decompressRecursive(node.topRight, array, startX + half, startY, half);
+        decompressRecursive(node.bottomLeft, array, startX, startY + half, half);
+        decompressRecursive(node.bottomRight, array, startX + half, startY + half, half);
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return (double) getLogicalSize() / ((double) getDimension() * getDimension());
+    }
+
+    /**
+     * The current root of a tree and the table its nodes are interned in.
+     */
+    private static final class Dag {
+        private final int level; //log2 of the dimension of the root
+        private Node root;
+        private Interner interner;
+
+        Dag(Interner interner, int level) {
+            this.interner = interner;
+            this.level = level;
+        }
+    }
+
+    /**
+     * An immutable node. Leaves have no children; the hash is structural and cached.
+     */
+    private static final class Node {
+        private final int color; //only meaningful for leaves
+        private final Node topLeft; //null for leaves
+        private final Node topRight;
+        private final Node bottomLeft;
+        private final Node bottomRight;
+        private final int hash;
+        private final long count; //logical number of nodes in the subtree
+
+        Node(int color, Node topLeft, Node topRight, Node bottomLeft, Node bottomRight,
+             int hash) {
+            this.color = color;
+            this.topLeft = topLeft;
+            this.topRight = topRight;
+            this.bottomLeft = bottomLeft;
+            this.bottomRight = bottomRight;
+            this.hash = hash;
+            this.count = topLeft == null ? 1
+                    : 1 + topLeft.count + topRight.count + bottomLeft.count + bottomRight.count;
+        }
+
+        // The child at index (0 = top left ... 3 = bottom right); a leaf stands for its own children
+        Node child(int index) {
+            switch (index) {
+                case 0:
+                    return topLeft != null ? topLeft : this;
+                case 1:
+                    return topRight != null ? topRight : this;
+                case 2:
+                    return bottomLeft != null ? bottomLeft : this;
+                default:
+                    return bottomRight != null ? bottomRight : this;
+            }
+        }
+    }
+
+    /**
+     * Open addressing hash table of canonical nodes. Internal nodes are looked up by the
+     * identity of their children, which is enough since the children are canonical too.
+     */
+    private static final class Interner {
+        private Node[] table = new Node[1024];
+        private int size;
+
+        static int leafHash(int color) {
+            return mix(color * 0x9E3779B9 + 1);
+        }
+
+        static int internalHash(Node topLeft, Node topRight, Node bottomLeft,
+                                Node bottomRight) {
+            return mix(((topLeft.hash * 31 + topRight.hash) * 31 + bottomLeft.hash) * 31
+                    + bottomRight.hash);
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return h;
+        }
+
+        Node leaf(int color) {
+            int hash = leafHash(color);
+            int mask = table.length - 1;
+            for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+                Node node = table[i];
+                if (node.hash == hash && node.topLeft == null && node.color == color) {
+                    return node;
+                }
+            }
+            Node node = new Node(color, null, null, null, null, hash);
+            add(node);
+            return node;
+        }
+
+        /**
+         * Returns the canonical internal node with the given children, or their common
+         * leaf if they are all the same leaf.
+         */
+        Node internal(Node topLeft, Node topRight, Node bottomLeft, Node bottomRight) {
+            if (topLeft.topLeft == null && topLeft == topRight && topLeft == bottomLeft
+                    && topLeft == bottomRight) {
+                return topLeft;
+            }
+            int hash = internalHash(topLeft, topRight, bottomLeft, bottomRight);
+            int mask = table.length - 1;
+            for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+                Node node = table[i];
+                if (node.hash == hash && node.topLeft == topLeft && node.topRight == topRight
+                        && node.bottomLeft == bottomLeft && node.bottomRight == bottomRight) {
+                    return node;
+                }
+            }
+            Node node = new Node(0, topLeft, topRight, bottomLeft, bottomRight, hash);
+            add(node);
+            return node;
+        }
+
+        void add(Node node) {
+            if (2 * (size + 1) > table.length) {
+                Node[] old = table;
+                table = new Node[old.length * 2];
+                for (Node n : old) {
+                    if (n != null) {
+                        insert(n);
+                    }
+                }
+            }
+            insert(node);
+            size++;
+        }
+
+        private void insert(Node node) {
+            int mask = table.length - 1;
+            int i = node.hash & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+    }
+}
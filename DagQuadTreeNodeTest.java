@@ -0,0 +1,163 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+public class DagQuadTreeNodeTest {
+    //setup
+    int [][] arrayMultiQuadrants;
+    int [][] arrayRepeatedQuadrants;
+
+    @Before
+    public void setUp() {
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+        arrayRepeatedQuadrants = new int[][]{
+                {1, 2, 1, 2},
+                {3, 4, 3, 4},
+                {1, 2, 5, 5},
+                {3, 4, 5, 5}};
+    }
+
+    // Image made of a few random tiles repeated at random positions
+    private static int[][] tiledImage(int dimension, int tile, int tiles, long seed) {
+        Random random = new Random(seed);
+        int[][][] patterns = new int[tiles][tile][tile];
+        for (int[][] pattern : patterns) {
+            for (int[] row : pattern) {
+                for (int x = 0; x < tile; x++) {
+                    row[x] = random.nextInt(4);
+                }
+            }
+        }
+        int[][] image = new int[dimension][dimension];
+        for (int y = 0; y < dimension; y += tile) {
+            for (int x = 0; x < dimension; x += tile) {
+                int[][] pattern = patterns[random.nextInt(tiles)];
+                for (int j = 0; j < tile; j++) {
+                    System.arraycopy(pattern[j], 0, image[y + j], x, tile);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Test building gives the same pixels and logical size as QuadTreeNodeImpl
+     */
+    @Test
+    public void testBuildTreeMatchesImpl() {
+        for (int[][] image : new int[][][]{arrayMultiQuadrants, arrayRepeatedQuadrants,
+            {{1}}, tiledImage(64, 8, 3, 121)}) {
+            DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(image);
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            assertArrayEquals(image, dag.decompress());
+            assertEquals(tree.getSize(), dag.getSize());
+            assertEquals(tree.getCompressionRatio(), dag.getCompressionRatio(), 1e-12);
+        }
+    }
+
+    @Test
+    public void testPhysicalSizeSharesSubtrees() {
+        DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(arrayRepeatedQuadrants);
+        //three copies of the {1, 2, 3, 4} quadrant, stored once along with leaves 1 to 5
+        assertEquals(17, dag.getLogicalSize());
+        assertEquals(7, dag.getPhysicalSize());
+        assertEquals(7, dag.getInternedCount());
+
+        DagQuadTreeNode tiled = DagQuadTreeNode.buildFromIntArray(tiledImage(256, 16, 4, 121));
+        assertTrue(tiled.getPhysicalSize() * 10 < tiled.getSize());
+    }
+
+    /**
+     * Test changing one copy of a shared subtree leaves the other copies alone
+     */
+    @Test
+    public void testSetColorCopiesSharedSubtree() {
+        DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(arrayRepeatedQuadrants);
+        dag.setColor(2, 0, 9);
+        assertEquals(9, dag.getColor(2, 0));
+        assertEquals(1, dag.getColor(0, 0));
+        assertEquals(1, dag.getColor(0, 2));
+        //a new {9, 2, 3, 4} quadrant and leaf 9
+        assertEquals(9, dag.getPhysicalSize());
+
+        dag.setColor(2, 0, 1);
+        assertEquals(7, dag.getPhysicalSize());
+        assertArrayEquals(arrayRepeatedQuadrants, dag.decompress());
+    }
+
+    @Test
+    public void testSetColorMatchesImpl() {
+        int[][] image = tiledImage(64, 8, 3, 7);
+        DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(image);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        Random random = new Random(11);
+        for (int i = 0; i < 5000; i++) {
+            int x = random.nextInt(64);
+            int y = random.nextInt(64);
+            int c = random.nextInt(3);
+            dag.setColor(x, y, c);
+            tree.setColor(x, y, c);
+        }
+        assertArrayEquals(tree.decompress(), dag.decompress());
+        assertEquals(tree.getSize(), dag.getSize());
+    }
+
+    @Test
+    public void testSetColorMergesToLeaf() {
+        DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(new int[][]{{1, 1}, {1, 2}});
+        dag.setColor(1, 1, 1);
+        assertTrue(dag.isLeaf());
+        assertEquals(1, dag.getSize());
+    }
+
+    @Test
+    public void testCompactDropsUnreachableNodes() {
+        DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        for (int c = 10; c < 20; c++) {
+            dag.setColor(3, 3, c);
+        }
+        assertTrue(dag.getInternedCount() > dag.getPhysicalSize());
+        dag.compact();
+        assertEquals(dag.getPhysicalSize(), dag.getInternedCount());
+        dag.setColor(3, 3, 0);
+        assertArrayEquals(arrayMultiQuadrants, dag.decompress());
+    }
+
+    @Test
+    public void testFromTree() {
+        int[][] image = tiledImage(128, 16, 2, 3);
+        DagQuadTreeNode dag = DagQuadTreeNode.fromTree(QuadTreeNodeImpl.buildFromIntArray(image));
+        assertArrayEquals(image, dag.decompress());
+        assertEquals(DagQuadTreeNode.buildFromIntArray(image).getPhysicalSize(),
+                dag.getPhysicalSize());
+    }
+
+    @Test
+    public void testGetQuadrantSeesUpdates() {
+        DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        DagQuadTreeNode topRight = dag.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT);
+        assertEquals(2, topRight.getDimension());
+        assertArrayEquals(new int[][]{{2, 3}, {1, 7}}, topRight.decompress());
+        topRight.setColor(1, 1, 4);
+        assertEquals(4, dag.getColor(3, 1));
+        assertEquals(4, topRight.getColor(1, 1));
+        assertNull(dag.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT)
+                .getQuadrant(QuadTreeNode.QuadName.TOP_LEFT));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testSetColorOutOfBounds() {
+        DagQuadTreeNode.buildFromIntArray(arrayMultiQuadrants).setColor(0, 4, 1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testBuildNotPowerOfTwo() {
+        DagQuadTreeNode.buildFromIntArray(new int[3][3]);
+    }
+}
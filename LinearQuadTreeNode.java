@@ -0,0 +1,306 @@
+// QuadTree
+
+import java.util.Arrays;
+
+/**
+ * A pointerless ("linear") QuadTree that stores only its leaves.
+ * <p/>
+ * Every leaf is kept as one entry in three parallel primitive arrays sorted by the
+ * Morton (Z-order) code of the leaf's upper-left pixel: the code itself, the level of
+ * the leaf (log2 of its dimension) and its color. Internal nodes are never stored; a
+ * {@link LinearQuadTreeNode} instance is only a light-weight view of the square region
+ * starting at some code, so getQuadrant hands out new views on top of the same arrays.
+ * <p/>
+ * A leaf costs 13 bytes instead of a full node object, and since every internal node
+ * has exactly four children the number of nodes is still known from the number of
+ * leaves alone, so getSize and getCompressionRatio give the same answers as
+ * {@link QuadTreeNodeImpl}.
+ */
+public class LinearQuadTreeNode implements QuadTreeNode {
+
+    /*
+     * Attributes
+     */
+    private final LeafArrays leaves; //storage shared by all views of the same tree
+    private final long origin; //morton code of the upper-left pixel of this node
+    private final int level; //log2 of the dimension
+
+    private LinearQuadTreeNode(LeafArrays leaves, long origin, int level) {
+        this.leaves = leaves;
+        this.origin = origin;
+        this.level = level;
+    }
+
+    /**
+     * Builds the linear representation of an image directly, without ever creating
+     * {@link QuadTreeNodeImpl} nodes.
+     *
+     * @param image image to put into the tree
+     * @return the newly built LinearQuadTreeNode which stores the compressed image
+     * @throws IllegalArgumentException if image is null, empty, not a perfect square
+     *                                  or its length is not a power of 2
+     */
+    public static LinearQuadTreeNode buildFromIntArray(int[][] image) {
+        if (image == null || image.length == 0 ||
+                !QuadTreeNodeImpl.isPowerOfTwo(image.length) ||
+                !QuadTreeNodeImpl.isPerfectSquare(image)) {
+            throw new IllegalArgumentException();
+        }
+        int level = Integer.numberOfTrailingZeros(image.length);
+        LeafArrays leaves = new LeafArrays(16);
+        buildFromArrayHelper(leaves, image, level, 0, 0);
+        return new LinearQuadTreeNode(leaves, 0, level);
+    }
+
+    /**
+     * Recursive helper which appends the leaves of a quadrant in Z-order.
+     * The four children of a quadrant are single leaves exactly when the last four
+     * entries are all one level below it, in which case they are merged in place.
+     * @param leaves - the arrays to append to
+     * @param image - the image to be compressed
+     * @param level - log2 of the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     */
+    private static void buildFromArrayHelper(LeafArrays leaves, int[][] image,
+                                             int level, int x, int y) {
+        //base case: a single pixel is a leaf
+        if (level == 0) {
+            leaves.append(Morton.encode(x, y), 0, image[y][x]);
+            return;
+        }
+        int half = 1 << (level - 1);
+        buildFromArrayHelper(leaves, image, level - 1, x, y);
+        buildFromArrayHelper(leaves, image, level - 1, x + half, y);
+        buildFromArrayHelper(leaves, image, level - 1, x, y + half);
+        buildFromArrayHelper(leaves, image, level - 1, x + half, y + half);
+
+        int first = leaves.count - 4;
+        if (leaves.isMergeable(first, level - 1)) {
+            leaves.levels[first] = (byte) level;
+            leaves.count = first + 1;
+        }
+    }
+
+    //Runtime: O(log n) binary search over the leaves
+    @Override
+    public int getColor(int x, int y) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        return leaves.colors[leaves.indexOf(origin | Morton.encode(x, y))];
+    }
+
+    /**
+     * Sets the color of the pixel at the given coordinates. A leaf covering the pixel is
+     * split in place into the 3 * level + 1 leaves along the path down to the pixel, and
+     * afterwards groups of four equal siblings are merged bottom-up (but never above the
+     * node this method is called on).
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @param c - the new color of the pixel
+     * @throws IllegalArgumentException if x or y are out of bounds
+     */
+    @Override
+    public void setColor(int x, int y, int c) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        long code = origin | Morton.encode(x, y);
+        int index = leaves.indexOf(code);
+        if (leaves.colors[index] == c) {
+            return;
+        }
+        int leafLevel = leaves.levels[index];
+        if (leafLevel > 0) {
+            index = leaves.split(index, code);
+        }
+        leaves.colors[index] = c;
+
+        //merge upwards while the four siblings are leaves of the same color
+        for (int k = 0; k < level; k++) {
+            long base = code & ~((1L << (2 * (k + 1))) - 1);
+            int first = leaves.indexOf(base);
+            if (!leaves.isMergeable(first, k)) {
+                break;
+            }
+            leaves.levels[first] = (byte) (k + 1);
+            leaves.remove(first + 1, 3);
+        }
+    }
+
+    //Runtime: O(log n) because of the isLeaf check
+    @Override
+    public LinearQuadTreeNode getQuadrant(QuadName quadrant) {
+        if (isLeaf()) {
+            return null;
+        }
+        //the ordinal of a quadrant is exactly its 2-bit (y, x) digit in the morton code
+        long childArea = 1L << (2 * (level - 1));
+        return new LinearQuadTreeNode(leaves, origin + quadrant.ordinal() * childArea,
+                level - 1);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getDimension() {
+        return 1 << level;
+    }
+
+    //Runtime: O(log n) since a full QuadTree with L leaves has (4L - 1) / 3 nodes
+    @Override
+    public int getSize() {
+        int first = leaves.indexOf(origin);
+        int end = leaves.indexOf(origin + (1L << (2 * level)) - 1) + 1;
+        return (4 * (end - first) - 1) / 3;
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public boolean isLeaf() {
+        return leaves.levels[leaves.indexOf(origin)] >= level;
+    }
+
+    //Runtime O(n)
+    @Override
+    public int[][] decompress() {
+        int dimension = getDimension();
+        int[][] decompressedImage = new int[dimension][dimension];
+        int first = leaves.indexOf(origin);
+        int end = leaves.indexOf(origin + (1L << (2 * level)) - 1) + 1;
+        for (int i = first; i < end; i++) {
+            long relative = leaves.codes[i] - origin;
+            int x = Morton.compact(relative);
+            int y = Morton.compact(relative >>> 1);
+            int leafDimension = Math.min(1 << leaves.levels[i], dimension);
+            for (int row = y; row < y + leafDimension; row++) {
+                Arrays.fill(decompressedImage[row], x, x + leafDimension, leaves.colors[i]);
+            }
+        }
+        return decompressedImage;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return (double) getSize() / (getDimension() * getDimension());
+    }
+
+    /**
+     * Returns the number of leaves stored by the whole tree this node belongs to.
+     *
+     * @return the number of leaf entries
+     */
+    public int getLeafCount() {
+        return leaves.count;
+    }
+
+    /**
+     * Growable parallel arrays of leaves sorted by morton code.
+     */
+    private static final class LeafArrays {
+        private long[] codes;
+        private byte[] levels;
+        private int[] colors;
+        private int count;
+
+        LeafArrays(int capacity) {
+            codes = new long[capacity];
+            levels = new byte[capacity];
+            colors = new int[capacity];
+        }
+
+        /**
+         * Finds the leaf containing the pixel with the given code, that is the last
+         * leaf whose code is not greater than it.
+         * @param code - morton code of a pixel
+         * @return index of the leaf covering that pixel
+         */
+        int indexOf(long code) {
+            int index = Arrays.binarySearch(codes, 0, count, code);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        // Whether the four entries starting at first are equal leaves on the given level
+        boolean isMergeable(int first, int level) {
+            if (first < 0 || first + 4 > count) {
+                return false;
+            }
+            int color = colors[first];
+            for (int i = first; i < first + 4; i++) {
+                if (levels[i] != level || colors[i] != color) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void append(long code, int level, int color) {
+            ensureCapacity(count + 1);
+            codes[count] = code;
+            levels[count] = (byte) level;
+            colors[count] = color;
+            count++;
+        }
+
+        /**
+         * Splits the leaf at index down to the single pixel with the given code,
+         * keeping the siblings along the way as leaves of the old color.
+         * @param index - index of the leaf to split
+         * @param code - morton code of the pixel inside that leaf
+         * @return the index of the new 1x1 leaf of that pixel
+         */
+        int split(int index, long code) {
+            int leafLevel = levels[index];
+            int color = colors[index];
+            int added = 3 * leafLevel;
+            ensureCapacity(count + added);
+            System.arraycopy(codes, index + 1, codes, index + 1 + added, count - index - 1);
+            System.arraycopy(levels, index + 1, levels, index + 1 + added, count - index - 1);
+            System.arraycopy(colors, index + 1, colors, index + 1 + added, count - index - 1);
+            count += added;
+
+            //siblings before the path come first, from the biggest level down,
+            //then the pixel itself, then siblings after the path from the smallest level up
+            int next = index;
+            for (int k = leafLevel - 1; k >= 0; k--) {
+                int digit = (int) (code >>> (2 * k)) & 3;
+                long base = code & ~((1L << (2 * (k + 1))) - 1);
+                for (int q = 0; q < digit; q++) {
+                    set(next++, base + ((long) q << (2 * k)), k, color);
+                }
+            }
+            int target = next;
+            set(next++, code, 0, color);
+            for (int k = 0; k < leafLevel; k++) {
+                int digit = (int) (code >>> (2 * k)) & 3;
+                long base = code & ~((1L << (2 * (k + 1))) - 1);
+                for (int q = digit + 1; q < 4; q++) {
+                    set(next++, base + ((long) q << (2 * k)), k, color);
+                }
+            }
+            return target;
+        }
+
+        void remove(int index, int length) {
+            System.arraycopy(codes, index + length, codes, index, count - index - length);
+            System.arraycopy(levels, index + length, levels, index, count - index - length);
+            System.arraycopy(colors, index + length, colors, index, count - index - length);
+            count -= length;
+        }
+
+        private void set(int index, long code, int level, int color) {
+            codes[index] = code;
+            levels[index] = (byte) level;
+            colors[index] = color;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > codes.length) {
+                int newCapacity = Math.max(capacity, codes.length * 2);
+                codes = Arrays.copyOf(codes, newCapacity);
+                levels = Arrays.copyOf(levels, newCapacity);
+                colors = Arrays.copyOf(colors, newCapacity);
+            }
+        }
+    }
+}
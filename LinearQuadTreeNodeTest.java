@@ -0,0 +1,114 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+public class LinearQuadTreeNodeTest {
+    //setup
+    int [][] array4Quadrants;
+    int [][] arrayMultiQuadrants;
+    int [][] arrayUniqueAllPixels;
+    int [][] oneElementArray;
+
+    @Before
+    public void setUp() {
+        array4Quadrants = new int[][]{
+                {1, 1, 2, 2},
+                {1, 1, 2, 2},
+                {3, 3, 4, 4},
+                {3, 3, 4, 4}};
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+        arrayUniqueAllPixels = new int[][]{
+                {1, 2, 3, 4},
+                {5, 6, 7, 8},
+                {9, 10, 11, 12},
+                {13, 14, 15, 16}};
+        oneElementArray = new int[][]{
+                {1}};
+    }
+
+    /**
+     * Test building the tree gives the same sizes, colors and ratios as QuadTreeNodeImpl
+     */
+    @Test
+    public void testBuildTreeMatchesImpl() {
+        for (int[][] image : new int[][][]{array4Quadrants, arrayMultiQuadrants,
+                arrayUniqueAllPixels, oneElementArray}) {
+            LinearQuadTreeNode tree = LinearQuadTreeNode.buildFromIntArray(image);
+            QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+            assertEquals(expected.getDimension(), tree.getDimension());
+            assertEquals(expected.getSize(), tree.getSize());
+            assertEquals(expected.getCompressionRatio(), tree.getCompressionRatio(), 0.0001);
+            assertArrayEquals(image, tree.decompress());
+        }
+    }
+
+    @Test
+    public void testGetQuadrant() {
+        LinearQuadTreeNode root = LinearQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        assertEquals(7, root.getLeafCount());
+        LinearQuadTreeNode topRight = root.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT);
+        assertFalse(topRight.isLeaf());
+        assertEquals(5, topRight.getSize());
+        assertArrayEquals(new int[][]{{2, 3}, {1, 7}}, topRight.decompress());
+        LinearQuadTreeNode bottomRight = root.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT);
+        assertTrue(bottomRight.isLeaf());
+        assertNull(bottomRight.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT));
+        assertEquals(7, topRight.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT).getColor(0, 0));
+    }
+
+    /**
+     * Test setColor splits and merges
+     */
+    @Test
+    public void testSetColorSplitAndMergeBack() {
+        LinearQuadTreeNode tree = LinearQuadTreeNode.buildFromIntArray(new int[4][4]);
+        tree.setColor(3, 0, 1);
+        assertEquals(9, tree.getSize());
+        assertEquals(1, tree.getColor(3, 0));
+        assertEquals(0, tree.getColor(2, 0));
+        tree.setColor(3, 0, 0);
+        assertEquals(1, tree.getSize());
+        assertTrue(tree.isLeaf());
+    }
+
+    @Test
+    public void testSetColorOnQuadrantDoesNotMergeParent() {
+        LinearQuadTreeNode root = LinearQuadTreeNode.buildFromIntArray(array4Quadrants);
+        root.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT).setColor(0, 0, 1);
+        assertEquals(1, root.getColor(2, 0));
+        assertEquals(2, root.getColor(3, 0));
+    }
+
+    @Test
+    public void testSetColorMatchesImplRandom() {
+        Random random = new Random(121);
+        int[][] image = new int[16][16];
+        LinearQuadTreeNode tree = LinearQuadTreeNode.buildFromIntArray(image);
+        QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(16);
+            int y = random.nextInt(16);
+            int c = random.nextInt(3);
+            tree.setColor(x, y, c);
+            expected.setColor(x, y, c);
+            assertEquals(expected.getSize(), tree.getSize());
+        }
+        assertArrayEquals(expected.decompress(), tree.decompress());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testGetColorIllegalColorOverBounds() {
+        LinearQuadTreeNode.buildFromIntArray(array4Quadrants).getColor(4, 0);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testBuildTreeNotPowerOfTwoArray() {
+        LinearQuadTreeNode.buildFromIntArray(new int[][]{{1, 2, 3}, {1, 2, 3}, {1, 2, 3}});
+    }
+}
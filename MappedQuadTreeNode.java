@@ -0,0 +1,313 @@
+// QuadTree
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read-only QuadTree served straight from a memory-mapped file.
+ * <p/>
+ * The file holds a 16 byte header (the magic "QTM1", log2 of the dimension and the
+ * number of nodes) followed by one 8 byte record per node: the index of the record of
+ * its first child, or -1 for a leaf, and its color. The four children of a node are
+ * always stored in consecutive records, so no node needs more than that.
+ * <p/>
+ * Opening a tree only maps the file, in segments of at most 1 GiB since a single
+ * mapping cannot exceed 2 GiB, and nothing is read until it is used. A
+ * {@link MappedQuadTreeNode} instance is only a view of one record; getQuadrant hands out
+ * new views on top of the same mapping. Every method which would change the tree throws
+ * {@link UnsupportedOperationException}. Only the header is checked when the file is
+ * opened; a corrupt record is found when it is read and throws
+ * {@link IllegalStateException}.
+ */
+public class MappedQuadTreeNode implements QuadTreeNode {
+
+    /**
+     * The first four bytes of every mapped tree file.
+     */
+    public static final int MAGIC = 0x51544D31;
+
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 8;
+    private static final int SEGMENT_RECORDS = 1 << 27;
+
+    /*
+     * Attributes
+     */
+    private final Segments segments; //mapping shared by all views of the same tree
+    private final int record; //index of the record of this node
+    private final int level; //log2 of the dimension
+
+    private MappedQuadTreeNode(Segments segments, int record, int level) {
+        this.segments = segments;
+        this.record = record;
+        this.level = level;
+    }
+
+    /**
+     * Writes a tree to a file in the layout {@link #open(Path)} maps, replacing the file
+     * if it exists.
+     *
+     * @param tree the tree to write
+     * @param file the file to write to
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if tree or file is null
+     */
+    //Runtime: O(n)
+    public static void write(QuadTreeNode tree, Path file) throws IOException {
+        write(tree, file, SEGMENT_RECORDS);
+    }
+
+    // write with a configurable segment length, so tests can cross segment boundaries
+    static void write(QuadTreeNode tree, Path file, int segmentRecords) throws IOException {
+        if (tree == null || file == null) {
+            throw new IllegalArgumentException();
+        }
+        int nodes = tree.getSize();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(Integer.numberOfTrailingZeros(tree.getDimension()))
+                    .putLong(nodes).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, HEADER_BYTES - header.remaining());
+            }
+            Segments segments = Segments.map(channel, FileChannel.MapMode.READ_WRITE, nodes,
+                    segmentRecords);
+            int[] next = {1};
+            writeHelper(segments, tree, 0, next);
+            for (ByteBuffer segment : segments.buffers) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+
+    /**
+     * Recursive helper which writes node into its record and its subtree after the
+     * records handed out so far.
+     * @param segments - the mapping to write into
+     * @param node - the node to write
+     * @param record - the record of the node
+     * @param next - holds the first unused record
+     */
+    private static void writeHelper(Segments segments, QuadTreeNode node, int record,
+                                    int[] next) {
+        if (node.isLeaf()) {
+            segments.put(record, -1, node.getColor(0, 0));
+            return;
+        }
+        int first = next[0];
+        next[0] += 4;
+        segments.put(record, first, 0);
+        writeHelper(segments, node.getQuadrant(QuadName.TOP_LEFT), first, next);
+        writeHelper(segments, node.getQuadrant(QuadName.TOP_RIGHT), first + 1, next);
+        writeHelper(segments, node.getQuadrant(QuadName.BOTTOM_LEFT), first + 2, next);
+        writeHelper(segments, node.getQuadrant(QuadName.BOTTOM_RIGHT), first + 3, next);
+    }
+
+    /**
+     * Maps a tree written by {@link #write(QuadTreeNode, Path)}. Only the header is read;
+     * the mapping stays valid after this method returns and is released once the tree
+     * is no longer reachable.
+     *
+     * @param file the file to map
+     * @return the root of the tree
+     * @throws IOException if the file cannot be mapped
+     * @throws StreamCorruptedException if the file is not a mapped tree
+     * @throws IllegalArgumentException if file is null
+     */
+    //Runtime: O(1)
+    public static MappedQuadTreeNode open(Path file) throws IOException {
+        return open(file, SEGMENT_RECORDS);
+    }
+
+    // open with a configurable segment length, the file layout does not depend on it
+    static MappedQuadTreeNode open(Path file, int segmentRecords) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                //keep reading
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new StreamCorruptedException("Not a mapped QuadTree");
+            }
+            int level = header.getInt();
+            long nodes = header.getLong();
+            if (level < 0 || level > 30 || nodes < 1 || nodes % 4 != 1
+                    || nodes > Integer.MAX_VALUE
+                    || channel.size() < HEADER_BYTES + nodes * RECORD_BYTES) {
+                throw new StreamCorruptedException("Invalid mapped QuadTree header");
+            }
+            Segments segments = Segments.map(channel, FileChannel.MapMode.READ_ONLY,
+                    (int) nodes, segmentRecords);
+            return new MappedQuadTreeNode(segments, 0, level);
+        }
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public int getColor(int x, int y) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        int current = record;
+        for (int k = level - 1; k >= 0; k--) {
+            int first = segments.children(current, k + 1);
+            if (first < 0) {
+                return segments.color(current);
+            }
+            current = first + (((y >> k) & 1) << 1 | ((x >> k) & 1));
+        }
+        segments.children(current, 0); //a single pixel cannot be split
+        return segments.color(current);
+    }
+
+    /**
+     * Not supported, a mapped tree is read-only.
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setColor(int x, int y, int c) {
+        throw new UnsupportedOperationException("A mapped QuadTree is read-only");
+    }
+
+    //Runtime: O(1)
+    @Override
+    public MappedQuadTreeNode getQuadrant(QuadName quadrant) {
+        int first = segments.children(record, level);
+        if (first < 0) {
+            return null;
+        }
+        return new MappedQuadTreeNode(segments, first + quadrant.ordinal(), level - 1);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getDimension() {
+        return 1 << level;
+    }
+
+    //Runtime: O(1) for the root, O(n) for any other node
+    @Override
+    public int getSize() {
+        return record == 0 ? segments.nodes : segments.size(record, level);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public boolean isLeaf() {
+        return segments.children(record, level) < 0;
+    }
+
+    //Runtime O(n)
+    @Override
+    public int[][] decompress() {
+        int[][] decompressedImage = new int[getDimension()][getDimension()];
+        segments.decompress(record, level, decompressedImage, 0, 0);
+        return decompressedImage;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return (double) getSize() / (getDimension() * getDimension());
+    }
+
+    /**
+     * The records of a tree, mapped in segments of a whole number of records.
+     */
+    private static final class Segments {
+        private final ByteBuffer[] buffers;
+        private final int nodes;
+        private final int shift; //log2 of the records per segment
+        private final int mask;
+
+        private Segments(ByteBuffer[] buffers, int nodes, int segmentRecords) {
+            this.buffers = buffers;
+            this.nodes = nodes;
+            this.shift = Integer.numberOfTrailingZeros(segmentRecords);
+            this.mask = segmentRecords - 1;
+        }
+
+        static Segments map(FileChannel channel, FileChannel.MapMode mode, int nodes,
+                            int segmentRecords) throws IOException {
+            if (!QuadTreeNodeImpl.isPowerOfTwo(segmentRecords)) {
+                throw new IllegalArgumentException();
+            }
+            ByteBuffer[] buffers = new ByteBuffer[(nodes + segmentRecords - 1) / segmentRecords];
+            for (int i = 0; i < buffers.length; i++) {
+                long first = (long) i * segmentRecords;
+                long records = Math.min(segmentRecords, nodes - first);
+                buffers[i] = channel.map(mode, HEADER_BYTES + first * RECORD_BYTES,
+                        records * RECORD_BYTES);
+            }
+            return new Segments(buffers, nodes, segmentRecords);
+        }
+
+        int firstChild(int record) {
+            return buffers[record >>> shift].getInt((record & mask) * RECORD_BYTES);
+        }
+
+        /**
+         * Returns the first child of a node, checked so that a corrupt file can neither
+         * send a descent back up the tree nor past the last record. Children are always
+         * written after their parent.
+         * @param record - the record of the node
+         * @param level - log2 of the dimension of the node
+         * @return the record of the first child, or a negative number for a leaf
+         * @throws IllegalStateException if the record is corrupt
+         */
+        int children(int record, int level) {
+            int first = firstChild(record);
+            if (first >= 0 && (level == 0 || first <= record || first > nodes - 4)) {
+                throw new IllegalStateException("Corrupt mapped QuadTree record " + record);
+            }
+            return first;
+        }
+
+        int color(int record) {
+            return buffers[record >>> shift].getInt((record & mask) * RECORD_BYTES + 4);
+        }
+
+        void put(int record, int firstChild, int color) {
+            ByteBuffer buffer = buffers[record >>> shift];
+            buffer.putInt((record & mask) * RECORD_BYTES, firstChild);
+            buffer.putInt((record & mask) * RECORD_BYTES + 4, color);
+        }
+
+        int size(int record, int level) {
+            int first = children(record, level);
+            if (first < 0) {
+                return 1;
+            }
+            return 1 + size(first, level - 1) + size(first + 1, level - 1)
+                    + size(first + 2, level - 1) + size(first + 3, level - 1);
+        }
+
+        void decompress(int record, int level, int[][] array, int startX, int startY) {
+            int first = children(record, level);
+            int dimension = 1 << level;
+            if (first < 0) {
+                int color = color(record);
+                for (int y = startY; y < startY + dimension; y++) {
+                    Arrays.fill(array[y], startX, startX + dimension, color);
+                }
+                return;
+            }
+            int half = dimension / 2;
+            decompress(first, level - 1, array, startX, startY);
+            decompress(first + 1, level - 1, array, startX + half, startY);
+            decompress(first + 2, level - 1, array, startX, startY + half);
+            decompress(first + 3, level - 1, array, startX + half, startY + half);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+public class MappedQuadTreeNodeTest {
+    //setup
+    Path file;
+    int [][] arrayMultiQuadrants;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("quadtree", ".qtm");
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    // Random image of flat blocks with some noise, so the tree has leaves of every size
+    private static int[][] randomImage(int dimension, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[dimension][dimension];
+        for (int y = 0; y < dimension; y++) {
+            for (int x = 0; x < dimension; x++) {
+                image[y][x] = random.nextInt(8) == 0 ? random.nextInt()
+                        : (x / 16 + y / 8) % 3;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Test a mapped tree reads back the same pixels, sizes and structure
+     */
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants);
+        MappedQuadTreeNode.write(tree, file);
+        MappedQuadTreeNode mapped = MappedQuadTreeNode.open(file);
+        assertEquals(4, mapped.getDimension());
+        assertEquals(9, mapped.getSize());
+        assertEquals(tree.getCompressionRatio(), mapped.getCompressionRatio(), 0.0);
+        assertArrayEquals(arrayMultiQuadrants, mapped.decompress());
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(arrayMultiQuadrants[y][x], mapped.getColor(x, y));
+            }
+        }
+        assertEquals(16 + 8 * 9, Files.size(file));
+    }
+
+    @Test
+    public void testGetQuadrant() throws IOException {
+        MappedQuadTreeNode.write(QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants), file);
+        MappedQuadTreeNode mapped = MappedQuadTreeNode.open(file);
+        MappedQuadTreeNode topLeft = mapped.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT);
+        assertTrue(topLeft.isLeaf());
+        assertEquals(1, topLeft.getColor(1, 1));
+        assertNull(topLeft.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT));
+        MappedQuadTreeNode topRight = mapped.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT);
+        assertFalse(topRight.isLeaf());
+        assertEquals(2, topRight.getDimension());
+        assertEquals(5, topRight.getSize());
+        assertArrayEquals(new int[][]{{2, 3}, {1, 7}}, topRight.decompress());
+    }
+
+    /**
+     * Test trees spanning many mapped segments, with a segment length of 4 records
+     */
+    @Test
+    public void testAcrossSegments() throws IOException {
+        int[][] image = randomImage(64, 121);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        MappedQuadTreeNode.write(tree, file, 4);
+        MappedQuadTreeNode mapped = MappedQuadTreeNode.open(file, 4);
+        assertArrayEquals(image, mapped.decompress());
+        assertEquals(tree.getSize(), mapped.getSize());
+        assertArrayEquals(image, MappedQuadTreeNode.open(file).decompress());
+    }
+
+    @Test
+    public void testWritesOtherImplementations() throws IOException {
+        int[][] image = randomImage(32, 7);
+        MappedQuadTreeNode.write(PooledQuadTreeNode.buildFromIntArray(image), file);
+        assertArrayEquals(image, MappedQuadTreeNode.open(file).decompress());
+        MappedQuadTreeNode.write(LinearQuadTreeNode.buildFromIntArray(image), file);
+        assertArrayEquals(image, MappedQuadTreeNode.open(file).decompress());
+    }
+
+    @Test (expected = UnsupportedOperationException.class)
+    public void testSetColorIsReadOnly() throws IOException {
+        MappedQuadTreeNode.write(QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants), file);
+        MappedQuadTreeNode.open(file).setColor(0, 0, 5);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testGetColorOutOfBounds() throws IOException {
+        MappedQuadTreeNode.write(QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants), file);
+        MappedQuadTreeNode.open(file).getColor(4, 0);
+    }
+
+    @Test (expected = StreamCorruptedException.class)
+    public void testOpenNotATree() throws IOException {
+        Files.write(file, new byte[]{1, 2, 3});
+        MappedQuadTreeNode.open(file);
+    }
+
+    @Test (expected = StreamCorruptedException.class)
+    public void testOpenTruncated() throws IOException {
+        MappedQuadTreeNode.write(QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants), file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 8));
+        MappedQuadTreeNode.open(file);
+    }
+
+    // Writes the tree of arrayMultiQuadrants with the first child of record 2, the split
+    // top right quadrant, replaced
+    private void writeCorruptChild(int first) throws IOException {
+        MappedQuadTreeNode.write(QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants), file);
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(16 + 8 * 2, first);
+        Files.write(file, bytes);
+    }
+
+    /**
+     * Test a child pointing back to an ancestor fails instead of descending forever
+     */
+    @Test (expected = IllegalStateException.class)
+    public void testGetColorChildPointsToAncestor() throws IOException {
+        writeCorruptChild(0);
+        MappedQuadTreeNode.open(file).getColor(2, 0);
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void testGetColorChildPastLastRecord() throws IOException {
+        writeCorruptChild(7);
+        MappedQuadTreeNode.open(file).getColor(2, 0);
+    }
+
+    @Test
+    public void testCorruptRecordFoundByEveryRead() throws IOException {
+        writeCorruptChild(0);
+        MappedQuadTreeNode tree = MappedQuadTreeNode.open(file);
+        assertEquals(1, tree.getColor(0, 0));
+        QuadTreeNode topRight = tree.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT);
+        for (Runnable read : new Runnable[]{tree::decompress, topRight::getSize,
+            topRight::isLeaf, () -> topRight.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT)}) {
+            try {
+                read.run();
+                fail();
+            } catch (IllegalStateException e) {
+                //expected
+            }
+        }
+    }
+}
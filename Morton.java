@@ -0,0 +1,47 @@
+// QuadTree
+
+/**
+ * Morton (Z-order) codes of pixel coordinates.
+ * <p/>
+ * The code of {@code (x, y)} interleaves their bits with x taking the even bits, so the
+ * two bits at position 2k form the (y, x) digit of the quadrant containing the pixel at
+ * the level where children have dimension 2^k. Sorting pixels by code therefore lists
+ * every quadrant as one contiguous run, in the order of {@link QuadTreeNode.QuadName}.
+ */
+final class Morton {
+
+    private Morton() {
+    }
+
+    /**
+     * Interleaves the bits of x and y into a morton code, x taking the even bits.
+     * @param x - the x coordinate
+     * @param y - the y coordinate
+     * @return the Z-order code of (x, y)
+     */
+    static long encode(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    // Spread the lower 31 bits of v out to the even bits of a long
+    private static long spread(int v) {
+        long n = v & 0x7FFFFFFFL;
+        n = (n | (n << 16)) & 0x0000FFFF0000FFFFL;
+        n = (n | (n << 8)) & 0x00FF00FF00FF00FFL;
+        n = (n | (n << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        n = (n | (n << 2)) & 0x3333333333333333L;
+        n = (n | (n << 1)) & 0x5555555555555555L;
+        return n;
+    }
+
+    // Inverse of spread: gather the even bits of n
+    static int compact(long n) {
+        n &= 0x5555555555555555L;
+        n = (n | (n >>> 1)) & 0x3333333333333333L;
+        n = (n | (n >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        n = (n | (n >>> 4)) & 0x00FF00FF00FF00FFL;
+        n = (n | (n >>> 8)) & 0x0000FFFF0000FFFFL;
+        n = (n | (n >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) n;
+    }
+}
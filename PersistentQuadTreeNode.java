@@ -0,0 +1,228 @@
+// QuadTree
+
+import java.util.Arrays;
+
+/**
+ * An immutable QuadTree. Updates never change a node; {@link #withColor(int, int, int)}
+ * returns a new root which copies only the nodes on the path from the root down to the
+ * pixel and shares every other subtree with the old version.
+ * <p/>
+ * Keeping an old root is therefore an O(1) snapshot: it stays valid and unchanged
+ * however the tree is edited afterwards, so it can be handed to reader threads without
+ * locking or kept as an undo history. Since a node can never change, the
+ * {@link #setColor(int, int, int)} of the interface, and the bulk updates built on it,
+ * are not supported.
+ */
+public final class PersistentQuadTreeNode implements QuadTreeNode {
+
+    /*
+     * Attributes
+     */
+    private final int color; //only meaningful for leaves
+    private final int size; //dimension
+    private final PersistentQuadTreeNode[] children; //null for leaves, never modified
+    private final int count; //number of nodes in this subtree
+
+    /**
+     * Constructor for a leaf.
+     *
+     * @param color the color of the leaf
+     * @param size the dimension of the leaf
+     * @throws IllegalArgumentException if size is not a positive power of 2
+     */
+    public PersistentQuadTreeNode(int color, int size) {
+        if (size <= 0 || !QuadTreeNodeImpl.isPowerOfTwo(size)) {
+            throw new IllegalArgumentException();
+        }
+        this.color = color;
+        this.size = size;
+        this.children = null;
+        this.count = 1;
+    }
+
+    // Constructor for an internal node, the children are trusted to be of size / 2
+    private PersistentQuadTreeNode(int size, PersistentQuadTreeNode[] children) {
+        this.color = 0;
+        this.size = size;
+        this.children = children;
+        this.count = 1 + children[0].count + children[1].count + children[2].count
+                + children[3].count;
+    }
+
+    /**
+     * Builds a persistent QuadTree from an image.
+     *
+     * @param image image to put into the tree
+     * @return the newly built PersistentQuadTreeNode which stores the compressed image
+     * @throws IllegalArgumentException if image is null, empty, not a perfect square
+     *                                  or its length is not a power of 2
+     */
+    public static PersistentQuadTreeNode buildFromIntArray(int[][] image) {
+        if (image == null || image.length == 0 ||
+                !QuadTreeNodeImpl.isPowerOfTwo(image.length) ||
+                !QuadTreeNodeImpl.isPerfectSquare(image)) {
+            throw new IllegalArgumentException();
+        }
+        return buildFromArrayHelper(image, image.length, 0, 0);
+    }
+
+    /**
+     * Recursive helper method to build the QuadTree
+     * @param image - the image to be compressed
+     * @param size - the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     * @return the quadrant
+     */
+    static PersistentQuadTreeNode buildFromArrayHelper(int[][] image, int size,
+                                                       int x, int y) {
+        if (size == 1) {
+            return new PersistentQuadTreeNode(image[y][x], 1);
+        }
+        int half = size / 2;
+        return join(size, new PersistentQuadTreeNode[]{
+            buildFromArrayHelper(image, half, x, y),
+            buildFromArrayHelper(image, half, x + half, y),
+            buildFromArrayHelper(image, half, x, y + half),
+            buildFromArrayHelper(image, half, x + half, y + half)});
+    }
+
+    /**
+     * Returns a node of the given size with these children, or a single leaf if they
+     * are all leaves of the same color.
+     * @param size - the dimension of the node
+     * @param children - the four children, owned by the new node from now on
+     * @return the node
+     */
+    private static PersistentQuadTreeNode join(int size, PersistentQuadTreeNode[] children) {
+        PersistentQuadTreeNode first = children[0];
+        for (PersistentQuadTreeNode child : children) {
+            if (child.children != null || child.color != first.color) {
+                return new PersistentQuadTreeNode(size, children);
+            }
+        }
+        return new PersistentQuadTreeNode(first.color, size);
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public int getColor(int x, int y) {
+        if (x < 0 || x >= size || y < 0 || y >= size) {
+            throw new IllegalArgumentException();
+        }
+        PersistentQuadTreeNode node = this;
+        for (int k = Integer.numberOfTrailingZeros(size) - 1; node.children != null; k--) {
+            node = node.children[((y >> k) & 1) << 1 | ((x >> k) & 1)];
+        }
+        return node.color;
+    }
+
+    /**
+     * Not supported, a persistent tree never changes. Use
+     * {@link #withColor(int, int, int)} instead.
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setColor(int x, int y, int c) {
+        throw new UnsupportedOperationException("Use withColor on a persistent QuadTree");
+    }
+
+    /**
+     * Returns a tree with the color of one pixel changed. Only the nodes on the path to
+     * the pixel are copied; this tree is left exactly as it was. Groups of four leaves
+     * of the same color are merged on the way back up, as setColor does.
+     *
+     * @param x the x coordinate of the pixel
+     * @param y the y coordinate of the pixel
+     * @param c the new color of the pixel
+     * @return the new root, or this node if the pixel already had that color
+     * @throws IllegalArgumentException if x or y are out of bounds
+     */
+    //Runtime: O(log n)
+    public PersistentQuadTreeNode withColor(int x, int y, int c) {
+        if (x < 0 || x >= size || y < 0 || y >= size) {
+            throw new IllegalArgumentException();
+        }
+        return withColorHelper(x, y, c);
+    }
+
+    private PersistentQuadTreeNode withColorHelper(int x, int y, int c) {
+        if (children == null && color == c) {
+            return this;
+        }
+        if (size == 1) {
+            return new PersistentQuadTreeNode(c, 1);
+        }
+        int half = size / 2;
+        PersistentQuadTreeNode[] copy;
+        if (children == null) {
+            //the three untouched quadrants of a split leaf can share one immutable leaf
+            PersistentQuadTreeNode sibling = new PersistentQuadTreeNode(color, half);
+            copy = new PersistentQuadTreeNode[]{sibling, sibling, sibling, sibling};
+        } else {
+            copy = children.clone();
+        }
+        int index = (y >= half ? 2 : 0) | (x >= half ? 1 : 0);
+        PersistentQuadTreeNode child = copy[index].withColorHelper(x % half, y % half, c);
+        if (child == copy[index]) {
+            return this;
+        }
+        copy[index] = child;
+        return join(size, copy);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public PersistentQuadTreeNode getQuadrant(QuadName quadrant) {
+        if (children == null) {
+            return null;
+        }
+        return children[quadrant.ordinal()];
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getDimension() {
+        return size;
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getSize() {
+        return count;
+    }
+
+    //Runtime: O(1)
+    @Override
+    public boolean isLeaf() {
+        return children == null;
+    }
+
+    //Runtime O(n)
+    @Override
+    public int[][] decompress() {
+        int[][] decompressedImage = new int[size][size];
+        decompressRecursive(decompressedImage, 0, 0);
+        return decompressedImage;
+    }
+
+    // Fills the square of array at (startX, startY) covered by this node
+    void decompressRecursive(int[][] array, int startX, int startY) {
+        if (children == null) {
+            for (int y = startY; y < startY + size; y++) {
+                Arrays.fill(array[y], startX, startX + size, color);
+            }
+            return;
+        }
+        int half = size / 2;
+        children[0].decompressRecursive(array, startX, startY);
+        children[1].decompressRecursive(array, startX + half, startY);
+        children[2].decompressRecursive(array, startX, startY + half);
+        children[3].decompressRecursive(array, startX + half, startY + half);
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return (double) count / ((double) size * size);
+    }
+}
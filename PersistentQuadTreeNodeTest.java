@@ -0,0 +1,113 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+public class PersistentQuadTreeNodeTest {
+    //setup
+    int [][] arrayMultiQuadrants;
+
+    @Before
+    public void setUp() {
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+    }
+
+    /**
+     * Test building gives the same pixels and sizes as QuadTreeNodeImpl
+     */
+    @Test
+    public void testBuildTreeMatchesImpl() {
+        PersistentQuadTreeNode tree = PersistentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        assertArrayEquals(arrayMultiQuadrants, tree.decompress());
+        assertEquals(9, tree.getSize());
+        assertEquals(4, tree.getDimension());
+        assertEquals(9.0 / 16, tree.getCompressionRatio(), 0.0);
+        assertTrue(tree.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT).isLeaf());
+        assertNull(tree.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT)
+                .getQuadrant(QuadTreeNode.QuadName.TOP_LEFT));
+    }
+
+    /**
+     * Test an update leaves the old version untouched and shares the other quadrants
+     */
+    @Test
+    public void testWithColorKeepsOldVersion() {
+        PersistentQuadTreeNode tree = PersistentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        PersistentQuadTreeNode updated = tree.withColor(0, 0, 5);
+        assertEquals(5, updated.getColor(0, 0));
+        assertEquals(1, tree.getColor(0, 0));
+        assertArrayEquals(arrayMultiQuadrants, tree.decompress());
+        assertEquals(9, tree.getSize());
+        assertEquals(13, updated.getSize());
+        for (QuadTreeNode.QuadName quadrant : new QuadTreeNode.QuadName[]{
+            QuadTreeNode.QuadName.TOP_RIGHT, QuadTreeNode.QuadName.BOTTOM_LEFT,
+            QuadTreeNode.QuadName.BOTTOM_RIGHT}) {
+            assertSame(tree.getQuadrant(quadrant), updated.getQuadrant(quadrant));
+        }
+    }
+
+    @Test
+    public void testWithSameColorReturnsSameTree() {
+        PersistentQuadTreeNode tree = PersistentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        assertSame(tree, tree.withColor(1, 1, 1));
+        assertSame(tree, tree.withColor(3, 1, 7));
+    }
+
+    @Test
+    public void testWithColorMerges() {
+        PersistentQuadTreeNode tree = PersistentQuadTreeNode.buildFromIntArray(
+                new int[][]{{1, 1}, {1, 2}});
+        PersistentQuadTreeNode merged = tree.withColor(1, 1, 1);
+        assertTrue(merged.isLeaf());
+        assertEquals(1, merged.getSize());
+        assertFalse(tree.isLeaf());
+    }
+
+    /**
+     * Test a history of versions matches QuadTreeNodeImpl after every step
+     */
+    @Test
+    public void testHistoryMatchesImpl() {
+        Random random = new Random(121);
+        int[][] image = new int[32][32];
+        QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+        PersistentQuadTreeNode tree = PersistentQuadTreeNode.buildFromIntArray(image);
+        List<PersistentQuadTreeNode> versions = new ArrayList<>();
+        List<int[][]> images = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(32);
+            int y = random.nextInt(32);
+            int c = random.nextInt(3);
+            expected.setColor(x, y, c);
+            tree = tree.withColor(x, y, c);
+            versions.add(tree);
+            images.add(expected.decompress());
+            assertEquals(expected.getSize(), tree.getSize());
+        }
+        for (int i = 0; i < versions.size(); i++) {
+            assertArrayEquals(images.get(i), versions.get(i).decompress());
+        }
+    }
+
+    @Test (expected = UnsupportedOperationException.class)
+    public void testSetColorUnsupported() {
+        PersistentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants).setColor(0, 0, 1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testWithColorOutOfBounds() {
+        PersistentQuadTreeNode.buildFromIntArray(arrayMultiQuadrants).withColor(4, 0, 1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testLeafNotPowerOfTwo() {
+        new PersistentQuadTreeNode(1, 3);
+    }
+}
@@ -0,0 +1,274 @@
+// QuadTree
+
+import java.util.Arrays;
+
+/**
+ * A QuadTree whose nodes live in a struct-of-arrays pool instead of separate objects.
+ * <p/>
+ * Every node is an index into parallel arrays holding the index of its first child
+ * ({@code -1} for a leaf), its color and its level (log2 of its dimension). The four
+ * children of a node always occupy four consecutive slots, so a split takes one
+ * quadruple from the pool and a merge gives it back through a free list. Once the pool
+ * has grown to the working size of a tree, editing it with setColor allocates nothing.
+ * <p/>
+ * A {@link PooledQuadTreeNode} instance is only a view of one node index; getQuadrant
+ * hands out new views on top of the same pool.
+ */
+public class PooledQuadTreeNode implements QuadTreeNode {
+
+    /*
+     * Attributes
+     */
+    private final NodePool pool; //storage shared by all views of the same tree
+    private final int node; //index of this node in the pool
+
+    private PooledQuadTreeNode(NodePool pool, int node) {
+        this.pool = pool;
+        this.node = node;
+    }
+
+    /**
+     * Builds a pooled QuadTree from an image. Quadruples of children which turn out
+     * to be uniform are returned to the pool right away and reused by their siblings.
+     *
+     * @param image image to put into the tree
+     * @return the newly built PooledQuadTreeNode which stores the compressed image
+     * @throws IllegalArgumentException if image is null, empty, not a perfect square
+     *                                  or its length is not a power of 2
+     */
+    public static PooledQuadTreeNode buildFromIntArray(int[][] image) {
+        if (image == null || image.length == 0 ||
+                !QuadTreeNodeImpl.isPowerOfTwo(image.length) ||
+                !QuadTreeNodeImpl.isPerfectSquare(image)) {
+            throw new IllegalArgumentException();
+        }
+        NodePool pool = new NodePool(64);
+        int level = Integer.numberOfTrailingZeros(image.length);
+        pool.level[NodePool.ROOT] = (byte) level;
+        buildFromArrayHelper(pool, NodePool.ROOT, image, level, 0, 0);
+        return new PooledQuadTreeNode(pool, NodePool.ROOT);
+    }
+
+    /**
+     * Recursive helper method to build the QuadTree into the pool
+     * @param pool - the pool to build into
+     * @param node - the index of the (already allocated) node to fill in
+     * @param image - the image to be compressed
+     * @param level - log2 of the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     */
+    private static void buildFromArrayHelper(NodePool pool, int node, int[][] image,
+                                             int level, int x, int y) {
+        pool.color[node] = image[y][x];
+        if (level == 0) {
+            return;
+        }
+        int base = pool.split(node);
+        int half = 1 << (level - 1);
+        buildFromArrayHelper(pool, base, image, level - 1, x, y);
+        buildFromArrayHelper(pool, base + 1, image, level - 1, x + half, y);
+        buildFromArrayHelper(pool, base + 2, image, level - 1, x, y + half);
+        buildFromArrayHelper(pool, base + 3, image, level - 1, x + half, y + half);
+        pool.mergeIfUniform(node);
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public int getColor(int x, int y) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        int current = node;
+        for (int k = pool.level[node] - 1; pool.firstChild[current] >= 0; k--) {
+            current = pool.firstChild[current] + (((y >> k) & 1) << 1 | ((x >> k) & 1));
+        }
+        return pool.color[current];
+    }
+
+    /**
+     * Sets the color of the pixel at the given coordinates. Leaves on the way down are
+     * split with quadruples taken from the pool, and on the way back up every node whose
+     * four children are leaves of the same color is merged, returning the quadruple.
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @param c - the new color of the pixel
+     * @throws IllegalArgumentException if x or y are out of bounds
+     */
+    @Override
+    public void setColor(int x, int y, int c) {
+        if (x < 0 || x >= getDimension() || y < 0 || y >= getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        int[] path = pool.path;
+        int depth = 0;
+        int current = node;
+        for (int k = pool.level[node] - 1; k >= 0; k--) {
+            if (pool.firstChild[current] < 0) {
+                if (pool.color[current] == c) {
+                    return;
+                }
+                pool.split(current);
+            }
+            path[depth++] = current;
+            current = pool.firstChild[current] + (((y >> k) & 1) << 1 | ((x >> k) & 1));
+        }
+        pool.color[current] = c;
+
+        //merge back up, but never above the node this method was called on
+        while (depth > 0 && pool.mergeIfUniform(path[--depth])) {
+            //keep merging
+        }
+    }
+
+    //Runtime: O(1)
+    @Override
+    public PooledQuadTreeNode getQuadrant(QuadName quadrant) {
+        if (isLeaf()) {
+            return null;
+        }
+        return new PooledQuadTreeNode(pool, pool.firstChild[node] + quadrant.ordinal());
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getDimension() {
+        return 1 << pool.level[node];
+    }
+
+    //Runtime: O(n)
+    @Override
+    public int getSize() {
+        return pool.size(node);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public boolean isLeaf() {
+        return pool.firstChild[node] < 0;
+    }
+
+    //Runtime O(n)
+    @Override
+    public int[][] decompress() {
+        int[][] decompressedImage = new int[getDimension()][getDimension()];
+        pool.decompress(node, decompressedImage, 0, 0, getDimension());
+        return decompressedImage;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return (double) getSize() / (getDimension() * getDimension());
+    }
+
+    /**
+     * Returns the number of node slots the pool has allocated so far, including free ones.
+     *
+     * @return the capacity in use by the pool
+     */
+    public int getPoolSize() {
+        return pool.used;
+    }
+
+    /**
+     * Parallel arrays of nodes with a free list of child quadruples.
+     */
+    private static final class NodePool {
+        static final int ROOT = 0;
+
+        private int[] firstChild;
+        private int[] color;
+        private byte[] level;
+        private int used; //slots handed out so far
+        private int freeList = -1; //first slot of the first free quadruple
+        //scratch space for the path of setColor, a tree never has more than 31 levels
+        private final int[] path = new int[32];
+
+        NodePool(int capacity) {
+            firstChild = new int[capacity];
+            color = new int[capacity];
+            level = new byte[capacity];
+            firstChild[ROOT] = -1;
+            used = 1;
+        }
+
+        /**
+         * Turns a leaf into an internal node with four leaf children of its color.
+         * @param node - the leaf to split
+         * @return the index of the first child
+         */
+        int split(int node) {
+            int base;
+            if (freeList >= 0) {
+                base = freeList;
+                freeList = firstChild[base];
+            } else {
+                ensureCapacity(used + 4);
+                base = used;
+                used += 4;
+            }
+            for (int i = base; i < base + 4; i++) {
+                firstChild[i] = -1;
+                color[i] = color[node];
+                level[i] = (byte) (level[node] - 1);
+            }
+            firstChild[node] = base;
+            return base;
+        }
+
+        /**
+         * Merges the children of node into it if they are leaves of the same color.
+         * @param node - an internal node
+         * @return whether the node was merged
+         */
+        boolean mergeIfUniform(int node) {
+            int base = firstChild[node];
+            for (int i = base; i < base + 4; i++) {
+                if (firstChild[i] >= 0 || color[i] != color[base]) {
+                    return false;
+                }
+            }
+            color[node] = color[base];
+            firstChild[node] = -1;
+            //the first slot of a free quadruple links to the next free quadruple
+            firstChild[base] = freeList;
+            freeList = base;
+            return true;
+        }
+
+        int size(int node) {
+            if (firstChild[node] < 0) {
+                return 1;
+            }
+            int numNodes = 1;
+            for (int i = firstChild[node]; i < firstChild[node] + 4; i++) {
+                numNodes += size(i);
+            }
+            return numNodes;
+        }
+
+        void decompress(int node, int[][] array, int startX, int startY, int dimension) {
+            if (firstChild[node] < 0) {
+                for (int y = startY; y < startY + dimension; y++) {
+                    Arrays.fill(array[y], startX, startX + dimension, color[node]);
+                }
+                return;
+            }
+            int half = dimension / 2;
+            int base = firstChild[node];
+            decompress(base, array, startX, startY, half);
+            decompress(base + 1, array, startX + half, startY, half);
+            decompress(base + 2, array, startX, startY + half, half);
+            decompress(base + 3, array, startX + half, startY + half, half);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > firstChild.length) {
+                int newCapacity = Math.max(capacity, firstChild.length * 2);
+                firstChild = Arrays.copyOf(firstChild, newCapacity);
+                color = Arrays.copyOf(color, newCapacity);
+                level = Arrays.copyOf(level, newCapacity);
+            }
+        }
+    }
+}
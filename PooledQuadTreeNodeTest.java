@@ -0,0 +1,102 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+public class PooledQuadTreeNodeTest {
+    //setup
+    int [][] array4Quadrants;
+    int [][] arrayMultiQuadrants;
+    int [][] arrayUniqueAllPixels;
+    int [][] oneElementArray;
+
+    @Before
+    public void setUp() {
+        array4Quadrants = new int[][]{
+                {1, 1, 2, 2},
+                {1, 1, 2, 2},
+                {3, 3, 4, 4},
+                {3, 3, 4, 4}};
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+        arrayUniqueAllPixels = new int[][]{
+                {1, 2, 3, 4},
+                {5, 6, 7, 8},
+                {9, 10, 11, 12},
+                {13, 14, 15, 16}};
+        oneElementArray = new int[][]{
+                {1}};
+    }
+
+    /**
+     * Test building the tree gives the same sizes, colors and ratios as QuadTreeNodeImpl
+     */
+    @Test
+    public void testBuildTreeMatchesImpl() {
+        for (int[][] image : new int[][][]{array4Quadrants, arrayMultiQuadrants,
+                arrayUniqueAllPixels, oneElementArray}) {
+            PooledQuadTreeNode tree = PooledQuadTreeNode.buildFromIntArray(image);
+            QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+            assertEquals(expected.getDimension(), tree.getDimension());
+            assertEquals(expected.getSize(), tree.getSize());
+            assertEquals(expected.getCompressionRatio(), tree.getCompressionRatio(), 0.0001);
+            assertArrayEquals(image, tree.decompress());
+        }
+    }
+
+    @Test
+    public void testGetQuadrant() {
+        PooledQuadTreeNode root = PooledQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        PooledQuadTreeNode topRight = root.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT);
+        assertEquals(2, topRight.getDimension());
+        assertArrayEquals(new int[][]{{2, 3}, {1, 7}}, topRight.decompress());
+        assertTrue(root.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT).isLeaf());
+        assertNull(root.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT)
+                .getQuadrant(QuadTreeNode.QuadName.TOP_LEFT));
+    }
+
+    /**
+     * Test merges give their quadruples back, so repeated edits do not grow the pool
+     */
+    @Test
+    public void testSetColorReusesFreedNodes() {
+        PooledQuadTreeNode tree = PooledQuadTreeNode.buildFromIntArray(new int[8][8]);
+        tree.setColor(5, 6, 1);
+        tree.setColor(5, 6, 0);
+        assertTrue(tree.isLeaf());
+        int poolSize = tree.getPoolSize();
+        for (int i = 0; i < 100; i++) {
+            tree.setColor(i % 8, (i / 8) % 8, 1);
+            tree.setColor(i % 8, (i / 8) % 8, 0);
+        }
+        assertEquals(1, tree.getSize());
+        assertEquals(poolSize, tree.getPoolSize());
+    }
+
+    @Test
+    public void testSetColorMatchesImplRandom() {
+        Random random = new Random(121);
+        int[][] image = new int[16][16];
+        PooledQuadTreeNode tree = PooledQuadTreeNode.buildFromIntArray(image);
+        QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(16);
+            int y = random.nextInt(16);
+            int c = random.nextInt(3);
+            tree.setColor(x, y, c);
+            expected.setColor(x, y, c);
+            assertEquals(expected.getColor(x, y), tree.getColor(x, y));
+        }
+        assertEquals(expected.getSize(), tree.getSize());
+        assertArrayEquals(expected.decompress(), tree.decompress());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testSetColorIllegalColorUnderBounds() {
+        PooledQuadTreeNode.buildFromIntArray(array4Quadrants).setColor(0, -1, 1);
+    }
+}
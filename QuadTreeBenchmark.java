@@ -0,0 +1,1089 @@
+// QuadTree
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Small self-contained benchmarks for the QuadTree implementations.
+ * <p/>
+ * Run with {@code java QuadTreeBenchmark [name ...]}; without arguments every benchmark
+ * runs. Each measurement is warmed up first (for at least a second, so recursive code
+ * gets compiled too) and then reports the time per operation, the throughput (operations
+ * are pixels for the build and decompress benchmarks, so Mop/s reads as MP/s) and the
+ * number of bytes allocated by the benchmark thread per operation.
+ */
+public class QuadTreeBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final int MEASURED_ROUNDS = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    //sink for results so the JIT cannot drop the measured work
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        Map<String, Runnable> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("allocation", QuadTreeBenchmark::allocation);
+        benchmarks.put("descent", QuadTreeBenchmark::descent);
+        benchmarks.put("fill", QuadTreeBenchmark::fill);
+        benchmarks.put("batch", QuadTreeBenchmark::batch);
+        benchmarks.put("parallelBuild", QuadTreeBenchmark::parallelBuild);
+        benchmarks.put("buildMemory", QuadTreeBenchmark::buildMemory);
+        benchmarks.put("imageLoad", QuadTreeBenchmark::imageLoad);
+        benchmarks.put("decompress", QuadTreeBenchmark::decompress);
+        benchmarks.put("parallelDecompress", QuadTreeBenchmark::parallelDecompress);
+        benchmarks.put("codec", QuadTreeBenchmark::codec);
+        benchmarks.put("mapped", QuadTreeBenchmark::mapped);
+        benchmarks.put("dag", QuadTreeBenchmark::dag);
+        benchmarks.put("persistent", QuadTreeBenchmark::persistent);
+        benchmarks.put("concurrent", QuadTreeBenchmark::concurrent);
+        benchmarks.put("lossy", QuadTreeBenchmark::lossy);
+        benchmarks.put("prune", QuadTreeBenchmark::prune);
+        benchmarks.put("aggregate", QuadTreeBenchmark::aggregate);
+        benchmarks.put("leaves", QuadTreeBenchmark::leaves);
+        benchmarks.put("rectangular", QuadTreeBenchmark::rectangular);
+        benchmarks.put("tiled", QuadTreeBenchmark::tiled);
+        benchmarks.put("levelOfDetail", QuadTreeBenchmark::levelOfDetail);
+
+        if (args.length == 0) {
+            args = benchmarks.keySet().toArray(new String[0]);
+        }
+        for (String name : args) {
+            Runnable benchmark = benchmarks.get(name);
+            if (benchmark == null) {
+                throw new IllegalArgumentException("Unknown benchmark: " + name);
+            }
+            System.out.println("== " + name);
+            benchmark.run();
+        }
+        System.out.println("(blackhole " + blackhole + ")");
+    }
+
+    /**
+     * Allocation rate of the build, getColor and setColor paths on an image whose
+     * colors are real RGB values (outside of the Integer cache).
+     */
+    private static void allocation() {
+        int[][] image = noiseImage(512, 0x00FFFFFF, 121);
+        measure("build 512x512 noise", 512 * 512,
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(image).getDimension());
+
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        int[] xs = randomCoordinates(1 << 20, 512, 1);
+        int[] ys = randomCoordinates(1 << 20, 512, 2);
+        measure("getColor", xs.length, () -> {
+            long sum = 0;
+            for (int i = 0; i < xs.length; i++) {
+                sum += tree.getColor(xs[i], ys[i]);
+            }
+            blackhole += sum;
+        });
+        measure("setColor (1x1 leaves)", xs.length, () -> {
+            for (int i = 0; i < xs.length; i++) {
+                tree.setColor(xs[i], ys[i], 0x00808080 + i);
+            }
+        });
+    }
+
+    /**
+     * Point lookups and updates on a full-depth tree, where every call walks all levels.
+     */
+    private static void descent() {
+        int[][] image = noiseImage(1024, 0x00FFFFFF, 121);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        int[] xs = randomCoordinates(1 << 22, 1024, 1);
+        int[] ys = randomCoordinates(1 << 22, 1024, 2);
+        measure("getColor random 1024x1024", xs.length, () -> {
+            long sum = 0;
+            for (int i = 0; i < xs.length; i++) {
+                sum += tree.getColor(xs[i], ys[i]);
+            }
+            blackhole += sum;
+        });
+        measure("getColor scanline 1024x1024", 1024 * 1024, () -> {
+            long sum = 0;
+            for (int y = 0; y < 1024; y++) {
+                for (int x = 0; x < 1024; x++) {
+                    sum += tree.getColor(x, y);
+                }
+            }
+            blackhole += sum;
+        });
+        QuadTreeNodeImpl flat = QuadTreeNodeImpl.buildFromIntArray(new int[1024][1024]);
+        measure("setColor split + merge back", 2 * 1024 * 1024, () -> {
+            for (int i = 0; i < 1024 * 1024; i++) {
+                flat.setColor(xs[i], ys[i], 1);
+                flat.setColor(xs[i], ys[i], 0);
+            }
+        });
+    }
+
+    /**
+     * Filling unaligned rectangles structurally versus one setColor per pixel.
+     */
+    private static void fill() {
+        int[][] image = blockImage(1024, 8, 121);
+        for (int side : new int[] {64, 256, 1000}) {
+            QuadTreeNodeImpl structural = QuadTreeNodeImpl.buildFromIntArray(image);
+            measure("fillRect " + side + "x" + side, 1, () -> {
+                structural.fillRect(3, 5, side, side, 0x00112233);
+                structural.fillRect(3, 5, side, side, 0x00445566);
+            });
+            QuadTreeNodeImpl perPixel = QuadTreeNodeImpl.buildFromIntArray(image);
+            measure("setColor loop " + side + "x" + side, 1, () -> {
+                for (int y = 5; y < 5 + side; y++) {
+                    for (int x = 3; x < 3 + side; x++) {
+                        perPixel.setColor(x, y, 0x00112233);
+                    }
+                }
+                for (int y = 5; y < 5 + side; y++) {
+                    for (int x = 3; x < 3 + side; x++) {
+                        perPixel.setColor(x, y, 0x00445566);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * A 100k point batch (brush strokes: short random walks) applied with setColors
+     * versus one setColor call per point.
+     */
+    private static void batch() {
+        int n = 100_000;
+        Random random = new Random(121);
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        int[] colors = new int[n];
+        int x = 512;
+        int y = 512;
+        for (int i = 0; i < n; i++) {
+            x = Math.min(Math.max(x + random.nextInt(3) - 1, 0), 1023);
+            y = Math.min(Math.max(y + random.nextInt(3) - 1, 0), 1023);
+            xs[i] = x;
+            ys[i] = y;
+            colors[i] = 0x00FFFFFF;
+        }
+        int[][] image = blockImage(1024, 16, 121);
+        measure("setColors 100k batch", n, () ->
+                QuadTreeNodeImpl.buildFromIntArray(image).setColors(xs, ys, colors));
+        measure("setColor 100k loop", n, () -> {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            for (int i = 0; i < n; i++) {
+                tree.setColor(xs[i], ys[i], colors[i]);
+            }
+        });
+        int[] scatteredXs = randomCoordinates(n, 1024, 1);
+        int[] scatteredYs = randomCoordinates(n, 1024, 2);
+        measure("setColors 100k scattered batch", n, () ->
+                QuadTreeNodeImpl.buildFromIntArray(image)
+                        .setColors(scatteredXs, scatteredYs, colors));
+        measure("setColor 100k scattered loop", n, () -> {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            for (int i = 0; i < n; i++) {
+                tree.setColor(scatteredXs[i], scatteredYs[i], colors[i]);
+            }
+        });
+        measure("(build only)", n, () ->
+                blackhole += QuadTreeNodeImpl.buildFromIntArray(image).getSize());
+    }
+
+    /**
+     * Scaling of the fork/join build of a 4096x4096 image from one thread up to the
+     * number of available processors.
+     */
+    private static void parallelBuild() {
+        int[][] image = blockImage(4096, 4, 121);
+        measure("sequential build 4096x4096", 4096 * 4096,
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(image).getSize());
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            measure("parallel build 4096x4096, " + threads + " threads", 4096 * 4096,
+                    () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(image, pool).getSize());
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Allocated bytes and peak heap of building a mostly flat screenshot-like image and a
+     * noise image, where almost every pixel ends up as its own leaf.
+     */
+    private static void buildMemory() {
+        int[][] flat = blockImage(2048, 64, 121);
+        measure("build 2048x2048 flat blocks", 2048 * 2048,
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(flat).getSize());
+        measurePeakHeap("build 2048x2048 flat blocks",
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(flat).getSize());
+        int[][] noise = noiseImage(1024, 0x00FFFFFF, 121);
+        measure("build 1024x1024 noise", 1024 * 1024,
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(noise).getSize());
+        measurePeakHeap("build 1024x1024 noise",
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(noise).getSize());
+    }
+
+    /**
+     * Load time and peak heap of building from a BufferedImage through a padded int[][]
+     * copy versus streaming the raster. The image size can be raised with
+     * {@code -Dbench.imageWidth=10000 -Dbench.imageHeight=10000} for 100 MP runs.
+     */
+    private static void imageLoad() {
+        int width = Integer.getInteger("bench.imageWidth", 4100);
+        int height = Integer.getInteger("bench.imageHeight", 2200);
+        for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR}) {
+            BufferedImage image = new BufferedImage(width, height, type);
+            int[][] blocks = blockImage(Math.max(width, height), 8, 121);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    image.setRGB(x, y, blocks[y][x]);
+                }
+            }
+            blocks = null;
+            String label = width + "x" + height + (type == BufferedImage.TYPE_INT_RGB
+                    ? " int rgb" : " 3byte bgr");
+            measure("staged int[][] " + label, (long) width * height,
+                    () -> blackhole += buildFromImageStaged(image).getSize());
+            measurePeakHeap("staged int[][] " + label,
+                    () -> blackhole += buildFromImageStaged(image).getSize());
+            measure("streaming " + label, (long) width * height,
+                    () -> blackhole += QuadTreeImages.buildFromImage(image).getSize());
+            measurePeakHeap("streaming " + label,
+                    () -> blackhole += QuadTreeImages.buildFromImage(image).getSize());
+        }
+    }
+
+    // How SimplePaint used to load images: pad into an int[][] column by column, then build
+    private static QuadTreeNodeImpl buildFromImageStaged(BufferedImage image) {
+        int dimensions = 1;
+        while (dimensions < Math.max(image.getHeight(), image.getWidth())) {
+            dimensions *= 2;
+        }
+        int[][] imageData = new int[dimensions][dimensions];
+        for (int i = 0; i < image.getWidth(); i++) {
+            for (int j = 0; j < image.getHeight(); j++) {
+                imageData[j][i] = image.getRGB(i, j) % 0x1000000;
+            }
+        }
+        return QuadTreeNodeImpl.buildFromIntArray(imageData);
+    }
+
+    /**
+     * Decompression throughput into a fresh int[][], a reused flat buffer and a reused
+     * BufferedImage, for a detailed and a flat image.
+     */
+    private static void decompress() {
+        int dimension = 2048;
+        long pixels = (long) dimension * dimension;
+        int[] frame = new int[dimension * dimension];
+        BufferedImage image = new BufferedImage(dimension, dimension, BufferedImage.TYPE_INT_RGB);
+        for (int block : new int[] {1, 4, 64}) {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(
+                    block == 1 ? noiseImage(dimension, 0x00FFFFFF, 121)
+                            : blockImage(dimension, block, 121));
+            String label = dimension + "x" + dimension + ", " + block + "px leaves";
+            measure("decompress int[][] " + label, pixels,
+                    () -> blackhole += tree.decompress()[dimension - 1][dimension - 1]);
+            measure("decompress flat " + label, pixels,
+                    () -> tree.decompress(frame, 0, dimension));
+            measure("decompress image " + label, pixels,
+                    () -> QuadTreeImages.decompress(tree, image));
+        }
+    }
+
+    /**
+     * Scaling of the fork/join decompression into a reused flat buffer. The dimension and
+     * the maximum thread count default to 4096 and the available processors and can be
+     * set with {@code -Dbench.dimension=16384 -Dbench.maxThreads=32}.
+     */
+    private static void parallelDecompress() {
+        int dimension = Integer.getInteger("bench.dimension", 4096);
+        int maxThreads = Integer.getInteger("bench.maxThreads",
+                Runtime.getRuntime().availableProcessors());
+        long pixels = (long) dimension * dimension;
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(blockImage(dimension, 4, 121));
+        int[] frame = new int[dimension * dimension];
+        measure("decompress flat " + dimension + "x" + dimension, pixels,
+                () -> tree.decompress(frame, 0, dimension));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            measure("parallel flat " + dimension + "x" + dimension + ", " + threads + " threads",
+                    pixels, () -> tree.decompress(frame, 0, dimension, pool));
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Encode and decode throughput (in nodes) and size of the compact binary format.
+     * QuadTreeNodeImpl is not Serializable, so the Java serialization baseline is the
+     * decompressed int[][] that used to be the only way to persist a tree.
+     */
+    private static void codec() {
+        for (int block : new int[] {1, 4, 64}) {
+            int[][] image = block == 1 ? noiseImage(1024, 0x00FFFFFF, 121)
+                    : blockImage(1024, block, 121);
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            int nodes = tree.getSize();
+            String label = "1024x1024, " + block + "px leaves";
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            measure("codec write " + label, nodes, () -> {
+                encoded.reset();
+                try {
+                    QuadTreeCodec.write(tree, new DataOutputStream(encoded));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            byte[] bytes = encoded.toByteArray();
+            measure("codec read " + label, nodes, () -> {
+                try {
+                    blackhole += QuadTreeCodec.read(
+                            new DataInputStream(new ByteArrayInputStream(bytes))).getSize();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            measure("serialize int[][] " + label, nodes, () -> {
+                serialized.reset();
+                try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+                    out.writeObject(tree.decompress());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            byte[] serializedBytes = serialized.toByteArray();
+            measure("deserialize int[][] " + label, nodes, () -> {
+                try (ObjectInputStream in = new ObjectInputStream(
+                        new ByteArrayInputStream(serializedBytes))) {
+                    blackhole += QuadTreeNodeImpl.buildFromIntArray((int[][]) in.readObject())
+                            .getSize();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            System.out.printf("%-40s %10.2f B/node codec %10.2f B/node serialized%n", label,
+                    (double) bytes.length / nodes, (double) serializedBytes.length / nodes);
+        }
+    }
+
+    /**
+     * Opening a tree file by mapping it versus decoding it into QuadTreeNodeImpl, and
+     * random reads from both. The dimension of the noise image defaults to 2048 and can
+     * be raised with {@code -Dbench.dimension=8192} for multi-gigabyte files.
+     */
+    private static void mapped() {
+        int dimension = Integer.getInteger("bench.dimension", 2048);
+        try {
+            Path mappedFile = Files.createTempFile("quadtree", ".qtm");
+            Path encodedFile = Files.createTempFile("quadtree", ".qtc");
+            try {
+                QuadTreeNodeImpl tree =
+                        QuadTreeNodeImpl.buildFromIntArray(noiseImage(dimension, 0x00FFFFFF, 121));
+                MappedQuadTreeNode.write(tree, mappedFile);
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(encodedFile)))) {
+                    QuadTreeCodec.write(tree, out);
+                }
+                tree = null;
+                String label = dimension + "x" + dimension + " noise";
+                System.out.printf("%-40s %10.2f MB mapped file%n", label,
+                        Files.size(mappedFile) / 1e6);
+                measure("open mapped " + label, 1, () -> {
+                    try {
+                        blackhole += MappedQuadTreeNode.open(mappedFile).getSize();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                measurePeakHeap("open mapped " + label, () -> {
+                    try {
+                        blackhole += MappedQuadTreeNode.open(mappedFile).getSize();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                measurePeakHeap("decode " + label, () -> blackhole += readEncoded(encodedFile)
+                        .getSize());
+
+                int[] xs = randomCoordinates(1 << 20, dimension, 1);
+                int[] ys = randomCoordinates(1 << 20, dimension, 2);
+                MappedQuadTreeNode mapped = MappedQuadTreeNode.open(mappedFile);
+                measure("getColor mapped " + label, xs.length, () -> {
+                    long sum = 0;
+                    for (int i = 0; i < xs.length; i++) {
+                        sum += mapped.getColor(xs[i], ys[i]);
+                    }
+                    blackhole += sum;
+                });
+                QuadTreeNodeImpl decoded = readEncoded(encodedFile);
+                measure("getColor decoded " + label, xs.length, () -> {
+                    long sum = 0;
+                    for (int i = 0; i < xs.length; i++) {
+                        sum += decoded.getColor(xs[i], ys[i]);
+                    }
+                    blackhole += sum;
+                });
+            } finally {
+                Files.deleteIfExists(mappedFile);
+                Files.deleteIfExists(encodedFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Node counts, build time, peak heap and setColor cost of a tiled map image (32
+     * detailed 16x16 tiles repeated over a 2048x2048 grid) as a plain tree and as a
+     * hash-consed DAG.
+     */
+    private static void dag() {
+        int[][] image = tiledImage(2048, 16, 32, 121);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        DagQuadTreeNode dag = DagQuadTreeNode.buildFromIntArray(image);
+        System.out.printf("%-40s %10d nodes tree %10d logical %10d physical%n",
+                "2048x2048 tiled", tree.getSize(), dag.getLogicalSize(), dag.getPhysicalSize());
+        tree = null;
+        measure("build tree 2048x2048 tiled", 2048 * 2048,
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(image).getSize());
+        measurePeakHeap("build tree 2048x2048 tiled",
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(image).getSize());
+        measure("build dag 2048x2048 tiled", 2048 * 2048,
+                () -> blackhole += DagQuadTreeNode.buildFromIntArray(image).getSize());
+        measurePeakHeap("build dag 2048x2048 tiled",
+                () -> blackhole += DagQuadTreeNode.buildFromIntArray(image).getSize());
+
+        int[] xs = randomCoordinates(1 << 18, 2048, 1);
+        int[] ys = randomCoordinates(1 << 18, 2048, 2);
+        measure("setColor dag (copy on write)", xs.length, () -> {
+            for (int i = 0; i < xs.length; i++) {
+                dag.setColor(xs[i], ys[i], i & 3);
+            }
+            dag.compact();
+        });
+    }
+
+    /**
+     * Path-copying updates of the persistent tree versus in-place setColor, and taking a
+     * snapshot by keeping the root versus deep-copying a mutable tree.
+     */
+    private static void persistent() {
+        int[][] image = blockImage(1024, 8, 121);
+        int[] xs = randomCoordinates(1 << 18, 1024, 1);
+        int[] ys = randomCoordinates(1 << 18, 1024, 2);
+        QuadTreeNodeImpl mutable = QuadTreeNodeImpl.buildFromIntArray(image);
+        measure("setColor in place 1024x1024", xs.length, () -> {
+            for (int i = 0; i < xs.length; i++) {
+                mutable.setColor(xs[i], ys[i], i & 3);
+            }
+        });
+        PersistentQuadTreeNode[] persistent = {PersistentQuadTreeNode.buildFromIntArray(image)};
+        measure("withColor path copy 1024x1024", xs.length, () -> {
+            PersistentQuadTreeNode tree = persistent[0];
+            for (int i = 0; i < xs.length; i++) {
+                tree = tree.withColor(xs[i], ys[i], i & 3);
+            }
+            persistent[0] = tree;
+        });
+        measure("snapshot by deep copy 1024x1024", 1, () -> blackhole +=
+                QuadTreeNodeImpl.buildFromIntArray(mutable.decompress()).getSize());
+        measure("snapshot persistent 1024x1024", 1, () -> {
+            PersistentQuadTreeNode snapshot = persistent[0];
+            blackhole += snapshot.getSize();
+        });
+    }
+
+    /**
+     * Total setColor throughput of the concurrent tree with writers in disjoint stripes
+     * and with all writers in the same stripe, from one thread up to the available
+     * processors (or {@code -Dbench.maxThreads}). The writers run on pool threads, so
+     * B/op does not count their allocations.
+     */
+    private static void concurrent() {
+        int maxThreads = Integer.getInteger("bench.maxThreads",
+                Runtime.getRuntime().availableProcessors());
+        int perThread = 1 << 18;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            ConcurrentQuadTreeNode tree =
+                    ConcurrentQuadTreeNode.buildFromIntArray(blockImage(1024, 8, 121));
+            List<Callable<Void>> disjoint = new ArrayList<>();
+            List<Callable<Void>> shared = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                //stripes are 64x64, thread t writes into the stripes of row t only
+                int[] xs = randomCoordinates(perThread, 1024, t);
+                int[] ys = randomCoordinates(perThread, 64, t + 100);
+                int row = t * 64;
+                disjoint.add(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        tree.setColor(xs[i], row + ys[i], i & 3);
+                    }
+                    return null;
+                });
+                int[] sharedXs = randomCoordinates(perThread, 64, t + 200);
+                shared.add(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        tree.setColor(sharedXs[i], ys[i], i & 3);
+                    }
+                    return null;
+                });
+            }
+            measure("concurrent disjoint stripes, " + threads + " threads",
+                    (long) threads * perThread, () -> runAll(executor, disjoint));
+            measure("concurrent one stripe, " + threads + " threads",
+                    (long) threads * perThread, () -> runAll(executor, shared));
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Rate/distortion of the lossy build of a 2048x2048 photo-like image: node count,
+     * compression ratio, largest channel error and PSNR for a range of tolerances, along
+     * with the build time.
+     */
+    private static void lossy() {
+        int[][] image = photoImage(2048, 121);
+        measure("lossless build 2048x2048 photo", 2048 * 2048,
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(image).getSize());
+        for (int tolerance : new int[] {0, 2, 4, 8, 16, 32}) {
+            measure("lossy build, tolerance " + tolerance, 2048 * 2048, () -> blackhole +=
+                    QuadTreeNodeImpl.buildFromIntArray(image, tolerance).getSize());
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image, tolerance);
+            int[][] result = tree.decompress();
+            int maxError = 0;
+            double squaredError = 0;
+            for (int y = 0; y < 2048; y++) {
+                for (int x = 0; x < 2048; x++) {
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        int error = ((image[y][x] >>> shift) & 0xFF)
+                                - ((result[y][x] >>> shift) & 0xFF);
+                        maxError = Math.max(maxError, Math.abs(error));
+                        squaredError += error * error;
+                    }
+                }
+            }
+            double mse = squaredError / (3.0 * 2048 * 2048);
+            System.out.printf("%-40s %10d nodes %8.4f ratio %4d max error %8.2f dB PSNR%n",
+                    "tolerance " + tolerance, tree.getSize(), tree.getCompressionRatio(),
+                    maxError, mse == 0 ? Double.POSITIVE_INFINITY
+                            : 10 * Math.log10(255.0 * 255.0 / mse));
+        }
+    }
+
+    /**
+     * Structural pruning versus the pixel-rewriting pruner SimplePaint used to have, on a
+     * 512x512 noise image (both timings include building the tree), plus the error and
+     * node budget policies and build-then-prune versus the lossy build.
+     */
+    private static void prune() {
+        int[][] noise = noiseImage(512, 0x00FFFFFF, 121);
+        for (int depth : new int[] {2, 6}) {
+            measure("pixel rewrite prune 512x512, depth " + depth, 512 * 512, () -> {
+                QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(noise);
+                pruneTreeByRewrite(tree, depth);
+                blackhole += tree.getSize();
+            });
+            measure("pruneToDepth 512x512, depth " + depth, 512 * 512, () -> {
+                QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(noise);
+                tree.pruneToDepth(depth);
+                blackhole += tree.getSize();
+            });
+        }
+        int[][] photo = photoImage(2048, 121);
+        measure("build + pruneToError(4) 2048x2048", 2048 * 2048, () -> {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(photo);
+            tree.pruneToError(4);
+            blackhole += tree.getSize();
+        });
+        measure("lossy build(4) 2048x2048", 2048 * 2048,
+                () -> blackhole += QuadTreeNodeImpl.buildFromIntArray(photo, 4).getSize());
+        measure("build + pruneToNodeBudget(50000)", 2048 * 2048, () -> {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(photo);
+            tree.pruneToNodeBudget(50_000);
+            blackhole += tree.getSize();
+        });
+    }
+
+    /**
+     * Region averages and color counts over random rectangles, from the channel sums and
+     * bounds QuadTreeNodeImpl keeps against reading every pixel as the interface defaults
+     * do.
+     */
+    private static void aggregate() {
+        int[][] photo = photoImage(2048, 131);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(photo);
+        QuadTreeNode pixels = PersistentQuadTreeNode.buildFromIntArray(photo);
+        int[] xs = randomCoordinates(1024, 1024, 3);
+        int[] ys = randomCoordinates(1024, 1024, 4);
+        measure("getColor loop average 1024x1024 rects", 1 << 4, () -> {
+            for (int i = 0; i < 16; i++) {
+                blackhole += pixels.averageColor(xs[i], ys[i], 1024, 1024);
+            }
+        });
+        measure("averageColor 1024x1024 rects", 1024, () -> {
+            for (int i = 0; i < 1024; i++) {
+                blackhole += tree.averageColor(xs[i], ys[i], 1024, 1024);
+            }
+        });
+        measure("countColor 1024x1024 rects", 1024, () -> {
+            for (int i = 0; i < 1024; i++) {
+                blackhole += tree.countColor(xs[i], ys[i], 1024, 1024, photo[ys[i]][xs[i]]);
+            }
+        });
+        measure("setColor + averageColor whole tree", 1024, () -> {
+            for (int i = 0; i < 1024; i++) {
+                tree.setColor(xs[i], ys[i], i);
+                blackhole += tree.averageColor(0, 0, 2048, 2048);
+            }
+        });
+    }
+
+    /**
+     * Walking every leaf: a recursive descent through getQuadrant and getColor(0, 0)
+     * against forEachLeaf, through the interface default and the QuadTreeNodeImpl override.
+     */
+    private static void leaves() {
+        int[][] photo = photoImage(2048, 141);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(photo);
+        QuadTreeNode persistent = PersistentQuadTreeNode.buildFromIntArray(photo);
+        int leaves = tree.getLeafCount();
+        long[] sum = new long[1];
+        QuadTreeNode.LeafVisitor visitor = (x, y, dimension, color) ->
+                sum[0] += x + y + dimension + color;
+        measure("recursive getQuadrant walk", leaves, () -> walkLeaves(tree, 0, 0, visitor));
+        measure("forEachLeaf QuadTreeNodeImpl", leaves, () -> tree.forEachLeaf(visitor));
+        measure("forEachLeaf interface default", leaves, () -> persistent.forEachLeaf(visitor));
+        measure("forEachLeaf row-major", leaves, () -> tree.forEachLeaf(0, 0, 2048, 2048,
+                QuadTreeNode.LeafOrder.ROW_MAJOR, visitor));
+        blackhole += sum[0];
+    }
+
+    private static void walkLeaves(QuadTreeNode node, int x, int y,
+                                   QuadTreeNode.LeafVisitor visitor) {
+        if (node.isLeaf()) {
+            visitor.visit(x, y, node.getDimension(), node.getColor(0, 0));
+            return;
+        }
+        int half = node.getDimension() / 2;
+        walkLeaves(node.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT), x, y, visitor);
+        walkLeaves(node.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT), x + half, y, visitor);
+        walkLeaves(node.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT), x, y + half, visitor);
+        walkLeaves(node.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT), x + half, y + half,
+                visitor);
+    }
+
+    /**
+     * A non-square image stored in a tree padded to a power of two against a
+     * RectangularQuadTreeNode: build time, nodes and decompression of the real pixels.
+     */
+    private static void rectangular() {
+        int width = Integer.getInteger("bench.imageWidth", 4100);
+        int height = Integer.getInteger("bench.imageHeight", 2200);
+        int[][] blocks = blockImage(Math.max(width, height), 8, 151);
+        int[][] pixels = new int[height][];
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            image.setRGB(0, y, width, 1, blocks[y], 0, width);
+        }
+        blocks = null;
+        //the pixels as buildFromImage converts them
+        for (int y = 0; y < height; y++) {
+            pixels[y] = new int[width];
+            for (int x = 0; x < width; x++) {
+                pixels[y][x] = image.getRGB(x, y) % 0x1000000;
+            }
+        }
+        long area = (long) width * height;
+        String label = width + "x" + height;
+        measure("padded int[][] build " + label, area,
+                () -> blackhole += buildFromImageStaged(image).getSize());
+        measure("rectangular int[][] build " + label, area,
+                () -> blackhole += RectangularQuadTreeNode.buildFromIntArray(pixels).getSize());
+        measure("padded streaming build " + label, area,
+                () -> blackhole += QuadTreeImages.buildFromImage(image).getSize());
+        measure("rectangular streaming build " + label, area,
+                () -> blackhole += RectangularQuadTreeNode.buildFromImage(image).getSize());
+        measurePeakHeap("padded int[][] build " + label,
+                () -> blackhole += buildFromImageStaged(image).getSize());
+        measurePeakHeap("rectangular int[][] build " + label,
+                () -> blackhole += RectangularQuadTreeNode.buildFromIntArray(pixels).getSize());
+
+        QuadTreeNodeImpl padded = QuadTreeImages.buildFromImage(image);
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(pixels);
+        System.out.printf("%-40s %10d nodes ratio %.4f%n", "padded " + label,
+                padded.getSize(), padded.getCompressionRatio());
+        System.out.printf("%-40s %10d nodes ratio %.4f%n", "rectangular " + label,
+                tree.getSize(), tree.getCompressionRatio());
+        measure("padded decompress " + label, area, () -> blackhole += padded.decompress().length);
+        measure("rectangular decompress " + label, area,
+                () -> blackhole += tree.decompress().length);
+    }
+
+    /**
+     * A TiledQuadTree over a 2^20 x 2^20 procedural canvas of 1024x1024 tiles: building
+     * an 8x8 tile range on demand from one thread up to the number of available
+     * processors, and random reads with every tile resident, against a single
+     * QuadTreeNodeImpl of the same pixels, and with most reads evicting a tile.
+     */
+    private static void tiled() {
+        long side = 1L << 20;
+        int tile = 1024;
+        TiledQuadTree.TileSource source = (column, row, width, height) -> {
+            int[][] pixels = new int[height][width];
+            for (int y = 0; y < height; y++) {
+                long globalY = row * tile + y;
+                for (int x = 0; x < width; x++) {
+                    long globalX = column * tile + x;
+                    pixels[y][x] = ((globalX >> 5) + (globalY >> 4)) % 3 == 0
+                            ? (int) ((globalX >> 3) * 31 + (globalY >> 3)) & 3 : 0xFF00FF;
+                }
+            }
+            return pixels;
+        };
+        long pixels = 64L * tile * tile;
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            measure("tiled build 8x8 tiles, " + threads + " threads", pixels, () -> {
+                TiledQuadTree tiles = new TiledQuadTree(side, side, tile, 64, source);
+                tiles.forEachTile(0, 0, 8, 8, pool,
+                    (column, row, t) -> blackhole += t.getSize());
+            });
+            pool.shutdown();
+        }
+
+        int count = 1 << 20;
+        int[] xs = randomCoordinates(count, 4 * tile, 161);
+        int[] ys = randomCoordinates(count, 4 * tile, 162);
+        TiledQuadTree resident = new TiledQuadTree(side, side, tile, 16, source);
+        int[][] image = new int[4 * tile][];
+        for (int y = 0; y < 4 * tile; y++) {
+            image[y] = new int[4 * tile];
+            for (int x = 0; x < 4 * tile; x++) {
+                image[y][x] = resident.getColor(x, y);
+            }
+        }
+        QuadTreeNodeImpl single = QuadTreeNodeImpl.buildFromIntArray(image);
+        image = null;
+        measure("single tree getColor 4096x4096", count, () -> {
+            for (int i = 0; i < count; i++) {
+                blackhole += single.getColor(xs[i], ys[i]);
+            }
+        });
+        measure("tiled getColor 4x4 resident tiles", count, () -> {
+            for (int i = 0; i < count; i++) {
+                blackhole += resident.getColor(xs[i], ys[i]);
+            }
+        });
+
+        int misses = 256;
+        int[] farXs = randomCoordinates(misses, 16 * tile, 163);
+        int[] farYs = randomCoordinates(misses, 16 * tile, 164);
+        TiledQuadTree evicting = new TiledQuadTree(side, side, tile, 16, source);
+        measure("tiled getColor 16x16 tiles, 16 resident", misses, () -> {
+            for (int i = 0; i < misses; i++) {
+                blackhole += evicting.getColor(farXs[i], farYs[i]);
+            }
+        });
+    }
+
+    /**
+     * A 256x256 thumbnail of a 2048x2048 photo-like tree, by decompressing the full image
+     * and averaging 8x8 blocks against decompress(maxDepth) from the cached averages; and
+     * the progressive format against the pre-order one, with how much of it has to be
+     * read before the thumbnail level is available.
+     */
+    private static void levelOfDetail() {
+        int[][] photo = photoImage(2048, 171);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(photo);
+        photo = null;
+        int thumbnail = 256 * 256;
+        measure("thumbnail 256 decompress + box filter", thumbnail, () -> {
+            int[][] full = tree.decompress();
+            int[][] small = new int[256][256];
+            for (int y = 0; y < 256; y++) {
+                for (int x = 0; x < 256; x++) {
+                    long[] sums = new long[4];
+                    for (int j = 8 * y; j < 8 * y + 8; j++) {
+                        for (int i = 8 * x; i < 8 * x + 8; i++) {
+                            for (int channel = 0; channel < 4; channel++) {
+                                sums[channel] += (full[j][i] >>> (8 * channel)) & 0xFF;
+                            }
+                        }
+                    }
+                    for (int channel = 0; channel < 4; channel++) {
+                        small[y][x] |= (int) ((sums[channel] + 32) / 64) << (8 * channel);
+                    }
+                }
+            }
+            blackhole += small[128][128];
+        });
+        //the first call on a tree computes the averages of every internal node, best of 3
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            QuadTreeNodeImpl cold = QuadTreeNodeImpl.buildFromIntArray(tree.decompress());
+            System.gc();
+            long start = System.nanoTime();
+            blackhole += cold.decompress(8)[128][128];
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-40s %10.2f ms%n", "thumbnail 256 decompress(8), cold", best / 1e6);
+        measure("thumbnail 256 decompress(8), cached", thumbnail,
+                () -> blackhole += tree.decompress(8)[128][128]);
+
+        ByteArrayOutputStream preOrder = new ByteArrayOutputStream();
+        ByteArrayOutputStream progressive = new ByteArrayOutputStream();
+        try {
+            QuadTreeCodec.write(tree, new DataOutputStream(preOrder));
+            QuadTreeCodec.writeProgressive(tree, new DataOutputStream(progressive));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] preOrderBytes = preOrder.toByteArray();
+        byte[] progressiveBytes = progressive.toByteArray();
+        System.out.printf("%-40s %10d bytes%n", "pre-order format", preOrderBytes.length);
+        System.out.printf("%-40s %10d bytes%n", "progressive format", progressiveBytes.length);
+        int nodes = tree.getSize();
+        measure("codec read pre-order", nodes, () -> {
+            try {
+                blackhole += QuadTreeCodec.read(
+                        new DataInputStream(new ByteArrayInputStream(preOrderBytes))).getSize();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        measure("codec read progressive", nodes, () -> {
+            try {
+                blackhole += QuadTreeCodec.readProgressive(new DataInputStream(
+                        new ByteArrayInputStream(progressiveBytes)), null).getSize();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        ByteArrayInputStream stream = new ByteArrayInputStream(progressiveBytes);
+        try {
+            QuadTreeCodec.readProgressive(new DataInputStream(stream), (preview, depth) -> {
+                if (depth == 8) {
+                    System.out.printf("%-40s %10d bytes%n", "read before the 256 level",
+                            progressiveBytes.length - stream.available());
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The pruner SimplePaint used to have: collapse by filling every pixel, then start over
+    private static void pruneTreeByRewrite(QuadTreeNode root, int depth) {
+        if (root == null || root.isLeaf()) {
+            return;
+        }
+        boolean combinable = true;
+        for (QuadTreeNode.QuadName quad : QuadTreeNode.QuadName.values()) {
+            combinable &= root.getQuadrant(quad) != null && root.getQuadrant(quad).isLeaf();
+        }
+        if (depth <= 0 && combinable) {
+            int r = 0, g = 0, b = 0;
+            for (QuadTreeNode.QuadName quad : QuadTreeNode.QuadName.values()) {
+                int color = root.getQuadrant(quad).getColor(0, 0);
+                r += color / 65536;
+                g += (color % 65536) / 256;
+                b += color % 256;
+            }
+            int average = (int) Math.round(r / 4.0) * 65536 + (int) Math.round(g / 4.0) * 256
+                    + (int) Math.round(b / 4.0);
+            for (int y = 0; y < root.getDimension(); y++) {
+                for (int x = 0; x < root.getDimension(); x++) {
+                    root.setColor(x, y, average);
+                }
+            }
+        } else {
+            for (QuadTreeNode.QuadName quad : QuadTreeNode.QuadName.values()) {
+                pruneTreeByRewrite(root.getQuadrant(quad), depth - 1);
+            }
+            if (depth <= 0) {
+                pruneTreeByRewrite(root, depth);
+            }
+        }
+    }
+
+    private static void runAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static QuadTreeNodeImpl readEncoded(Path file) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            return QuadTreeCodec.read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reports how far the heap grew above its level after a full collection while body
+     * ran once. Only meaningful when nothing else runs concurrently.
+     * @param label - what is being measured
+     * @param body - the work to measure
+     */
+    static void measurePeakHeap(String label, Runnable body) {
+        System.gc();
+        long before = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                memoryPool.resetPeakUsage();
+                before += memoryPool.getUsage().getUsed();
+            }
+        }
+        body.run();
+        long peak = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                peak += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf("%-40s %10.2f MB peak heap above baseline%n", label,
+                (peak - before) / 1e6);
+    }
+
+    /**
+     * Runs body a few times to warm up and then reports the mean time and allocated
+     * bytes per operation over the measured rounds.
+     * @param label - what is being measured
+     * @param operations - the number of operations one run of body performs
+     * @param body - the work to measure
+     */
+    static void measure(String label, long operations, Runnable body) {
+        long warmupStart = System.nanoTime();
+        for (int i = 0; i < WARMUP_ROUNDS || System.nanoTime() - warmupStart < WARMUP_NANOS; i++) {
+            body.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            body.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        double perRound = (double) MEASURED_ROUNDS * operations;
+        System.out.printf("%-40s %10.2f ns/op %10.2f Mop/s %10.2f B/op %10.2f ms/run%n",
+                label, elapsed / perRound, 1e3 * perRound / elapsed, allocated / perRound,
+                elapsed / 1e6 / MEASURED_ROUNDS);
+    }
+
+    // A square image of uniformly random colors below bound
+    static int[][] noiseImage(int dimension, int bound, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[dimension][dimension];
+        for (int[] row : image) {
+            for (int x = 0; x < dimension; x++) {
+                row[x] = random.nextInt(bound);
+            }
+        }
+        return image;
+    }
+
+    // A square image made of flat random-colored blocks, like a UI screenshot
+    static int[][] blockImage(int dimension, int block, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[dimension][dimension];
+        for (int by = 0; by < dimension; by += block) {
+            for (int bx = 0; bx < dimension; bx += block) {
+                int color = random.nextInt(0x01000000);
+                for (int y = by; y < Math.min(by + block, dimension); y++) {
+                    for (int x = bx; x < Math.min(bx + block, dimension); x++) {
+                        image[y][x] = color;
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    // A square image made of a few detailed tiles repeated at random, like a tiled map
+    static int[][] tiledImage(int dimension, int tile, int tiles, long seed) {
+        Random random = new Random(seed);
+        int[][][] patterns = new int[tiles][tile][tile];
+        for (int[][] pattern : patterns) {
+            for (int[] row : pattern) {
+                for (int x = 0; x < tile; x++) {
+                    row[x] = random.nextInt(0x01000000);
+                }
+            }
+        }
+        int[][] image = new int[dimension][dimension];
+        for (int y = 0; y < dimension; y += tile) {
+            for (int x = 0; x < dimension; x += tile) {
+                int[][] pattern = patterns[random.nextInt(tiles)];
+                for (int j = 0; j < tile; j++) {
+                    System.arraycopy(pattern[j], 0, image[y + j], x, tile);
+                }
+            }
+        }
+        return image;
+    }
+
+    // A square image of smooth gradients with some sensor noise and hard edges, like a photo
+    static int[][] photoImage(int dimension, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[dimension][dimension];
+        for (int y = 0; y < dimension; y++) {
+            for (int x = 0; x < dimension; x++) {
+                int red = (x * 256 / dimension + random.nextInt(3)) & 0xFF;
+                int green = (y * 256 / dimension + random.nextInt(3)) & 0xFF;
+                int blue = (x / 128 + y / 128) % 2 == 0 ? 40 : 200;
+                image[y][x] = red << 16 | green << 8 | blue;
+            }
+        }
+        return image;
+    }
+
+    static int[] randomCoordinates(int count, int bound, long seed) {
+        Random random = new Random(seed);
+        int[] coordinates = new int[count];
+        for (int i = 0; i < count; i++) {
+            coordinates[i] = random.nextInt(bound);
+        }
+        return coordinates;
+    }
+}
@@ -0,0 +1,442 @@
+// QuadTree
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary format for QuadTrees which keeps the compression instead of storing
+ * pixels.
+ * <p/>
+ * The nodes are written in pre-order (a node, then its top left, top right, bottom left
+ * and bottom right quadrants) as two streams:
+ * <pre>
+ *   int   magic ("QTC1")
+ *   byte  log2 of the dimension
+ *   int   number of nodes n
+ *   byte  structure[(n + 7) / 8]   one bit per node, 1 for internal, most significant first
+ *   byte  bytes per color b (1 - 4)
+ *   byte  colors[leaves * b]       the color of every leaf, big-endian
+ * </pre>
+ * The colors take the fewest bytes that hold every leaf color as an unsigned number, so
+ * images of a handful of indexed colors cost one byte per leaf. Writing walks the tree
+ * twice with an explicit stack and allocates nothing per node; reading needs the
+ * structure bits of the whole tree but streams the colors.
+ * <p/>
+ * The progressive format stores the nodes breadth-first instead, one level at a time,
+ * with the average color of every internal node next to the colors of the leaves:
+ * <pre>
+ *   int   magic ("QTP1")
+ *   byte  log2 of the dimension
+ *   int   number of nodes n
+ *   for every level, starting with the root alone and then the children of the
+ *   internal nodes of the level above, in order:
+ *     byte  structure[(m + 7) / 8]  one bit per node of the level, 1 for internal
+ *     byte  bytes per color b (1 - 4)
+ *     byte  colors[m * b]           the color of every leaf, the average of every
+ *                                   internal node
+ * </pre>
+ * Every level read gives a complete preview, the image at that level of detail, so a
+ * coarse image can be shown long before the whole tree arrives. It costs the colors of
+ * the internal nodes, about a third more color bytes than the pre-order format.
+ */
+public final class QuadTreeCodec {
+
+    /**
+     * The first four bytes of every encoded tree.
+     */
+    public static final int MAGIC = 0x51544331;
+
+    /**
+     * The first four bytes of every tree in the progressive format.
+     */
+    public static final int PROGRESSIVE_MAGIC = 0x51545031;
+
+    //a tree has at most 31 levels, and pre-order keeps at most 3 siblings per level waiting
+    private static final int STACK_SIZE = 3 * 31 + 1;
+    private static final int CHUNK = 8192;
+
+    private QuadTreeCodec() {
+    }
+
+    /**
+     * Writes a tree in the compact format.
+     *
+     * @param tree the tree to write
+     * @param out where to write it
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if tree or out is null
+     */
+    //Runtime: O(n)
+    public static void write(QuadTreeNode tree, DataOutput out) throws IOException {
+        if (tree == null || out == null) {
+            throw new IllegalArgumentException();
+        }
+        int nodes = tree.getSize();
+        out.writeInt(MAGIC);
+        out.writeByte(Integer.numberOfTrailingZeros(tree.getDimension()));
+        out.writeInt(nodes);
+
+        QuadTreeNode[] stack = new QuadTreeNode[STACK_SIZE];
+        byte[] chunk = new byte[CHUNK];
+        int length = 0;
+        int bits = 0;
+        int bitCount = 0;
+        int colorBytes = 1;
+        int top = 0;
+        stack[top++] = tree;
+        while (top > 0) {
+            QuadTreeNode node = stack[--top];
+            boolean leaf = node.isLeaf();
+            bits = bits << 1 | (leaf ? 0 : 1);
+            if (++bitCount == 8) {
+                if (length == CHUNK) {
+                    out.write(chunk, 0, length);
+                    length = 0;
+                }
+                chunk[length++] = (byte) bits;
+                bits = 0;
+                bitCount = 0;
+            }
+            if (leaf) {
+                colorBytes = Math.max(colorBytes, bytesFor(node.getColor(0, 0)));
+            } else {
+                push(stack, top, node);
+                top += 4;
+            }
+        }
+        if (bitCount > 0) {
+            if (length == CHUNK) {
+                out.write(chunk, 0, length);
+                length = 0;
+            }
+            chunk[length++] = (byte) (bits << (8 - bitCount));
+        }
+        out.write(chunk, 0, length);
+        out.writeByte(colorBytes);
+
+        //second pass for the colors of the leaves, in the same order
+        length = 0;
+        stack[top++] = tree;
+        while (top > 0) {
+            QuadTreeNode node = stack[--top];
+            if (!node.isLeaf()) {
+                push(stack, top, node);
+                top += 4;
+                continue;
+            }
+            if (length + colorBytes > CHUNK) {
+                out.write(chunk, 0, length);
+                length = 0;
+            }
+            int color = node.getColor(0, 0);
+            for (int shift = 8 * (colorBytes - 1); shift >= 0; shift -= 8) {
+                chunk[length++] = (byte) (color >>> shift);
+            }
+        }
+        out.write(chunk, 0, length);
+    }
+
+    // Pushes the quadrants of node so they are popped top left first
+    private static void push(QuadTreeNode[] stack, int top, QuadTreeNode node) {
+        stack[top] = node.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT);
+        stack[top + 1] = node.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT);
+        stack[top + 2] = node.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT);
+        stack[top + 3] = node.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT);
+    }
+
+    // Number of bytes needed to store color as an unsigned number, negative colors need 4
+    private static int bytesFor(int color) {
+        return Math.max(1, (32 - Integer.numberOfLeadingZeros(color) + 7) / 8);
+    }
+
+    /**
+     * Callback for {@link #readProgressive(DataInput, LevelListener)}.
+     */
+    @FunctionalInterface
+    public interface LevelListener {
+        /**
+         * Called after each level is read, with the tree read so far: its internal nodes
+         * of the last level read are still leaves of their average color, so
+         * {@code tree.decompress()} is the image at that level of detail scaled to full
+         * size. The tree is refined in place once this returns, so it must be copied or
+         * decompressed to be kept.
+         *
+         * @param tree  the tree read so far
+         * @param depth the depth of the level just read, 0 for the root
+         */
+        void levelRead(QuadTreeNodeImpl tree, int depth);
+    }
+
+    /**
+     * Writes a tree in the progressive format, breadth-first with the average color of
+     * every internal node, so it can be read one level of detail at a time by
+     * {@link #readProgressive(DataInput, LevelListener)}.
+     *
+     * @param tree the tree to write
+     * @param out where to write it
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if tree or out is null
+     */
+    //Runtime: O(n) when the tree caches its averages
+    public static void writeProgressive(QuadTreeNode tree, DataOutput out) throws IOException {
+        if (tree == null || out == null) {
+            throw new IllegalArgumentException();
+        }
+        out.writeInt(PROGRESSIVE_MAGIC);
+        out.writeByte(Integer.numberOfTrailingZeros(tree.getDimension()));
+        out.writeInt(tree.getSize());
+
+        QuadTreeNode.QuadName[] quadrants = QuadTreeNode.QuadName.values();
+        List<QuadTreeNode> level = new ArrayList<>();
+        level.add(tree);
+        byte[] chunk = new byte[CHUNK];
+        while (!level.isEmpty()) {
+            int count = level.size();
+            byte[] structure = new byte[(count + 7) / 8];
+            int[] colors = new int[count];
+            int colorBytes = 1;
+            List<QuadTreeNode> next = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                QuadTreeNode node = level.get(i);
+                if (node.isLeaf()) {
+                    colors[i] = node.getColor(0, 0);
+                } else {
+                    structure[i >>> 3] |= (byte) (0x80 >>> (i & 7));
+                    colors[i] = node.getColorAtLevel(0, 0, 0);
+                    for (QuadTreeNode.QuadName quadrant : quadrants) {
+                        next.add(node.getQuadrant(quadrant));
+                    }
+                }
+                colorBytes = Math.max(colorBytes, bytesFor(colors[i]));
+            }
+            out.write(structure);
+            out.writeByte(colorBytes);
+            int length = 0;
+            for (int color : colors) {
+                if (length + colorBytes > CHUNK) {
+                    out.write(chunk, 0, length);
+                    length = 0;
+                }
+                for (int shift = 8 * (colorBytes - 1); shift >= 0; shift -= 8) {
+                    chunk[length++] = (byte) (color >>> shift);
+                }
+            }
+            out.write(chunk, 0, length);
+            level = next;
+        }
+    }
+
+    /**
+     * Reads a tree written by {@link #writeProgressive(QuadTreeNode, DataOutput)} one
+     * level at a time, calling the listener with a preview after every level.
+     *
+     * @param in where to read the tree from
+     * @param listener called after every level, may be null
+     * @return the tree
+     * @throws IOException if reading fails
+     * @throws StreamCorruptedException if the data is not a valid progressive tree
+     * @throws IllegalArgumentException if in is null
+     */
+    //Runtime: O(n log n), every split updates the node counts up to the root
+    public static QuadTreeNodeImpl readProgressive(DataInput in, LevelListener listener)
+            throws IOException {
+        if (in == null) {
+            throw new IllegalArgumentException();
+        }
+        if (in.readInt() != PROGRESSIVE_MAGIC) {
+            throw new StreamCorruptedException("Not a progressive QuadTree");
+        }
+        int level = in.readByte();
+        int nodes = in.readInt();
+        if (level < 0 || level > 30 || nodes < 1 || nodes % 4 != 1) {
+            throw new StreamCorruptedException("Invalid QuadTree header");
+        }
+        QuadTreeNodeImpl root = null;
+        QuadTreeNodeImpl[] parents = new QuadTreeNodeImpl[0]; //internal nodes of the level above
+        int size = 1 << level;
+        int count = 1;
+        int read = 0;
+        for (int depth = 0; count > 0; depth++) {
+            byte[] structure = readStructure(in, (count + 7) / 8);
+            int colorBytes = in.readByte();
+            if (colorBytes < 1 || colorBytes > 4) {
+                throw new StreamCorruptedException("Invalid color width " + colorBytes);
+            }
+            byte[] chunk = new byte[CHUNK - CHUNK % colorBytes];
+            int position = 0;
+            int limit = 0;
+            QuadTreeNodeImpl[] current = new QuadTreeNodeImpl[count];
+            int internal = 0;
+            for (int i = 0; i < count; i++) {
+                if (position == limit) {
+                    limit = (int) Math.min(chunk.length, (long) (count - i) * colorBytes);
+                    in.readFully(chunk, 0, limit);
+                    position = 0;
+                }
+                int color = 0;
+                for (int b = 0; b < colorBytes; b++) {
+                    color = color << 8 | (chunk[position++] & 0xFF);
+                }
+                current[i] = new QuadTreeNodeImpl(color, size);
+                if ((structure[i >>> 3] & (0x80 >>> (i & 7))) != 0) {
+                    if (size == 1) {
+                        throw new StreamCorruptedException("A single pixel cannot be split");
+                    }
+                    internal++;
+                }
+            }
+            if (root == null) {
+                root = current[0];
+            }
+            for (int j = 0; j < parents.length; j++) {
+                parents[j].refine(current[4 * j], current[4 * j + 1], current[4 * j + 2],
+                        current[4 * j + 3]);
+            }
+            read += count;
+            parents = new QuadTreeNodeImpl[internal];
+            for (int i = 0, j = 0; i < count; i++) {
+                if ((structure[i >>> 3] & (0x80 >>> (i & 7))) != 0) {
+                    parents[j++] = current[i];
+                }
+            }
+            if (listener != null) {
+                listener.levelRead(root, depth);
+            }
+            if (4L * internal > nodes - read) {
+                throw new StreamCorruptedException("Structure does not match the node count");
+            }
+            count = 4 * internal;
+            size /= 2;
+        }
+        if (read != nodes) {
+            throw new StreamCorruptedException("Structure does not match the node count");
+        }
+        return root;
+    }
+
+    /**
+     * Reads a tree written by {@link #write(QuadTreeNode, DataOutput)}.
+     *
+     * @param in where to read the tree from
+     * @return the tree
+     * @throws IOException if reading fails
+     * @throws StreamCorruptedException if the data is not a valid encoded tree
+     * @throws IllegalArgumentException if in is null
+     */
+    //Runtime: O(n)
+    public static QuadTreeNodeImpl read(DataInput in) throws IOException {
+        if (in == null) {
+            throw new IllegalArgumentException();
+        }
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not an encoded QuadTree");
+        }
+        int level = in.readByte();
+        int nodes = in.readInt();
+        if (level < 0 || level > 30 || nodes < 1 || nodes % 4 != 1) {
+            throw new StreamCorruptedException("Invalid QuadTree header");
+        }
+        byte[] structure = readStructure(in, (int) ((nodes + 7L) / 8));
+        int colorBytes = in.readByte();
+        if (colorBytes < 1 || colorBytes > 4) {
+            throw new StreamCorruptedException("Invalid color width " + colorBytes);
+        }
+        Decoder decoder = new Decoder(structure, nodes, in, colorBytes);
+        QuadTreeNodeImpl tree = decoder.decode(1 << level);
+        if (decoder.next != nodes) {
+            throw new StreamCorruptedException("Structure does not match the node count");
+        }
+        return tree;
+    }
+
+    /**
+     * Reads the structure bits, growing the buffer only as the bytes arrive, so a corrupt
+     * node count cannot allocate much more than the data actually holds.
+     * @param in - where to read the bits from
+     * @param length - the number of bytes of structure bits
+     * @return the structure bits
+     * @throws IOException if reading fails, an EOFException if there are fewer bytes
+     */
+    private static byte[] readStructure(DataInput in, int length) throws IOException {
+        byte[] structure = new byte[Math.min(length, CHUNK)];
+        int read = 0;
+        while (read < length) {
+            if (read == structure.length) {
+                structure = Arrays.copyOf(structure, (int) Math.min(length, 2L * read));
+            }
+            int chunk = Math.min(structure.length - read, CHUNK);
+            in.readFully(structure, read, chunk);
+            read += chunk;
+        }
+        return structure;
+    }
+
+    /**
+     * Rebuilds the nodes from the structure bits, reading the leaf colors in chunks as
+     * they are needed.
+     */
+    private static final class Decoder {
+        private final byte[] structure;
+        private final int nodes;
+        private final DataInput in;
+        private final int colorBytes;
+        private final byte[] chunk;
+        private int next; //index of the next node in pre-order
+        private int position; //next unread byte of chunk
+        private int limit; //number of bytes in chunk
+        private long colorsLeft; //colors not yet read into chunk
+
+        Decoder(byte[] structure, int nodes, DataInput in, int colorBytes) {
+            this.structure = structure;
+            this.nodes = nodes;
+            this.in = in;
+            this.colorBytes = colorBytes;
+            this.chunk = new byte[CHUNK - CHUNK % colorBytes];
+            this.colorsLeft = (3L * nodes + 1) / 4;
+        }
+
+        /**
+         * Decodes the next node and its subtree
+         * @param size - the length and width of the node
+         * @return the decoded node
+         * @throws IOException if the colors cannot be read or the structure is invalid
+         */
+        QuadTreeNodeImpl decode(int size) throws IOException {
+            if (next >= nodes) {
+                throw new StreamCorruptedException("Structure does not match the node count");
+            }
+            int index = next++;
+            if ((structure[index >>> 3] & (0x80 >>> (index & 7))) == 0) {
+                return new QuadTreeNodeImpl(readColor(), size);
+            }
+            if (size == 1) {
+                throw new StreamCorruptedException("A single pixel cannot be split");
+            }
+            int half = size / 2;
+            QuadTreeNodeImpl topLeft = decode(half);
+            QuadTreeNodeImpl topRight = decode(half);
+            QuadTreeNodeImpl bottomLeft = decode(half);
+            QuadTreeNodeImpl bottomRight = decode(half);
+            return new QuadTreeNodeImpl(size, topLeft, topRight, bottomLeft, bottomRight);
+        }
+
+        private int readColor() throws IOException {
+            if (position == limit) {
+                limit = (int) Math.min(chunk.length, colorsLeft * colorBytes);
+                in.readFully(chunk, 0, limit);
+                colorsLeft -= limit / colorBytes;
+                position = 0;
+            }
+            int color = 0;
+            for (int i = 0; i < colorBytes; i++) {
+                color = color << 8 | (chunk[position++] & 0xFF);
+            }
+            return color;
+        }
+    }
+}
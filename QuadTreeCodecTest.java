@@ -0,0 +1,243 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+public class QuadTreeCodecTest {
+
+    private static byte[] encode(QuadTreeNode tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QuadTreeCodec.write(tree, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static QuadTreeNodeImpl decode(byte[] bytes) throws IOException {
+        return QuadTreeCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static byte[] encodeProgressive(QuadTreeNode tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QuadTreeCodec.writeProgressive(tree, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static QuadTreeNodeImpl decodeProgressive(byte[] bytes,
+                                                      QuadTreeCodec.LevelListener listener)
+            throws IOException {
+        return QuadTreeCodec.readProgressive(
+                new DataInputStream(new ByteArrayInputStream(bytes)), listener);
+    }
+
+    // Random image of flat blocks with some noise, so the tree has leaves of every size
+    private static int[][] randomImage(int dimension, int colorBound, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[dimension][dimension];
+        for (int y = 0; y < dimension; y++) {
+            for (int x = 0; x < dimension; x++) {
+                image[y][x] = random.nextInt(8) == 0 ? random.nextInt(colorBound)
+                        : (x / 16 + y / 8) % 3;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Test a tree survives a round trip with the same pixels and structure
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        int[][][] images = {{{7}}, {{1, 1}, {1, 1}}, {{1, 2}, {3, 4}},
+            randomImage(64, 5, 1), randomImage(512, 0x00FFFFFF, 2)};
+        for (int[][] image : images) {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            QuadTreeNodeImpl decoded = decode(encode(tree));
+            assertArrayEquals(image, decoded.decompress());
+            assertEquals(tree.getSize(), decoded.getSize());
+            assertEquals(tree.getDimension(), decoded.getDimension());
+        }
+    }
+
+    @Test
+    public void testRoundTripNegativeColors() throws IOException {
+        int[][] image = {{-1, -0xFFFFFF}, {Integer.MIN_VALUE, Integer.MAX_VALUE}};
+        assertArrayEquals(image, decode(encode(QuadTreeNodeImpl.buildFromIntArray(image)))
+                .decompress());
+    }
+
+    @Test
+    public void testWritesOtherImplementations() throws IOException {
+        int[][] image = randomImage(128, 300, 3);
+        byte[] expected = encode(QuadTreeNodeImpl.buildFromIntArray(image));
+        assertArrayEquals(expected, encode(LinearQuadTreeNode.buildFromIntArray(image)));
+        assertArrayEquals(expected, encode(PooledQuadTreeNode.buildFromIntArray(image)));
+    }
+
+    /**
+     * Test the exact size: header, one bit per node and the narrowest color width
+     */
+    @Test
+    public void testEncodedLength() throws IOException {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}});
+        //9 nodes: 2 structure bytes, 7 leaves of one byte each
+        assertEquals(4 + 1 + 4 + 2 + 1 + 7, encode(tree).length);
+
+        tree.setColor(0, 0, 0x10000);
+        //the top left quadrant is split into 4 more leaves, now 3 bytes per color
+        assertEquals(4 + 1 + 4 + 2 + 1 + 3 * 10, encode(tree).length);
+    }
+
+    @Test
+    public void testBytesPerNodeOfBlockImage() throws IOException {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(randomImage(256, 3, 4));
+        double bytesPerNode = (double) encode(tree).length / tree.getSize();
+        assertTrue(bytesPerNode < 1.0);
+    }
+
+    @Test (expected = StreamCorruptedException.class)
+    public void testReadBadMagic() throws IOException {
+        byte[] bytes = encode(QuadTreeNodeImpl.buildFromIntArray(new int[][]{{1}}));
+        bytes[0] = 0;
+        decode(bytes);
+    }
+
+    @Test (expected = StreamCorruptedException.class)
+    public void testReadCorruptStructure() throws IOException {
+        byte[] bytes = encode(QuadTreeNodeImpl.buildFromIntArray(new int[][]{{1, 2}, {3, 4}}));
+        //mark the first pixel as internal
+        bytes[9] |= 0x40;
+        decode(bytes);
+    }
+
+    /**
+     * Test a header claiming a huge tree fails at the end of the data instead of
+     * allocating the structure bits of the whole claimed tree up front
+     */
+    @Test (expected = EOFException.class)
+    public void testReadHugeNodeCount() throws IOException {
+        byte[] bytes = encode(QuadTreeNodeImpl.buildFromIntArray(new int[][]{{1, 2}, {3, 4}}));
+        //about 268 MB of structure bits for the largest count that is 1 modulo 4
+        bytes[5] = 0x7F;
+        bytes[6] = (byte) 0xFF;
+        bytes[7] = (byte) 0xFF;
+        bytes[8] = (byte) 0xFD;
+        decode(bytes);
+    }
+
+    @Test (expected = StreamCorruptedException.class)
+    public void testReadProgressiveHugeNodeCount() throws IOException {
+        byte[] bytes = encodeProgressive(
+                QuadTreeNodeImpl.buildFromIntArray(new int[][]{{1, 2}, {3, 4}}));
+        bytes[5] = 0x7F;
+        bytes[6] = (byte) 0xFF;
+        bytes[7] = (byte) 0xFF;
+        bytes[8] = (byte) 0xFD;
+        //levels are only as large as the level above allows, so the count is found wrong
+        //once the real levels end
+        decodeProgressive(bytes, null);
+    }
+
+    @Test (expected = IOException.class)
+    public void testReadTruncated() throws IOException {
+        byte[] bytes = encode(QuadTreeNodeImpl.buildFromIntArray(randomImage(32, 5, 5)));
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        decode(truncated);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testWriteNullTree() throws IOException {
+        encode(null);
+    }
+
+    @Test
+    public void testProgressiveRoundTrip() throws IOException {
+        int[][][] images = {{{7}}, {{1, 1}, {1, 1}}, {{-1, -0xFFFFFF}, {Integer.MIN_VALUE, 0}},
+            randomImage(64, 5, 6), randomImage(512, 0x00FFFFFF, 7)};
+        for (int[][] image : images) {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            QuadTreeNodeImpl decoded = decodeProgressive(encodeProgressive(tree), null);
+            assertArrayEquals(image, decoded.decompress());
+            assertEquals(tree.getSize(), decoded.getSize());
+            assertEquals(tree.getDimension(), decoded.getDimension());
+        }
+    }
+
+    /**
+     * Test the tree read after each level is the image at that level of detail
+     */
+    @Test
+    public void testProgressivePreviews() throws IOException {
+        int[][] image = randomImage(128, 0x00FFFFFF, 8);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        List<int[][]> previews = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        decodeProgressive(encodeProgressive(tree), (preview, depth) -> {
+            assertEquals(previews.size(), depth);
+            previews.add(preview.decompress(depth));
+            sizes.add(preview.getSize());
+        });
+        assertEquals(8, previews.size());
+        for (int depth = 0; depth < previews.size(); depth++) {
+            assertArrayEquals(tree.decompress(depth), previews.get(depth));
+            assertTrue(depth == 0 || sizes.get(depth) > sizes.get(depth - 1));
+        }
+        assertEquals(tree.getSize(), (int) sizes.get(7));
+    }
+
+    @Test
+    public void testProgressiveEncodedLength() throws IOException {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}});
+        //per level a structure byte, the color width and a byte per node
+        assertEquals(4 + 1 + 4 + (1 + 1 + 1) + (1 + 1 + 4) + (1 + 1 + 4),
+                encodeProgressive(tree).length);
+    }
+
+    @Test
+    public void testProgressiveWritesOtherImplementations() throws IOException {
+        int[][] image = randomImage(128, 300, 9);
+        byte[] expected = encodeProgressive(QuadTreeNodeImpl.buildFromIntArray(image));
+        assertArrayEquals(expected, encodeProgressive(LinearQuadTreeNode.buildFromIntArray(image)));
+        assertArrayEquals(expected,
+                encodeProgressive(PersistentQuadTreeNode.buildFromIntArray(image)));
+    }
+
+    @Test (expected = StreamCorruptedException.class)
+    public void testReadProgressiveBadMagic() throws IOException {
+        decodeProgressive(encode(QuadTreeNodeImpl.buildFromIntArray(new int[][]{{1}})), null);
+    }
+
+    @Test (expected = StreamCorruptedException.class)
+    public void testReadProgressiveCorruptStructure() throws IOException {
+        byte[] bytes = encodeProgressive(
+                QuadTreeNodeImpl.buildFromIntArray(new int[][]{{1, 2}, {3, 4}}));
+        //mark the first pixel as internal
+        bytes[12] |= 0x80;
+        decodeProgressive(bytes, null);
+    }
+
+    @Test (expected = IOException.class)
+    public void testReadProgressiveTruncated() throws IOException {
+        byte[] bytes = encodeProgressive(
+                QuadTreeNodeImpl.buildFromIntArray(randomImage(32, 5, 10)));
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        decodeProgressive(truncated, null);
+    }
+}
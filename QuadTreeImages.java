@@ -0,0 +1,223 @@
+// QuadTree
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Conversions between {@link BufferedImage}s and {@link QuadTreeNodeImpl} trees which
+ * work straight on the image raster instead of going through a full {@code int[][]} copy.
+ */
+public final class QuadTreeImages {
+
+    /**
+     * Height of the bands of rows read from the raster at a time, which is also the
+     * dimension of the blocks built from one band.
+     */
+    private static final int BAND = 64;
+
+    private QuadTreeImages() {
+    }
+
+    /**
+     * Builds a {@link QuadTreeNodeImpl} from an image, reading the raster band by band.
+     * <p/>
+     * The tree has the smallest power of two dimension that contains the image, and the
+     * area outside of the image is black, exactly like building from an {@code int[][]}
+     * padded with zeroes. The padding is never materialized though: blocks outside of the
+     * image become single leaves without being read, and only one band of
+     * {@code 64 x width} pixels is held in memory at a time.
+     *
+     * @param image the image to compress
+     * @return the compressed image
+     * @throws IllegalArgumentException if image is null
+     */
+    public static QuadTreeNodeImpl buildFromImage(BufferedImage image) {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int dimension = 1;
+        while (dimension < Math.max(width, height)) {
+            dimension *= 2;
+        }
+        int block = Math.min(BAND, dimension);
+        int blocksPerRow = (width + block - 1) / block;
+        int blockRows = (height + block - 1) / block;
+        //width of the band rounded up to whole blocks, the padding columns stay zero
+        int stride = blocksPerRow * block;
+        int[] band = new int[stride * block];
+        QuadTreeNodeImpl[] blocks = new QuadTreeNodeImpl[blocksPerRow * blockRows];
+        for (int row = 0; row < blockRows; row++) {
+            int y = row * block;
+            int rows = Math.min(block, height - y);
+            readBand(image, y, rows, band, stride);
+            if (rows < block) {
+                //padding rows of the last band
+                Arrays.fill(band, rows * stride, band.length, 0);
+            }
+            for (int column = 0; column < blocksPerRow; column++) {
+                int offset = column * block;
+                QuadTreeNodeImpl node = buildBlock(band, stride, block, offset, 0);
+                blocks[row * blocksPerRow + column] = node != null ? node
+                        : new QuadTreeNodeImpl(band[offset], block);
+            }
+        }
+        return joinBlocks(blocks, blocksPerRow, blockRows, block, dimension, 0, 0);
+    }
+
+    /**
+     * Decompresses a tree into an image of type {@code TYPE_INT_RGB} or
+     * {@code TYPE_INT_ARGB}, writing straight into its {@link DataBufferInt}. The image
+     * may be smaller than the tree, for a tree built from an image that had to be padded,
+     * in which case only its upper-left part is written. Nothing is allocated, so one
+     * image can be reused as the frame buffer for repeated decompression.
+     *
+     * @param tree the tree to decompress
+     * @param image the image to write into
+     * @throws IllegalArgumentException if tree or image is null, the image is larger than
+     *                                  the tree or it is not backed by packed ints
+     */
+    public static void decompress(QuadTreeNodeImpl tree, BufferedImage image) {
+        if (tree == null || image == null || !isPackedInt(image) ||
+                image.getWidth() > tree.getDimension() || image.getHeight() > tree.getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        Raster raster = image.getRaster();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        tree.decompress(data, dataOffset(raster, scanline), scanline,
+                image.getWidth(), image.getHeight());
+    }
+
+    // Whether the pixels of the image are packed ints in a single DataBufferInt
+    private static boolean isPackedInt(BufferedImage image) {
+        Raster raster = image.getRaster();
+        int type = image.getType();
+        return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferInt;
+    }
+
+    // Index of pixel (0, 0) of a packed int raster in its data array
+    private static int dataOffset(Raster raster, int scanline) {
+        return raster.getDataBuffer().getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * scanline
+                + (raster.getMinX() - raster.getSampleModelTranslateX());
+    }
+
+    /**
+     * Copies rows [y, y + rows) of the image into band, converting every pixel the way
+     * the rest of the program expects ({@code rgb % 0x1000000}).
+     * @param image - the image to read
+     * @param y - the first row to read
+     * @param rows - the number of rows to read
+     * @param band - the destination, with stride ints per row
+     * @param stride - the row length of band
+     */
+    private static void readBand(BufferedImage image, int y, int rows, int[] band, int stride) {
+        int width = image.getWidth();
+        if (isPackedInt(image)) {
+            //fast path: read the packed pixels straight out of the data buffer
+            Raster raster = image.getRaster();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int scanline =
+                    ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int start = dataOffset(raster, scanline);
+            int alpha = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+            for (int j = 0; j < rows; j++) {
+                int source = start + (y + j) * scanline;
+                int target = j * stride;
+                for (int i = 0; i < width; i++) {
+                    band[target + i] = (data[source + i] | alpha) % 0x1000000;
+                }
+            }
+        } else {
+            image.getRGB(0, y, width, rows, band, 0, stride);
+            for (int j = 0; j < rows; j++) {
+                for (int i = j * stride; i < j * stride + width; i++) {
+                    band[i] %= 0x1000000;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the block of band starting at (x, y). Like QuadTreeNodeImpl's own build,
+     * uniform quadrants are not materialized but returned as null, their color being
+     * the color of their upper-left pixel.
+     * @param band - the pixels of the band
+     * @param stride - the row length of band
+     * @param size - the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     * @return the quadrant, or null if it has a single color
+     */
+    private static QuadTreeNodeImpl buildBlock(int[] band, int stride, int size, int x, int y) {
+        if (size == 1) {
+            return null;
+        }
+        int half = size / 2;
+        QuadTreeNodeImpl topLeft = buildBlock(band, stride, half, x, y);
+        QuadTreeNodeImpl topRight = buildBlock(band, stride, half, x + half, y);
+        QuadTreeNodeImpl bottomLeft = buildBlock(band, stride, half, x, y + half);
+        QuadTreeNodeImpl bottomRight = buildBlock(band, stride, half, x + half, y + half);
+        int color = band[y * stride + x];
+        if (topLeft == null && topRight == null && bottomLeft == null && bottomRight == null
+                && band[y * stride + x + half] == color
+                && band[(y + half) * stride + x] == color
+                && band[(y + half) * stride + x + half] == color) {
+            return null;
+        }
+        return new QuadTreeNodeImpl(size,
+                topLeft != null ? topLeft : new QuadTreeNodeImpl(color, half),
+                topRight != null ? topRight
+                        : new QuadTreeNodeImpl(band[y * stride + x + half], half),
+                bottomLeft != null ? bottomLeft
+                        : new QuadTreeNodeImpl(band[(y + half) * stride + x], half),
+                bottomRight != null ? bottomRight
+                        : new QuadTreeNodeImpl(band[(y + half) * stride + x + half], half));
+    }
+
+    /**
+     * Joins the built blocks into the quadrant at (x, y). Quadrants which lie completely
+     * outside of the image are padding and become a single black leaf.
+     * @param blocks - the blocks in row-major order
+     * @param blocksPerRow - the number of blocks per row
+     * @param blockRows - the number of rows of blocks
+     * @param block - the dimension of a block
+     * @param size - the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     * @return the quadrant
+     */
+    private static QuadTreeNodeImpl joinBlocks(QuadTreeNodeImpl[] blocks, int blocksPerRow,
+                                               int blockRows, int block, int size,
+                                               int x, int y) {
+        if (x >= blocksPerRow * block || y >= blockRows * block) {
+            return new QuadTreeNodeImpl(0, size);
+        }
+        if (size == block) {
+            return blocks[(y / block) * blocksPerRow + x / block];
+        }
+        int half = size / 2;
+        QuadTreeNodeImpl topLeft =
+                joinBlocks(blocks, blocksPerRow, blockRows, block, half, x, y);
+        QuadTreeNodeImpl topRight =
+                joinBlocks(blocks, blocksPerRow, blockRows, block, half, x + half, y);
+        QuadTreeNodeImpl bottomLeft =
+                joinBlocks(blocks, blocksPerRow, blockRows, block, half, x, y + half);
+        QuadTreeNodeImpl bottomRight =
+                joinBlocks(blocks, blocksPerRow, blockRows, block, half, x + half, y + half);
+        int color = topLeft.getColor(0, 0);
+        if (topLeft.isLeaf() && topRight.isLeaf() && bottomLeft.isLeaf()
+                && bottomRight.isLeaf() && topRight.getColor(0, 0) == color
+                && bottomLeft.getColor(0, 0) == color && bottomRight.getColor(0, 0) == color) {
+            return new QuadTreeNodeImpl(color, size);
+        }
+        return new QuadTreeNodeImpl(size, topLeft, topRight, bottomLeft, bottomRight);
+    }
+}
@@ -0,0 +1,97 @@
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+public class QuadTreeImagesTest {
+
+    // Random image of flat blocks with some noise, so the tree has leaves of every size
+    private static BufferedImage randomImage(int width, int height, int type, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb = random.nextInt(10) == 0 ? random.nextInt()
+                        : 0xFF000000 | ((x / 16 + y / 16) % 3) * 0x404040;
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    // The padded int[][] the image used to be copied into before building
+    private static int[][] padded(BufferedImage image) {
+        int dimension = 1;
+        while (dimension < Math.max(image.getWidth(), image.getHeight())) {
+            dimension *= 2;
+        }
+        int[][] imageData = new int[dimension][dimension];
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                imageData[y][x] = image.getRGB(x, y) % 0x1000000;
+            }
+        }
+        return imageData;
+    }
+
+    /**
+     * Test the streaming build matches building from the padded array
+     */
+    @Test
+    public void testBuildFromImageMatchesPaddedArray() {
+        int[][] sizes = {{1, 1}, {3, 5}, {64, 64}, {100, 37}, {130, 200}, {257, 64}};
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR};
+        for (int[] size : sizes) {
+            for (int type : types) {
+                BufferedImage image = randomImage(size[0], size[1], type, 121);
+                int[][] expected = padded(image);
+                QuadTreeNodeImpl tree = QuadTreeImages.buildFromImage(image);
+                assertArrayEquals(expected, tree.decompress());
+                assertEquals(QuadTreeNodeImpl.buildFromIntArray(expected).getSize(),
+                        tree.getSize());
+            }
+        }
+    }
+
+    @Test
+    public void testBuildFromImagePaddingIsOneLeafPerQuadrant() {
+        BufferedImage image = new BufferedImage(300, 10, BufferedImage.TYPE_INT_RGB);
+        QuadTreeNodeImpl tree = QuadTreeImages.buildFromImage(image);
+        assertEquals(512, tree.getDimension());
+        assertEquals(1, tree.getSize());
+    }
+
+    /**
+     * Test decompressing into an image gives back the image
+     */
+    @Test
+    public void testDecompressIntoImage() {
+        for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}) {
+            BufferedImage image = randomImage(100, 37, type, 121);
+            QuadTreeNodeImpl tree = QuadTreeImages.buildFromImage(image);
+            BufferedImage frame = new BufferedImage(100, 37, type);
+            QuadTreeImages.decompress(tree, frame);
+            //the tree stores the colors converted with rgb % 0x1000000
+            BufferedImage expected = new BufferedImage(100, 37, type);
+            for (int y = 0; y < 37; y++) {
+                for (int x = 0; x < 100; x++) {
+                    expected.setRGB(x, y, image.getRGB(x, y) % 0x1000000);
+                    assertEquals(expected.getRGB(x, y), frame.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testDecompressIntoByteImage() {
+        QuadTreeImages.decompress(QuadTreeNodeImpl.buildFromIntArray(new int[4][4]),
+                new BufferedImage(4, 4, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testBuildFromImageNull() {
+        QuadTreeImages.buildFromImage(null);
+    }
+}
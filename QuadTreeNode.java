@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * CIS 121, QuadTree Compression
  * <p>
@@ -48,6 +50,317 @@ public interface QuadTreeNode {
      */
     void setColor(int x, int y, int color);
 
+    /**
+     * Sets the colors of a batch of pixels, {@code (xs[i], ys[i])} getting {@code colors[i]}.
+     * The result is the same as calling {@link #setColor(int, int, int)} for every index in
+     * order, so when a pixel occurs more than once its last color wins.
+     * <p/>
+     * The default implementation does exactly that; implementations should override it to
+     * apply the whole batch in a single traversal.
+     *
+     * @param xs     the {@code x}-coordinates
+     * @param ys     the {@code y}-coordinates
+     * @param colors the colors the pixels should be set to
+     * @throws IllegalArgumentException if the arrays are null or of different lengths,
+     *                                  or any coordinate is out of bounds
+     */
+    default void setColors(int[] xs, int[] ys, int[] colors) {
+        if (xs == null || ys == null || colors == null ||
+                xs.length != ys.length || xs.length != colors.length) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < xs.length; i++) {
+            if (xs[i] < 0 || xs[i] >= getDimension() || ys[i] < 0 || ys[i] >= getDimension()) {
+                throw new IllegalArgumentException();
+            }
+        }
+        for (int i = 0; i < xs.length; i++) {
+            setColor(xs[i], ys[i], colors[i]);
+        }
+    }
+
+    /**
+     * Sets the color of every pixel in the rectangle with upper-left corner {@code (x, y)}
+     * and the given width and height, relative to the node this method is called on.
+     * <p/>
+     * The same rules about merging apply as for {@link #setColor(int, int, int)}. The
+     * default implementation calls setColor for every pixel; implementations should
+     * override it to collapse the subtrees that lie fully inside the rectangle at once.
+     *
+     * @param x      the {@code x}-coordinate of the upper-left corner
+     * @param y      the {@code y}-coordinate of the upper-left corner
+     * @param width  the width of the rectangle
+     * @param height the height of the rectangle
+     * @param color  the color the rectangle should be set to
+     * @throws IllegalArgumentException if the rectangle is not within bounds
+     */
+    default void fillRect(int x, int y, int width, int height, int color) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > getDimension() - x || height > getDimension() - y) {
+            throw new IllegalArgumentException();
+        }
+        for (int j = y; j < y + height; j++) {
+            for (int i = x; i < x + width; i++) {
+                setColor(i, j, color);
+            }
+        }
+    }
+
+    /**
+     * Sets the color of every pixel of the node this method is called on, which turns it
+     * into a single leaf.
+     *
+     * @param color the color the node should be set to
+     */
+    default void fill(int color) {
+        fillRect(0, 0, getDimension(), getDimension(), color);
+    }
+
+    /**
+     * Returns the average color of the rectangle with upper-left corner {@code (x, y)}
+     * and the given width and height, relative to the node this method is called on.
+     * Each of the four 8-bit channels of the colors is averaged and rounded separately.
+     * <p/>
+     * The default implementation reads every pixel with {@link #getColor(int, int)};
+     * implementations should override it to answer subtrees lying fully inside the
+     * rectangle from a summary of their pixels.
+     *
+     * @param x      the {@code x}-coordinate of the upper-left corner
+     * @param y      the {@code y}-coordinate of the upper-left corner
+     * @param width  the width of the rectangle
+     * @param height the height of the rectangle
+     * @return the average color of the rectangle
+     * @throws IllegalArgumentException if the rectangle is empty or not within bounds
+     */
+    default int averageColor(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 ||
+                width > getDimension() - x || height > getDimension() - y) {
+            throw new IllegalArgumentException();
+        }
+        long[] sums = new long[4];
+        for (int j = y; j < y + height; j++) {
+            for (int i = x; i < x + width; i++) {
+                int color = getColor(i, j);
+                for (int channel = 0; channel < 4; channel++) {
+                    sums[channel] += (color >>> (8 * channel)) & 0xFF;
+                }
+            }
+        }
+        long area = (long) width * height;
+        int average = 0;
+        for (int channel = 0; channel < 4; channel++) {
+            average |= (int) ((sums[channel] + area / 2) / area) << (8 * channel);
+        }
+        return average;
+    }
+
+    /**
+     * Returns the number of pixels of color {@code color} in the rectangle with upper-left
+     * corner {@code (x, y)} and the given width and height, relative to the node this
+     * method is called on.
+     * <p/>
+     * The default implementation reads every pixel with {@link #getColor(int, int)};
+     * implementations should override it to skip the subtrees that cannot contain the
+     * color.
+     *
+     * @param x      the {@code x}-coordinate of the upper-left corner
+     * @param y      the {@code y}-coordinate of the upper-left corner
+     * @param width  the width of the rectangle
+     * @param height the height of the rectangle
+     * @param color  the color to count
+     * @return the number of pixels of that color in the rectangle
+     * @throws IllegalArgumentException if the rectangle is not within bounds
+     */
+    default long countColor(int x, int y, int width, int height, int color) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > getDimension() - x || height > getDimension() - y) {
+            throw new IllegalArgumentException();
+        }
+        long count = 0;
+        for (int j = y; j < y + height; j++) {
+            for (int i = x; i < x + width; i++) {
+                if (getColor(i, j) == color) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Calls the visitor for every leaf, in Z-order (the order of {@link QuadName} at every
+     * level).
+     *
+     * @param visitor the visitor to call
+     * @throws IllegalArgumentException if visitor is null
+     */
+    default void forEachLeaf(LeafVisitor visitor) {
+        forEachLeaf(0, 0, getDimension(), getDimension(), LeafOrder.Z_ORDER, visitor);
+    }
+
+    /**
+     * Calls the visitor for every leaf overlapping the rectangle with upper-left corner
+     * {@code (x, y)} and the given width and height, relative to the node this method is
+     * called on. The visitor is given the whole leaf, which may extend past the rectangle.
+     * <p/>
+     * In {@link LeafOrder#ROW_MAJOR} order the leaves are visited by the row of their
+     * upper-left corner and then from left to right, the leaves crossing the top of the
+     * rectangle coming first. This takes one descent per distinct row, so Z-order is
+     * cheaper when the order does not matter.
+     * <p/>
+     * The tree is walked with an explicit stack, so nothing is allocated per leaf by the
+     * walk itself and deep trees cannot overflow the call stack. The tree must not be
+     * changed by the visitor.
+     *
+     * @param x       the {@code x}-coordinate of the upper-left corner
+     * @param y       the {@code y}-coordinate of the upper-left corner
+     * @param width   the width of the rectangle
+     * @param height  the height of the rectangle
+     * @param order   the order to visit the leaves in
+     * @param visitor the visitor to call
+     * @throws IllegalArgumentException if order or visitor is null or the rectangle is not
+     *                                  within bounds
+     */
+    default void forEachLeaf(int x, int y, int width, int height, LeafOrder order,
+                             LeafVisitor visitor) {
+        if (order == null || visitor == null || x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > getDimension() - x || height > getDimension() - y) {
+            throw new IllegalArgumentException();
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
+        int right = x + width;
+        int bottom = y + height;
+        QuadName[] quadrants = QuadName.values();
+        //a tree has at most 31 levels, and Z-order keeps at most 3 siblings per level waiting
+        QuadTreeNode[] nodes = new QuadTreeNode[3 * 31 + 1];
+        int[] nodeXs = new int[nodes.length];
+        int[] nodeYs = new int[nodes.length];
+        //row-major makes one pass per row of upper-left corners, Z-order a single pass
+        for (int row = y; row < bottom; ) {
+            int nextRow = bottom;
+            nodes[0] = this;
+            nodeXs[0] = 0;
+            nodeYs[0] = 0;
+            int top = 1;
+            while (top > 0) {
+                QuadTreeNode node = nodes[--top];
+                int nodeX = nodeXs[top];
+                int nodeY = nodeYs[top];
+                int dimension = node.getDimension();
+                if (node.isLeaf()) {
+                    if (order == LeafOrder.Z_ORDER || nodeY == row || row == y) {
+                        visitor.visit(nodeX, nodeY, dimension, node.getColor(0, 0));
+                    }
+                    nextRow = Math.min(nextRow, nodeY + dimension);
+                    continue;
+                }
+                int half = dimension / 2;
+                for (int i = 3; i >= 0; i--) {
+                    int childX = nodeX + (i & 1) * half;
+                    int childY = nodeY + (i >> 1) * half;
+                    boolean inRows = order == LeafOrder.Z_ORDER
+                            ? childY < bottom && y < childY + half
+                            : childY <= row && row < childY + half;
+                    if (inRows && childX < right && x < childX + half) {
+                        nodes[top] = node.getQuadrant(quadrants[i]);
+                        nodeXs[top] = childX;
+                        nodeYs[top] = childY;
+                        top++;
+                    }
+                }
+            }
+            row = order == LeafOrder.Z_ORDER ? bottom : nextRow;
+        }
+    }
+
+    /**
+     * Gets the color at coordinate {@code (x, y)} of the image at a coarser level of
+     * detail. Level {@code level} is the image of dimension {@code 2^level} whose pixels
+     * are the nodes at that depth: a pixel covered by a leaf has the color of the leaf,
+     * and a pixel that is an internal node has its average color, as
+     * {@link #averageColor(int, int, int, int)} gives it. Level {@code log2(getDimension())}
+     * is the full image and level 0 is the average color of the whole tree.
+     * <p/>
+     * The default implementation averages the pixels of the node; implementations should
+     * override it to use cached averages.
+     *
+     * @param x     the {@code x}-coordinate in the image of the level
+     * @param y     the {@code y}-coordinate in the image of the level
+     * @param level the depth of the level, 0 for the root
+     * @return the color of the pixel at that level
+     * @throws IllegalArgumentException if level is not between 0 and
+     *                                  {@code log2(getDimension())} or {@code x} or
+     *                                  {@code y} is out of bounds for that level
+     */
+    default int getColorAtLevel(int x, int y, int level) {
+        int depth = Integer.numberOfTrailingZeros(getDimension());
+        if (level < 0 || level > depth || x < 0 || x >= 1 << level || y < 0 ||
+                y >= 1 << level) {
+            throw new IllegalArgumentException();
+        }
+        int scale = getDimension() >> level;
+        QuadName[] quadrants = QuadName.values();
+        QuadTreeNode node = this;
+        for (int k = depth - 1; !node.isLeaf() && node.getDimension() > scale; k--) {
+            node = node.getQuadrant(quadrants[((y * scale >> k) & 1) << 1
+                    | ((x * scale >> k) & 1)]);
+        }
+        return node.isLeaf() ? node.getColor(0, 0) : node.averageColor(0, 0, scale, scale);
+    }
+
+    /**
+     * Decompresses the QuadTree at a coarser level of detail into a 2d-array of dimension
+     * {@code 2^maxDepth}, without decompressing the full image first. The returned array
+     * satisfies {@code result[y][x] == getColorAtLevel(x, y, maxDepth)}, so the subtrees
+     * below the cutoff are each represented by their average color.
+     * <p/>
+     * The default implementation averages the pixels of every node at the cutoff;
+     * implementations should override it to use cached averages.
+     *
+     * @param maxDepth the depth of the level, 0 for the root
+     * @return a newly initialized array storing the image at that level
+     * @throws IllegalArgumentException if maxDepth is not between 0 and
+     *                                  {@code log2(getDimension())}
+     */
+    default int[][] decompress(int maxDepth) {
+        if (maxDepth < 0 || maxDepth > Integer.numberOfTrailingZeros(getDimension())) {
+            throw new IllegalArgumentException();
+        }
+        int scale = getDimension() >> maxDepth;
+        int[][] image = new int[1 << maxDepth][1 << maxDepth];
+        QuadName[] quadrants = QuadName.values();
+        //a tree has at most 31 levels, and Z-order keeps at most 3 siblings per level waiting
+        QuadTreeNode[] nodes = new QuadTreeNode[3 * 31 + 1];
+        int[] nodeXs = new int[nodes.length];
+        int[] nodeYs = new int[nodes.length];
+        nodes[0] = this;
+        int top = 1;
+        while (top > 0) {
+            QuadTreeNode node = nodes[--top];
+            int nodeX = nodeXs[top];
+            int nodeY = nodeYs[top];
+            int dimension = node.getDimension() / scale; //in pixels of the level
+            if (node.isLeaf() || dimension == 1) {
+                int color = node.isLeaf() ? node.getColor(0, 0)
+                        : node.averageColor(0, 0, scale, scale);
+                for (int row = nodeY; row < nodeY + dimension; row++) {
+                    Arrays.fill(image[row], nodeX, nodeX + dimension, color);
+                }
+                continue;
+            }
+            int half = dimension / 2;
+            for (int i = 3; i >= 0; i--) {
+                nodes[top] = node.getQuadrant(quadrants[i]);
+                nodeXs[top] = nodeX + (i & 1) * half;
+                nodeYs[top] = nodeY + (i >> 1) * half;
+                top++;
+            }
+        }
+        return image;
+    }
+
     /**
      * Returns the {@link QuadTreeNode} in the specified quadrant.
      * If this QuadTreeNode is a leaf, then this method returns {@code null}
@@ -110,4 +423,28 @@ public interface QuadTreeNode {
     enum QuadName {
         TOP_LEFT, TOP_RIGHT, BOTTOM_LEFT, BOTTOM_RIGHT
     }
+
+    /**
+     * The order {@link #forEachLeaf(int, int, int, int, LeafOrder, LeafVisitor)} visits
+     * the leaves in.
+     */
+    enum LeafOrder {
+        Z_ORDER, ROW_MAJOR
+    }
+
+    /**
+     * Callback for {@link #forEachLeaf(LeafVisitor)}, given each leaf as primitives.
+     */
+    @FunctionalInterface
+    interface LeafVisitor {
+        /**
+         * Visits one leaf.
+         *
+         * @param x         the {@code x}-coordinate of the upper-left pixel of the leaf
+         * @param y         the {@code y}-coordinate of the upper-left pixel of the leaf
+         * @param dimension the length and width of the leaf
+         * @param color     the color of the leaf
+         */
+        void visit(int x, int y, int dimension, int color);
+    }
 }
@@ -1,26 +1,91 @@
 // QuadTree
 
-import java.util.Objects;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class QuadTreeNodeImpl implements QuadTreeNode {
 
+    /**
+     * Default dimension below which the parallel build stops forking and builds
+     * quadrants sequentially.
+     */
+    public static final int PARALLEL_BUILD_CUTOFF = 128;
+
+    /**
+     * Dimension below which the parallel decompression stops forking and fills
+     * quadrants sequentially.
+     */
+    public static final int PARALLEL_DECOMPRESS_CUTOFF = 256;
+
     /*
      * Attributes
      */
-    private Integer color;
+    private int color; //only meaningful for leaves
     private int size; //dimension
-    //instead of adding `isLeaf` attribute we can just check if all children of a node are null
-    
-    private QuadTreeNodeImpl[] children;
+    //instead of adding `isLeaf` attribute a leaf is a node whose branch is null,
+    //so the color can stay a primitive and no Integer is boxed per leaf
+
+    private Branch branch;
+    //number of nodes in the subtree rooted here, kept up to date by every split and merge
+    //through the parent links so that getSize is O(1)
+    private int count;
+    private QuadTreeNodeImpl parent;
+
+    //What only an internal node needs: its children and the pixel-weighted channel sums and
+    //channel bounds of its pixels, kept up to date by recount along with the count. A leaf's
+    //follow from its color and size, so a leaf carries none of this.
+    private static final class Branch {
+        final QuadTreeNodeImpl topLeft;
+        final QuadTreeNodeImpl topRight;
+        final QuadTreeNodeImpl bottomLeft;
+        final QuadTreeNodeImpl bottomRight;
+        long blueSum;
+        long greenSum;
+        long redSum;
+        long alphaSum;
+        int minChannels; //lowest value of every channel, packed like a color
+        int maxChannels; //highest value of every channel, packed like a color
+
+        Branch(QuadTreeNodeImpl parent, QuadTreeNodeImpl topLeft, QuadTreeNodeImpl topRight,
+               QuadTreeNodeImpl bottomLeft, QuadTreeNodeImpl bottomRight) {
+            this.topLeft = topLeft;
+            this.topRight = topRight;
+            this.bottomLeft = bottomLeft;
+            this.bottomRight = bottomRight;
+            topLeft.parent = parent;
+            topRight.parent = parent;
+            bottomLeft.parent = parent;
+            bottomRight.parent = parent;
+        }
+
+        //the child at index (0 = top left ... 3 = bottom right)
+        QuadTreeNodeImpl get(int index) {
+            switch (index) {
+                case 0:
+                    return topLeft;
+                case 1:
+                    return topRight;
+                case 2:
+                    return bottomLeft;
+                default:
+                    return bottomRight;
+            }
+        }
+    }
+
     /**
      * Constructor for a Leaf Node
      * @param color - color of the leaf node
      * @param size - the length and width of the quadrant represented by this node
      */
-    public QuadTreeNodeImpl(Integer color, int size) {
+    public QuadTreeNodeImpl(int color, int size) {
         this.color = color;
         this.size = size;
-        children = null;
+        branch = null;
+        count = 1;
     }
     /**
      * Constructor for an Internal Node
@@ -33,9 +98,9 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
     public QuadTreeNodeImpl(int size,
                             QuadTreeNodeImpl topLeft, QuadTreeNodeImpl topRight,
                             QuadTreeNodeImpl bottomLeft, QuadTreeNodeImpl bottomRight) {
-        this.color = null;
         this.size = size;
-        this.children = new QuadTreeNodeImpl[] {topLeft, topRight, bottomLeft, bottomRight};
+        this.branch = new Branch(this, topLeft, topRight, bottomLeft, bottomRight);
+        recount();
     }
 
 
@@ -55,24 +120,239 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
                 !isPowerOfTwo(image.length) || !isPerfectSquare(image)) {
             throw new IllegalArgumentException();
         }
-        return buildFromArrayHelper(image, image.length, 0, 0);
+        return materialize(buildFromArrayHelper(image, image.length, 0, 0),
+                image, image.length, 0, 0);
     }
 
     /**
-     * Recursive helper method to build the QuadTree
+     * Builds the QuadTree in parallel, forking the four quadrants as independent tasks in
+     * the given pool until they are smaller than {@link #PARALLEL_BUILD_CUTOFF}. The
+     * result is identical to {@link #buildFromIntArray(int[][])}.
+     *
+     * @param image image to put into the tree
+     * @param pool the pool to run the build in
+     * @return the newly built QuadTreeNode instance which stores the compressed image
+     * @throws IllegalArgumentException if pool is null, or for the same reasons as
+     *                                  {@link #buildFromIntArray(int[][])}
+     */
+    public static QuadTreeNodeImpl buildFromIntArray(int[][] image, ForkJoinPool pool) {
+        return buildFromIntArray(image, pool, PARALLEL_BUILD_CUTOFF);
+    }
+
+    /**
+     * Builds the QuadTree in parallel, forking the four quadrants as independent tasks in
+     * the given pool until they are smaller than cutoff. The result is identical to
+     * {@link #buildFromIntArray(int[][])}.
+     *
+     * @param image image to put into the tree
+     * @param pool the pool to run the build in
+     * @param cutoff the dimension below which quadrants are built sequentially
+     * @return the newly built QuadTreeNode instance which stores the compressed image
+     * @throws IllegalArgumentException if pool is null, cutoff is not positive, or for the
+     *                                  same reasons as {@link #buildFromIntArray(int[][])}
+     */
+    public static QuadTreeNodeImpl buildFromIntArray(int[][] image, ForkJoinPool pool,
+                                                     int cutoff) {
+        if (image == null || image.length == 0 ||
+                !isPowerOfTwo(image.length) || !isPerfectSquare(image) ||
+                pool == null || cutoff < 1) {
+            throw new IllegalArgumentException();
+        }
+        return materialize(pool.invoke(new BuildTask(image, image.length, 0, 0, cutoff)),
+                image, image.length, 0, 0);
+    }
+
+    /**
+     * Builds one quadrant, forking its own quadrants while it is at least cutoff wide.
+     * Like buildFromArrayHelper the result is null for a uniform quadrant.
+     */
+    private static final class BuildTask extends RecursiveTask<QuadTreeNodeImpl> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[][] image;
+        private final int size;
+        private final int x;
+        private final int y;
+        private final int cutoff;
+
+        BuildTask(int[][] image, int size, int x, int y, int cutoff) {
+            this.image = image;
+            this.size = size;
+            this.x = x;
+            this.y = y;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected QuadTreeNodeImpl compute() {
+            if (size < cutoff || size == 1) {
+                return buildFromArrayHelper(image, size, x, y);
+            }
+            int half = size / 2;
+            BuildTask topRight = new BuildTask(image, half, x + half, y, cutoff);
+            BuildTask bottomLeft = new BuildTask(image, half, x, y + half, cutoff);
+            BuildTask bottomRight = new BuildTask(image, half, x + half, y + half, cutoff);
+            topRight.fork();
+            bottomLeft.fork();
+            bottomRight.fork();
+            QuadTreeNodeImpl topLeft = new BuildTask(image, half, x, y, cutoff).compute();
+            return combine(image, size, x, y, topLeft, topRight.join(),
+                    bottomLeft.join(), bottomRight.join());
+        }
+    }
+
+    /**
+     * Builds a lossy QuadTree in a single bottom-up pass: a quadrant becomes one leaf of
+     * its average color as soon as no pixel of it differs from that average by more than
+     * tolerance in any of its four 8-bit channels (alpha, red, green, blue). With a
+     * tolerance of 0 only uniform quadrants are merged, so the result is identical to
+     * {@link #buildFromIntArray(int[][])}.
+     *
+     * @param image image to put into the tree
+     * @param tolerance the largest error allowed per channel, from 0 to 255
+     * @return the newly built QuadTreeNode instance which stores the compressed image
+     * @throws IllegalArgumentException if tolerance is out of range, or for the same
+     *                                  reasons as {@link #buildFromIntArray(int[][])}
+     */
+    public static QuadTreeNodeImpl buildFromIntArray(int[][] image, int tolerance) {
+        if (image == null || image.length == 0 ||
+                !isPowerOfTwo(image.length) || !isPerfectSquare(image) ||
+                tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException();
+        }
+        if (tolerance == 0) {
+            //only uniform quadrants merge, which the lossless build finds faster
+            return buildFromIntArray(image);
+        }
+        LossyBuild build = new LossyBuild(image, tolerance);
+        int level = Integer.numberOfTrailingZeros(image.length);
+        QuadTreeNodeImpl root = build.build(level, 0, 0);
+        return root != null ? root : new QuadTreeNodeImpl(build.averageColor(level), image.length);
+    }
+
+    /**
+     * Per-channel minimum, maximum and sum of the quadrants of a lossy build. The values
+     * of the quadrant being built on each level live in scratch rows indexed by level, so
+     * the whole build allocates nothing but the nodes of the result.
+     */
+    private static final class LossyBuild {
+        private final int[][] image;
+        private final int tolerance;
+        private final int[][] min; //[level][channel], channel 0 is the low (blue) byte
+        private final int[][] max;
+        private final long[][] sum;
+        private final int[][] quadrantColors; //[level][quadrant] averages of merged quadrants
+
+        LossyBuild(int[][] image, int tolerance) {
+            int levels = Integer.numberOfTrailingZeros(image.length) + 1;
+            this.image = image;
+            this.tolerance = tolerance;
+            this.min = new int[levels][4];
+            this.max = new int[levels][4];
+            this.sum = new long[levels][4];
+            this.quadrantColors = new int[levels][4];
+        }
+
+        /**
+         * Builds the quadrant at (x, y). When it can be merged into a single leaf it
+         * returns null and leaves the statistics of the quadrant in row level.
+         * @param level - log2 of the length and width of the quadrant
+         * @param x - the x coordinate of the quadrant (top left)
+         * @param y - the y coordinate of the quadrant (top left)
+         * @return null if the quadrant is within the tolerance, otherwise an internal node
+         */
+        QuadTreeNodeImpl build(int level, int x, int y) {
+            if (level == 0) {
+                int color = image[y][x];
+                for (int channel = 0; channel < 4; channel++) {
+                    int value = (color >>> (8 * channel)) & 0xFF;
+                    min[level][channel] = value;
+                    max[level][channel] = value;
+                    sum[level][channel] = value;
+                }
+                return null;
+            }
+            int half = 1 << (level - 1);
+            QuadTreeNodeImpl[] quadrants = null;
+            Arrays.fill(min[level], 255);
+            Arrays.fill(max[level], 0);
+            Arrays.fill(sum[level], 0);
+            for (int q = 0; q < 4; q++) {
+                QuadTreeNodeImpl quadrant = build(level - 1, x + (q & 1) * half,
+                        y + (q >> 1) * half);
+                if (quadrant == null) {
+                    quadrantColors[level][q] = averageColor(level - 1);
+                    for (int channel = 0; channel < 4; channel++) {
+                        min[level][channel] = Math.min(min[level][channel],
+                                min[level - 1][channel]);
+                        max[level][channel] = Math.max(max[level][channel],
+                                max[level - 1][channel]);
+                        sum[level][channel] += sum[level - 1][channel];
+                    }
+                } else {
+                    if (quadrants == null) {
+                        quadrants = new QuadTreeNodeImpl[4];
+                    }
+                    quadrants[q] = quadrant;
+                }
+            }
+            if (quadrants == null && isWithinTolerance(level)) {
+                return null;
+            }
+            if (quadrants == null) {
+                quadrants = new QuadTreeNodeImpl[4];
+            }
+            for (int q = 0; q < 4; q++) {
+                if (quadrants[q] == null) {
+                    quadrants[q] = new QuadTreeNodeImpl(quadrantColors[level][q], half);
+                }
+            }
+            return new QuadTreeNodeImpl(2 * half, quadrants[0], quadrants[1], quadrants[2],
+                    quadrants[3]);
+        }
+
+        // Whether every pixel of the quadrant in row level is close enough to its average
+        private boolean isWithinTolerance(int level) {
+            int average = averageColor(level);
+            for (int channel = 0; channel < 4; channel++) {
+                int mean = (average >>> (8 * channel)) & 0xFF;
+                if (mean - min[level][channel] > tolerance
+                        || max[level][channel] - mean > tolerance) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Rounded average color of the quadrant in row level, a quadrant has 4^level pixels
+        int averageColor(int level) {
+            int color = 0;
+            for (int channel = 0; channel < 4; channel++) {
+                long mean = (sum[level][channel] + (1L << (2 * level) >>> 1)) >>> (2 * level);
+                color |= (int) mean << (8 * channel);
+            }
+            return color;
+        }
+    }
+
+    /**
+     * Recursive helper method to build the QuadTree.
+     * <p/>
+     * A uniform quadrant is never materialized: its color is simply the color of its
+     * upper-left pixel, so the helper returns null for it and only allocates nodes once
+     * a quadrant turns out to be mixed. This way the build allocates the nodes of the
+     * result and nothing else, instead of a leaf per pixel that is thrown away again.
      * @param image - the image to be compressed
      * @param size - the length and width of the quadrant
      * @param x - the x coordinate of the quadrant (top left)
      * @param y - the y coordinate of the quadrant (top left)
-     * @return = the newly built QuadTreeNode instance which represents the compressed image
+     * @return = the newly built QuadTreeNode instance which represents the compressed image,
+     *           or null if the quadrant has a single color
      */
     private static QuadTreeNodeImpl buildFromArrayHelper(int[][] image, int size, int x, int y) {
-        //get color of the pixel
-        int color = image[y][x];
-
-        //base case: if size is one, then it is a leaf node
+        //base case: if size is one, then it is uniform
         if (size == 1) {
-            return new QuadTreeNodeImpl(color, size);
+            return null;
         }
 
         //recursive case: split the image into 4 quadrants
@@ -83,35 +363,72 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
         QuadTreeNodeImpl bottomLeft = buildFromArrayHelper(image, half, x, y + half);
         QuadTreeNodeImpl bottomRight = buildFromArrayHelper(image, half, x + half, y + half);
 
+        return combine(image, size, x, y, topLeft, topRight, bottomLeft, bottomRight);
+    }
+
+    /**
+     * Creates the node for a quadrant from its four already built quadrants, where null
+     * stands for a uniform quadrant as in buildFromArrayHelper.
+     * @param image - the image to be compressed
+     * @param size - the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     * @param topLeft - the top left quadrant
+     * @param topRight - the top right quadrant
+     * @param bottomLeft - the bottom left quadrant
+     * @param bottomRight - the bottom right quadrant
+     * @return null if the quadrant is uniform, otherwise an internal node
+     */
+    private static QuadTreeNodeImpl combine(int[][] image, int size, int x, int y,
+                                            QuadTreeNodeImpl topLeft, QuadTreeNodeImpl topRight,
+                                            QuadTreeNodeImpl bottomLeft,
+                                            QuadTreeNodeImpl bottomRight) {
+        int half = size / 2;
 //        /**
 //         * check if all quadrants actually have the same color
-//         * IF they have same color then we can merge them into one leaf node and return it
+//         * IF they have same color then the whole quadrant is uniform too
 //         * ELSE return the node with the 4 quadrants
 //         * This allows us to have O(1) runtime on every level since
 //            we don't check every pixel with every other pixel
 //         */
-        //test if any of them have color null
-        //And test if all quadrants have the same color
-        boolean sameColor = (
-                topLeft.color != null &&
-                        topRight.color != null &&
-                        bottomLeft.color != null &&
-                        bottomRight.color != null && topRight.color.equals(topLeft.color) &&
-                        bottomLeft.color.equals(topLeft.color) &&
-                        bottomRight.color.equals(topLeft.color)
-        );
+        int color = image[y][x];
+        boolean sameColor = topLeft == null && topRight == null &&
+                bottomLeft == null && bottomRight == null &&
+                image[y][x + half] == color &&
+                image[y + half][x] == color &&
+                image[y + half][x + half] == color;
         if (sameColor) {
-            //leaf node
-            return new QuadTreeNodeImpl(color, size);
-        } else {
-            //internal node with 4 quadrants
-            return new QuadTreeNodeImpl(size, topLeft, topRight, bottomLeft, bottomRight);
+            return null;
         }
+        //internal node with 4 quadrants, uniform ones become leaves only now
+        return new QuadTreeNodeImpl(size,
+                materialize(topLeft, image, half, x, y),
+                materialize(topRight, image, half, x + half, y),
+                materialize(bottomLeft, image, half, x, y + half),
+                materialize(bottomRight, image, half, x + half, y + half));
+    }
+
+    //Turn the null of a uniform quadrant into a leaf of the color of its upper-left pixel
+    private static QuadTreeNodeImpl materialize(QuadTreeNodeImpl node, int[][] image,
+                                                int size, int x, int y) {
+        return node != null ? node : new QuadTreeNodeImpl(image[y][x], size);
+    }
+
+    //Check if all four nodes are leaves of the same color, in which case they can be merged
+    //Runtime: O(1)
+    private static boolean isUniformLeaves(QuadTreeNodeImpl topLeft, QuadTreeNodeImpl topRight,
+                                           QuadTreeNodeImpl bottomLeft,
+                                           QuadTreeNodeImpl bottomRight) {
+        return topLeft.isLeaf() && topRight.isLeaf() &&
+                bottomLeft.isLeaf() && bottomRight.isLeaf() &&
+                topRight.color == topLeft.color &&
+                bottomLeft.color == topLeft.color &&
+                bottomRight.color == topLeft.color;
     }
 
     // Find power of two by bit manipulation
     //Runtime: O(1)
-    private static boolean isPowerOfTwo(int n) {
+    static boolean isPowerOfTwo(int n) {
         //powers of 2 will have only one bit = 1 and the rest = 0
         //applying AND on n and n-1 will result in 0 if n is a power of 2
         //i.e. n = 8 = 1000, n-1 = 7 = 0111, 1000 & 0111 = 0000
@@ -121,7 +438,7 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
 
     //Check if the image is a perfect square
     //Runtime: O(n)
-    private static boolean isPerfectSquare(int[][] image) {
+    static boolean isPerfectSquare(int[][] image) {
         for (int[] row : image) {
             if (row.length != image.length) {
                 return false;
@@ -131,58 +448,47 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
     }
 
     /**
-     * Helper for getColor and finds the color of leaf node representing the pixel at (x,y)
+     * Index of the child containing (x, y) inside a node whose children have dimension
+     * 2^k. Since all dimensions are powers of two, bit k of y and x are the row and column
+     * of that child, which is exactly its index in Branch.get.
      * @param x - the x coordinate of the pixel
      * @param y - the y coordinate of the pixel
-     * @return - color of the pixel
+     * @param k - log2 of the dimension of the children
+     * @return - index into children (0 = top left ... 3 = bottom right)
      */
-    private int getColorHelper(int x, int y) {
-        //base case: if leaf node, then return the color of the node
-        if (isLeaf()) {
-            return this.color;
-        }
-        int half = size / 2;
-        //keep in mind during recursive calls we are
-        //passing the x and y coordinates RELATIVE to the node we are calling getLeaf on
-        //like representing same x,y but in different coordinate systems (change of basis)
-        if (x < half && y < half) {
-            return getQuadrant(QuadName.TOP_LEFT).getColorHelper(x, y);
-        } else if (x >= half && y < half) {
-            return getQuadrant(QuadName.TOP_RIGHT).getColorHelper(x - half, y);
-        } else if (x < half && y >= half) {
-            return getQuadrant(QuadName.BOTTOM_LEFT).getColorHelper(x, y - half);
-        } else {
-            return getQuadrant(QuadName.BOTTOM_RIGHT).getColorHelper(x - half, y - half);
-        }
+    private static int childIndex(int x, int y, int k) {
+        return ((y >> k) & 1) << 1 | ((x >> k) & 1);
     }
 
-    //Runtime: O(log n) because getLeaf is O(log n)
+    //Runtime: O(log n), one iteration per level without recursion
     @Override
     public int getColor(int x, int y) {
         //check if x and y are out of bounds
         if (x < 0 || x >= size || y < 0 || y >= size) {
             throw new IllegalArgumentException();
         }
-        return getColorHelper(x, y);
+        QuadTreeNodeImpl node = this;
+        for (int k = Integer.numberOfTrailingZeros(size) - 1; node.branch != null; k--) {
+            node = node.branch.get(childIndex(x, y, k));
+        }
+        return node.color;
     }
 
     //Runtime: O(1)
     @Override
     public QuadTreeNodeImpl getQuadrant(QuadName quadrant) {
-        //note in our constructor we set the children array to be in the order of
-        //children[0] = top left, children[1] = top right and so on
         if (isLeaf()) {
             return null;
         } else {
             switch (quadrant) {
                 case TOP_LEFT:
-                    return children[0];
+                    return branch.topLeft;
                 case TOP_RIGHT:
-                    return children[1];
+                    return branch.topRight;
                 case BOTTOM_LEFT:
-                    return children[2];
+                    return branch.bottomLeft;
                 case BOTTOM_RIGHT:
-                    return children[3];
+                    return branch.bottomRight;
                 default:
                     return null;
             }
@@ -195,30 +501,353 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
         return size;
     }
 
-    //Runtime: O(n)
+    //Runtime: O(1), the count is maintained by the build and by setColor
     @Override
     public int getSize() {
-        //base case: if leaf node, then return size is 1
-        if (isLeaf()) {
-            return 1;
-        }
-        //run a for loop to recursively traverse over each child and add their subtrees
+        return count;
+    }
+
+    /**
+     * Returns the number of leaves in this subtree. Every internal node has exactly
+     * four children, so this follows from the node count.
+     *
+     * @return the number of leaves contained by this QuadTreeNode
+     */
+    //Runtime: O(1)
+    public int getLeafCount() {
+        return (3 * count + 1) / 4;
+    }
+
+    //Recompute the node count, channel sums and channel bounds of this node from its
+    //children
+    //Runtime: O(1)
+    private void recount() {
         int numNodes = 1;
-        for (QuadTreeNodeImpl child : children) {
-            numNodes += child.getSize();
+        if (branch != null) {
+            long blue = 0;
+            long green = 0;
+            long red = 0;
+            long alpha = 0;
+            int lowest = -1;
+            int highest = 0;
+            for (int i = 0; i < 4; i++) {
+                QuadTreeNodeImpl child = branch.get(i);
+                numNodes += child.count;
+                if (child.branch == null) {
+                    long area = (long) child.size * child.size;
+                    int c = child.color;
+                    blue += (c & 0xFF) * area;
+                    green += (c >>> 8 & 0xFF) * area;
+                    red += (c >>> 16 & 0xFF) * area;
+                    alpha += (c >>> 24) * area;
+                    lowest = channelBound(lowest, c, true);
+                    highest = channelBound(highest, c, false);
+                } else {
+                    blue += child.branch.blueSum;
+                    green += child.branch.greenSum;
+                    red += child.branch.redSum;
+                    alpha += child.branch.alphaSum;
+                    lowest = channelBound(lowest, child.branch.minChannels, true);
+                    highest = channelBound(highest, child.branch.maxChannels, false);
+                }
+            }
+            branch.blueSum = blue;
+            branch.greenSum = green;
+            branch.redSum = red;
+            branch.alphaSum = alpha;
+            branch.minChannels = lowest;
+            branch.maxChannels = highest;
+        }
+        count = numNodes;
+    }
+
+    /**
+     * Returns the channel-wise minimum (or maximum) of two packed colors, comparing all
+     * four bytes at once.
+     * @param a - the first color
+     * @param b - the second color
+     * @param lower - true for the minimum, false for the maximum
+     * @return the bound of every channel, packed like a color
+     */
+    private static int channelBound(int a, int b, boolean lower) {
+        //the high bit of every byte of t is set where the low 7 bits of a are at least b's
+        int t = (a | 0x80808080) - (b & 0x7F7F7F7F);
+        int aAtLeastB = ((a & ~b) | (~(a ^ b) & t)) & 0x80808080;
+        int mask = (aAtLeastB >>> 7) * 0xFF;
+        return lower ? (b & mask) | (a & ~mask) : (a & mask) | (b & ~mask);
+    }
+
+    //The sum of one channel over the pixels of this node, channel 0 is the low (blue) byte
+    //Runtime: O(1)
+    private long channelSum(int channel) {
+        if (branch == null) {
+            return ((color >>> (8 * channel)) & 0xFF) * ((long) size * size);
+        }
+        switch (channel) {
+            case 0:
+                return branch.blueSum;
+            case 1:
+                return branch.greenSum;
+            case 2:
+                return branch.redSum;
+            default:
+                return branch.alphaSum;
+        }
+    }
+
+    //Refresh the counts from this node up to the root after a change below it
+    //Runtime: O(log n)
+    private void recountToRoot() {
+        for (QuadTreeNodeImpl node = this; node != null; node = node.parent) {
+            node.recount();
         }
-        return numNodes;
     }
 
     //Runtime: O(1)
     @Override
     public boolean isLeaf() {
-        return (children == null) || children[0] == null &&
-                children[1] == null &&
-                children[2] == null &&
-                children[3] == null;
+        return branch == null;
+    }
+
+    /**
+     * Calls the visitor for every leaf overlapping a rectangle, reading the children and
+     * colors directly instead of through getQuadrant and getColor.
+     * @param x - the x coordinate of the upper-left corner
+     * @param y - the y coordinate of the upper-left corner
+     * @param width - the width of the rectangle
+     * @param height - the height of the rectangle
+     * @param order - the order to visit the leaves in
+     * @param visitor - the visitor to call
+     * @throws IllegalArgumentException if order or visitor is null or the rectangle is not
+     *                                  within bounds
+     */
+    //Runtime: O(n) in Z-order, one descent per distinct row of leaves in row-major order
+    @Override
+    public void forEachLeaf(int x, int y, int width, int height, LeafOrder order,
+                            LeafVisitor visitor) {
+        if (order == null || visitor == null || x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > size - x || height > size - y) {
+            throw new IllegalArgumentException();
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
+        int right = x + width;
+        int bottom = y + height;
+        boolean zOrder = order == LeafOrder.Z_ORDER;
+        //a tree has at most 31 levels, and Z-order keeps at most 3 siblings per level waiting
+        QuadTreeNodeImpl[] nodes = new QuadTreeNodeImpl[3 * 31 + 1];
+        int[] nodeXs = new int[nodes.length];
+        int[] nodeYs = new int[nodes.length];
+        for (int row = y; row < bottom; ) {
+            int nextRow = bottom;
+            nodes[0] = this;
+            nodeXs[0] = 0;
+            nodeYs[0] = 0;
+            int top = 1;
+            while (top > 0) {
+                QuadTreeNodeImpl node = nodes[--top];
+                int nodeX = nodeXs[top];
+                int nodeY = nodeYs[top];
+                if (node.branch == null) {
+                    if (zOrder || nodeY == row || row == y) {
+                        visitor.visit(nodeX, nodeY, node.size, node.color);
+                    }
+                    nextRow = Math.min(nextRow, nodeY + node.size);
+                    continue;
+                }
+                int half = node.size / 2;
+                if (zOrder && x <= nodeX && nodeX + node.size <= right
+                        && y <= nodeY && nodeY + node.size <= bottom) {
+                    //inside the rectangle, so are all four children
+                    for (int i = 3; i >= 0; i--) {
+                        nodes[top] = node.branch.get(i);
+                        nodeXs[top] = nodeX + (i & 1) * half;
+                        nodeYs[top] = nodeY + (i >> 1) * half;
+                        top++;
+                    }
+                    continue;
+                }
+                for (int i = 3; i >= 0; i--) {
+                    int childX = nodeX + (i & 1) * half;
+                    int childY = nodeY + (i >> 1) * half;
+                    boolean inRows = zOrder ? childY < bottom && y < childY + half
+                            : childY <= row && row < childY + half;
+                    if (inRows && childX < right && x < childX + half) {
+                        nodes[top] = node.branch.get(i);
+                        nodeXs[top] = childX;
+                        nodeYs[top] = childY;
+                        top++;
+                    }
+                }
+            }
+            row = zOrder ? bottom : nextRow;
+        }
+    }
+
+    /**
+     * Returns the average color of a rectangle, each channel rounded separately. Subtrees
+     * lying fully inside the rectangle are answered from their channel sums, so only the
+     * nodes crossing its edge are visited and the cost grows with the perimeter of the
+     * rectangle rather than its area. The sums are exact for dimensions up to 2^27.
+     * @param x - the x coordinate of the upper-left corner
+     * @param y - the y coordinate of the upper-left corner
+     * @param width - the width of the rectangle
+     * @param height - the height of the rectangle
+     * @return the average color
+     * @throws IllegalArgumentException if the rectangle is empty or not within bounds
+     */
+    @Override
+    public int averageColor(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 ||
+                width > size - x || height > size - y) {
+            throw new IllegalArgumentException();
+        }
+        long[] sums = new long[4];
+        sumRect(x, y, x + width, y + height, 0, 0, sums);
+        long area = (long) width * height;
+        int average = 0;
+        for (int channel = 0; channel < 4; channel++) {
+            average |= (int) ((sums[channel] + area / 2) / area) << (8 * channel);
+        }
+        return average;
+    }
+
+    /**
+     * Recursive helper for averageColor, the rectangle [left, right) x [top, bottom) is
+     * given in the coordinates of the node averageColor was called on.
+     * @param left - the left edge of the rectangle (inclusive)
+     * @param top - the top edge of the rectangle (inclusive)
+     * @param right - the right edge of the rectangle (exclusive)
+     * @param bottom - the bottom edge of the rectangle (exclusive)
+     * @param startX - the x coordinate of this node
+     * @param startY - the y coordinate of this node
+     * @param sums - the channel sums, channel 0 is the low (blue) byte
+     */
+    private void sumRect(int left, int top, int right, int bottom, int startX, int startY,
+                         long[] sums) {
+        if (branch == null) {
+            long overlap = (long) (Math.min(right, startX + size) - Math.max(left, startX))
+                    * (Math.min(bottom, startY + size) - Math.max(top, startY));
+            for (int channel = 0; channel < 4; channel++) {
+                sums[channel] += ((color >>> (8 * channel)) & 0xFF) * overlap;
+            }
+            return;
+        }
+        if (left <= startX && top <= startY &&
+                startX + size <= right && startY + size <= bottom) {
+            for (int channel = 0; channel < 4; channel++) {
+                sums[channel] += channelSum(channel);
+            }
+            return;
+        }
+        int half = size / 2;
+        for (int i = 0; i < 4; i++) {
+            int childX = startX + (i & 1) * half;
+            int childY = startY + (i >> 1) * half;
+            if (childX < right && left < childX + half && childY < bottom && top < childY + half) {
+                branch.get(i).sumRect(left, top, right, bottom, childX, childY, sums);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pixels of a rectangle having exactly the given color. Subtrees
+     * whose channel bounds exclude the color are skipped without being visited.
+     * @param x - the x coordinate of the upper-left corner
+     * @param y - the y coordinate of the upper-left corner
+     * @param width - the width of the rectangle
+     * @param height - the height of the rectangle
+     * @param c - the color to count
+     * @return the number of pixels of color c
+     * @throws IllegalArgumentException if the rectangle is not within bounds
+     */
+    @Override
+    public long countColor(int x, int y, int width, int height, int c) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > size - x || height > size - y) {
+            throw new IllegalArgumentException();
+        }
+        if (width == 0 || height == 0) {
+            return 0;
+        }
+        return countRect(x, y, x + width, y + height, c, 0, 0);
+    }
+
+    /**
+     * Recursive helper for countColor, the rectangle [left, right) x [top, bottom) is
+     * given in the coordinates of the node countColor was called on.
+     * @param left - the left edge of the rectangle (inclusive)
+     * @param top - the top edge of the rectangle (inclusive)
+     * @param right - the right edge of the rectangle (exclusive)
+     * @param bottom - the bottom edge of the rectangle (exclusive)
+     * @param c - the color to count
+     * @param startX - the x coordinate of this node
+     * @param startY - the y coordinate of this node
+     * @return the number of pixels of color c in the rectangle and this node
+     */
+    private long countRect(int left, int top, int right, int bottom, int c,
+                           int startX, int startY) {
+        if (branch == null) {
+            if (color != c) {
+                return 0;
+            }
+            return (long) (Math.min(right, startX + size) - Math.max(left, startX))
+                    * (Math.min(bottom, startY + size) - Math.max(top, startY));
+        }
+        //every channel of c must lie within the bounds of the node
+        if (channelBound(c, branch.minChannels, false) != c
+                || channelBound(c, branch.maxChannels, true) != c) {
+            return 0;
+        }
+        long total = 0;
+        int half = size / 2;
+        for (int i = 0; i < 4; i++) {
+            int childX = startX + (i & 1) * half;
+            int childY = startY + (i >> 1) * half;
+            if (childX < right && left < childX + half && childY < bottom && top < childY + half) {
+                total += branch.get(i).countRect(left, top, right, bottom, c, childX, childY);
+            }
+        }
+        return total;
     }
 
+    /**
+     * Gets the color of a pixel at a coarser level of detail, taking the average of an
+     * internal node from its channel sums instead of visiting its pixels.
+     * @param x - the x coordinate in the image of the level
+     * @param y - the y coordinate in the image of the level
+     * @param level - the depth of the level, 0 for the root
+     * @return the color of the pixel at that level
+     * @throws IllegalArgumentException if level or the coordinates are out of bounds
+     */
+    //Runtime: O(log n)
+    @Override
+    public int getColorAtLevel(int x, int y, int level) {
+        if (level < 0 || level > Integer.numberOfTrailingZeros(size) || x < 0 ||
+                x >= 1 << level || y < 0 || y >= 1 << level) {
+            throw new IllegalArgumentException();
+        }
+        QuadTreeNodeImpl node = this;
+        for (int k = level - 1; node.branch != null && k >= 0; k--) {
+            node = node.branch.get(childIndex(x, y, k));
+        }
+        return node.average();
+    }
+
+    //The average color of the pixels of this node, rounded like averageColor
+    //Runtime: O(1)
+    private int average() {
+        if (branch == null) {
+            return color;
+        }
+        long area = (long) size * size;
+        int average = 0;
+        for (int channel = 0; channel < 4; channel++) {
+            average |= (int) ((channelSum(channel) + area / 2) / area) << (8 * channel);
+        }
+        return average;
+    }
 
     //Runtime O(n)
     @Override
@@ -231,11 +860,10 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
 
     private void decompressRecursive(int[][] array, int startX, int startY, int dimension) {
         //Base case: if leaf node, then fill the relevant quadrant with the color of the node
+        //one row at a time, so every fill is a contiguous run
         if (isLeaf()) {
-            for (int x = startX; x < startX + dimension; x++) {
-                for (int y = startY; y < startY + dimension; y++) {
-                    array[y][x] = this.color;
-                }
+            for (int y = startY; y < startY + dimension; y++) {
+                Arrays.fill(array[y], startX, startX + dimension, this.color);
             }
         } else { //Recursive case: fill the quadrants with the colors of the children
             int half = dimension / 2;
@@ -249,6 +877,253 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
         }
     }
 
+    /**
+     * Decompresses the QuadTree at a coarser level of detail, each node at the cutoff
+     * filling a single pixel with its average.
+     * @param maxDepth - the depth of the level, 0 for the root
+     * @return a newly initialized array of dimension 2^maxDepth
+     * @throws IllegalArgumentException if maxDepth is out of bounds
+     */
+    //Runtime: O(4^maxDepth)
+    @Override
+    public int[][] decompress(int maxDepth) {
+        if (maxDepth < 0 || maxDepth > Integer.numberOfTrailingZeros(size)) {
+            throw new IllegalArgumentException();
+        }
+        int[][] image = new int[1 << maxDepth][1 << maxDepth];
+        decompressAtLevel(image, 0, 0, 1 << maxDepth);
+        return image;
+    }
+
+    // Fills the square of array at (startX, startY) covered by this node at a level where
+    // it is dimension pixels wide, clipped to the rows and columns array has, so the
+    // rectangular trees can fill just their image
+    void decompressAtLevel(int[][] array, int startX, int startY, int dimension) {
+        if (startY >= array.length || startX >= array[0].length) {
+            return;
+        }
+        if (branch == null || dimension == 1) {
+            int average = average();
+            int toX = Math.min(startX + dimension, array[0].length);
+            int toY = Math.min(startY + dimension, array.length);
+            for (int y = startY; y < toY; y++) {
+                Arrays.fill(array[y], startX, toX, average);
+            }
+            return;
+        }
+        int half = dimension / 2;
+        branch.topLeft.decompressAtLevel(array, startX, startY, half);
+        branch.topRight.decompressAtLevel(array, startX + half, startY, half);
+        branch.bottomLeft.decompressAtLevel(array, startX, startY + half, half);
+        branch.bottomRight.decompressAtLevel(array, startX + half, startY + half, half);
+    }
+
+    /**
+     * Decompresses the QuadTree in parallel. Quadrants write disjoint parts of the result,
+     * so they are filled as independent tasks in the given pool until they are smaller
+     * than {@link #PARALLEL_DECOMPRESS_CUTOFF}. The result is identical to
+     * {@link #decompress()}.
+     *
+     * @param pool the pool to run the decompression in
+     * @return a newly initialized array storing the decompressed image data
+     * @throws IllegalArgumentException if pool is null
+     */
+    //Runtime O(n)
+    public int[][] decompress(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException();
+        }
+        int [][] decompressedImage = new int [size][size];
+        pool.invoke(new DecompressTask(this, decompressedImage, null, 0, 0, 0, 0));
+        return decompressedImage;
+    }
+
+    /**
+     * Decompresses the QuadTree in parallel into a caller-supplied flat buffer, like
+     * {@link #decompress(int[], int, int)} but with the quadrants filled as independent
+     * tasks in the given pool.
+     *
+     * @param buffer the buffer to write into
+     * @param offset the index of pixel (0, 0)
+     * @param stride the distance between the starts of two rows
+     * @param pool the pool to run the decompression in
+     * @throws IllegalArgumentException if pool or buffer is null, the buffer is too small,
+     *                                  or offset or stride are out of range
+     */
+    //Runtime O(n)
+    public void decompress(int[] buffer, int offset, int stride, ForkJoinPool pool) {
+        if (pool == null || buffer == null || offset < 0 || stride < size ||
+                offset + (long) (size - 1) * stride + size > buffer.length) {
+            throw new IllegalArgumentException();
+        }
+        pool.invoke(new DecompressTask(this, null, buffer, offset, stride, 0, 0));
+    }
+
+    /**
+     * Fills the part of the target covered by one node, forking its quadrants while the
+     * node is at least {@link #PARALLEL_DECOMPRESS_CUTOFF} wide. The target is either
+     * rows of an int[][] or a flat buffer with offset and stride.
+     */
+    private static final class DecompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final QuadTreeNodeImpl node;
+        private final int[][] rows;
+        private final int[] buffer;
+        private final int offset;
+        private final int stride;
+        private final int startX;
+        private final int startY;
+
+        DecompressTask(QuadTreeNodeImpl node, int[][] rows, int[] buffer, int offset,
+                       int stride, int startX, int startY) {
+            this.node = node;
+            this.rows = rows;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.stride = stride;
+            this.startX = startX;
+            this.startY = startY;
+        }
+
+        @Override
+        protected void compute() {
+            if (node.isLeaf() || node.size < PARALLEL_DECOMPRESS_CUTOFF) {
+                if (rows != null) {
+                    node.decompressRecursive(rows, startX, startY, node.size);
+                } else {
+                    node.decompressRecursive(buffer, offset, stride, Integer.MAX_VALUE,
+                            Integer.MAX_VALUE, startX, startY);
+                }
+                return;
+            }
+            int half = node.size / 2;
+            DecompressTask[] tasks = new DecompressTask[4];
+            for (int i = 0; i < 4; i++) {
+                tasks[i] = new DecompressTask(node.branch.get(i), rows, buffer, offset, stride,
+                        startX + (i & 1) * half, startY + (i >> 1) * half);
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Decompresses the QuadTree into a caller-supplied flat buffer, so a frame buffer can
+     * be reused for repeated decompression without allocating. Pixel (x, y) is written
+     * to {@code buffer[offset + y * stride + x]}.
+     *
+     * @param buffer the buffer to write into
+     * @param offset the index of pixel (0, 0)
+     * @param stride the distance between the starts of two rows
+     * @throws IllegalArgumentException if buffer is null or too small, or offset or stride
+     *                                  are out of range
+     */
+    //Runtime O(n)
+    public void decompress(int[] buffer, int offset, int stride) {
+        decompress(buffer, offset, stride, size, size);
+    }
+
+    /**
+     * Decompresses the upper-left width x height pixels of the QuadTree into a
+     * caller-supplied flat buffer, for example an image that was padded to a power of
+     * two when it was built. Pixel (x, y) is written to
+     * {@code buffer[offset + y * stride + x]}.
+     *
+     * @param buffer the buffer to write into
+     * @param offset the index of pixel (0, 0)
+     * @param stride the distance between the starts of two rows
+     * @param width the number of columns to write
+     * @param height the number of rows to write
+     * @throws IllegalArgumentException if buffer is null or too small, or any of the
+     *                                  other arguments are out of range
+     */
+    //Runtime O(n)
+    public void decompress(int[] buffer, int offset, int stride, int width, int height) {
+        if (buffer == null || offset < 0 || width < 0 || width > size ||
+                height < 0 || height > size || stride < width ||
+                (height > 0 && offset + (long) (height - 1) * stride + width > buffer.length)) {
+            throw new IllegalArgumentException();
+        }
+        if (width > 0 && height > 0) {
+            decompressRecursive(buffer, offset, stride, width, height, 0, 0);
+        }
+    }
+
+    /**
+     * Decompresses the QuadTree into an IntBuffer. Pixel (x, y) is written to index
+     * {@code offset + y * stride + x} of the buffer, its position is left unchanged.
+     *
+     * @param buffer the buffer to write into
+     * @param offset the index of pixel (0, 0)
+     * @param stride the distance between the starts of two rows
+     * @throws IllegalArgumentException if buffer is null, read-only or too small, or
+     *                                  offset or stride are out of range
+     */
+    //Runtime O(n)
+    public void decompress(IntBuffer buffer, int offset, int stride) {
+        if (buffer == null || buffer.isReadOnly() || offset < 0 || stride < size ||
+                offset + (long) (size - 1) * stride + size > buffer.limit()) {
+            throw new IllegalArgumentException();
+        }
+        if (buffer.hasArray()) {
+            decompress(buffer.array(), buffer.arrayOffset() + offset, stride);
+        } else {
+            decompressRecursive(buffer, offset, stride, 0, 0);
+        }
+    }
+
+    /**
+     * Recursive helper for decompressing into a flat buffer, clipped to width x height.
+     * @param buffer - the buffer to write into
+     * @param offset - the index of pixel (0, 0)
+     * @param stride - the distance between the starts of two rows
+     * @param width - the number of columns to write
+     * @param height - the number of rows to write
+     * @param startX - the x coordinate of this node
+     * @param startY - the y coordinate of this node
+     */
+    private void decompressRecursive(int[] buffer, int offset, int stride, int width,
+                                     int height, int startX, int startY) {
+        if (isLeaf()) {
+            int endX = Math.min(startX + size, width);
+            int endY = Math.min(startY + size, height);
+            for (int y = startY; y < endY; y++) {
+                int row = offset + y * stride;
+                Arrays.fill(buffer, row + startX, row + endX, color);
+            }
+            return;
+        }
+        int half = size / 2;
+        for (int i = 0; i < 4; i++) {
+            int childX = startX + (i & 1) * half;
+            int childY = startY + (i >> 1) * half;
+            if (childX < width && childY < height) {
+                branch.get(i).decompressRecursive(buffer, offset, stride, width, height,
+                        childX, childY);
+            }
+        }
+    }
+
+    // Recursive helper for decompressing into a buffer without an accessible array
+    private void decompressRecursive(IntBuffer buffer, int offset, int stride,
+                                     int startX, int startY) {
+        if (isLeaf()) {
+            for (int y = startY; y < startY + size; y++) {
+                int row = offset + y * stride;
+                for (int x = startX; x < startX + size; x++) {
+                    buffer.put(row + x, color);
+                }
+            }
+            return;
+        }
+        int half = size / 2;
+        for (int i = 0; i < 4; i++) {
+            branch.get(i).decompressRecursive(buffer, offset, stride,
+                    startX + (i & 1) * half, startY + (i >> 1) * half);
+        }
+    }
+
+    //Runtime: O(1)
     @Override
     public double getCompressionRatio() {
         return (double) getSize() / (getDimension() * getDimension());
@@ -266,74 +1141,450 @@ public class QuadTreeNodeImpl implements QuadTreeNode {
         if (x < 0 || x >= size || y < 0 || y >= size) {
             throw new IllegalArgumentException();
         }
-        setColorHelper(x, y, c, size);
+        //Walk down once, splitting leaves on the way. Merging is decided on the way down
+        //too: a node collapses into a leaf of color c exactly when every sibling along the
+        //rest of the path is already a leaf of color c, so we remember the shallowest node
+        //from which that holds instead of re-checking all children on the way back up.
+        QuadTreeNodeImpl mergeFrom = null;
+        QuadTreeNodeImpl node = this;
+        for (int k = Integer.numberOfTrailingZeros(size) - 1; k >= 0; k--) {
+            if (node.branch == null) {
+                if (node.color == c) {
+                    //the pixel already has this color
+                    break;
+                }
+                node.split();
+            }
+            int index = childIndex(x, y, k);
+            if (node.hasUniformSiblings(index, c)) {
+                if (mergeFrom == null) {
+                    mergeFrom = node;
+                }
+            } else {
+                mergeFrom = null;
+            }
+            node = node.branch.get(index);
+        }
+        node.color = c;
+
+        if (mergeFrom != null) {
+            //merge the whole subtree into one leaf node
+            mergeFrom.color = c;
+            mergeFrom.branch = null;
+            node = mergeFrom;
+        }
+        //the node counts change along the path only (also above this node, when setColor
+        //is called on a quadrant of a bigger tree)
+        node.recountToRoot();
     }
 
     /**
-     * Recursive helper method to set the color of a pixel and update the quadtree.
-     * @param x - the x coordinate of the pixel
-     * @param y - the y coordinate of the pixel
-     * @param c - the new color of the pixel
-     * @param dimension - the length and width of the quadrant
+     * Sets the colors of a batch of pixels in a single traversal. The updates are sorted
+     * by Z-order, which makes the updates of every quadrant one contiguous run, so each
+     * touched node is visited once and tries to merge once after all its updates.
+     * @param xs - the x coordinates of the pixels
+     * @param ys - the y coordinates of the pixels
+     * @param colors - the new colors, the last one wins for repeated pixels
+     * @throws IllegalArgumentException if the arrays are null or of different lengths,
+     *                                  or any coordinate is out of bounds
      */
-    private void setColorHelper(int x, int y, int c, int dimension) {
-        //base case: if size is one, then it is a leaf node
-        if (dimension == 1) {
-            this.color = c;
+    @Override
+    public void setColors(int[] xs, int[] ys, int[] colors) {
+        if (xs == null || ys == null || colors == null ||
+                xs.length != ys.length || xs.length != colors.length) {
+            throw new IllegalArgumentException();
+        }
+        int n = xs.length;
+        int level = Integer.numberOfTrailingZeros(size);
+        int indexBits = 32 - Integer.numberOfLeadingZeros(Math.max(n - 1, 0));
+        if (2 * level + indexBits > 63) {
+            //the code and the index do not fit into one sort key
+            QuadTreeNode.super.setColors(xs, ys, colors);
             return;
         }
+        //key = morton code, then the index, so repeated pixels stay in call order
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (xs[i] < 0 || xs[i] >= size || ys[i] < 0 || ys[i] >= size) {
+                throw new IllegalArgumentException();
+            }
+            keys[i] = Morton.encode(xs[i], ys[i]) << indexBits | i;
+        }
+        if (n == 0) {
+            return;
+        }
+        radixSort(keys, 2 * level + indexBits);
+        setColorsHelper(keys, 0, n, indexBits, colors, level);
+        if (parent != null) {
+            parent.recountToRoot();
+        }
+    }
 
-        //recursive case: set the color of the pixel and update the quadtree
-        int half = dimension / 2;
+    /**
+     * Sorts non-negative keys using only their lowest bits, with a least significant
+     * digit radix sort which is linear in the number of keys.
+     * @param keys - the keys to sort
+     * @param bits - the number of low bits that may be set in the keys
+     */
+    private static void radixSort(long[] keys, int bits) {
+        final int digitBits = 11;
+        long[] from = keys;
+        long[] to = new long[keys.length];
+        int[] counts = new int[1 << digitBits];
+        for (int shift = 0; shift < bits; shift += digitBits) {
+            Arrays.fill(counts, 0);
+            for (long key : from) {
+                counts[(int) (key >>> shift) & (counts.length - 1)]++;
+            }
+            int position = 0;
+            for (int digit = 0; digit < counts.length; digit++) {
+                int count = counts[digit];
+                counts[digit] = position;
+                position += count;
+            }
+            for (long key : from) {
+                to[counts[(int) (key >>> shift) & (counts.length - 1)]++] = key;
+            }
+            long[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != keys) {
+            System.arraycopy(from, 0, keys, 0, keys.length);
+        }
+    }
 
-        if (isLeaf()) {
-            QuadTreeNodeImpl topLeft = new QuadTreeNodeImpl(color, half);
-            QuadTreeNodeImpl topRight = new QuadTreeNodeImpl(color, half);
-            QuadTreeNodeImpl bottomLeft = new QuadTreeNodeImpl(color, half);
-            QuadTreeNodeImpl bottomRight = new QuadTreeNodeImpl(color, half);
-            children = new QuadTreeNodeImpl[4];
-            children[0] = topLeft;
-            children[1] = topRight;
-            children[2] = bottomLeft;
-            children[3] = bottomRight;
-            this.color = null;
-        }
-
-        if (x < half && y < half) {
-            getQuadrant(QuadName.TOP_LEFT).setColorHelper(x, y, c, half);
-        } else if (x >= half && y < half) {
-            getQuadrant(QuadName.TOP_RIGHT).setColorHelper(x - half, y, c, half);
-        } else if (x < half && y >= half) {
-            getQuadrant(QuadName.BOTTOM_LEFT).setColorHelper(x, y - half, c, half);
-        } else {
-            getQuadrant(QuadName.BOTTOM_RIGHT).setColorHelper(x - half, y - half, c, half);
+    /**
+     * Recursive helper for setColors which applies the sorted updates [from, to), all of
+     * which fall inside this node.
+     * @param keys - the sorted update keys, morton code relative to the root of the batch
+     *               followed by indexBits bits of index into colors
+     * @param from - the first update for this node (inclusive)
+     * @param to - the last update for this node (exclusive)
+     * @param indexBits - the number of low key bits holding the index
+     * @param colors - the new colors
+     * @param level - log2 of the dimension of this node
+     */
+    private void setColorsHelper(long[] keys, int from, int to, int indexBits,
+                                 int[] colors, int level) {
+        long indexMask = (1L << indexBits) - 1;
+        //base case: a single pixel takes the color of its last update
+        if (level == 0) {
+            color = colors[(int) (keys[to - 1] & indexMask)];
+            return;
+        }
+        if (branch == null) {
+            boolean unchanged = true;
+            for (int i = from; i < to && unchanged; i++) {
+                unchanged = colors[(int) (keys[i] & indexMask)] == color;
+            }
+            if (unchanged) {
+                return;
+            }
+            split();
+        }
+        //recursive case: hand each quadrant its run of updates
+        int shift = 2 * (level - 1) + indexBits;
+        int start = from;
+        for (int i = 0; i < 4 && start < to; i++) {
+            int end = start;
+            while (end < to && (int) (keys[end] >>> shift & 3) == i) {
+                end++;
+            }
+            if (end > start) {
+                branch.get(i).setColorsHelper(keys, start, end, indexBits, colors, level - 1);
+            }
+            start = end;
         }
+        if (isUniformLeaves(branch.topLeft, branch.topRight, branch.bottomLeft,
+                branch.bottomRight)) {
+            color = branch.topLeft.color;
+            branch = null;
+        }
+        recount();
+    }
 
-        //check if all quadrants actually have the same color
-        boolean sameColor = (
-                getQuadrant(QuadName.TOP_LEFT).isLeaf() &&
-                        getQuadrant(QuadName.TOP_RIGHT).isLeaf() &&
-                        getQuadrant(QuadName.BOTTOM_LEFT).isLeaf() &&
-                        getQuadrant(QuadName.BOTTOM_RIGHT).isLeaf() &&
+    /**
+     * Sets the color of a rectangle. Subtrees lying fully inside the rectangle become a
+     * single leaf in one step and only nodes crossing its edge are split, so the cost
+     * grows with the perimeter of the rectangle rather than its area.
+     * @param x - the x coordinate of the upper-left corner
+     * @param y - the y coordinate of the upper-left corner
+     * @param width - the width of the rectangle
+     * @param height - the height of the rectangle
+     * @param c - the new color of the rectangle
+     * @throws IllegalArgumentException if the rectangle is not within bounds
+     */
+    @Override
+    public void fillRect(int x, int y, int width, int height, int c) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > size - x || height > size - y) {
+            throw new IllegalArgumentException();
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
+        fillRectHelper(x, y, x + width, y + height, c, 0, 0);
+        if (parent != null) {
+            parent.recountToRoot();
+        }
+    }
 
-                        Objects.equals(getQuadrant(QuadName.TOP_RIGHT).color,
-                                getQuadrant(QuadName.TOP_LEFT).color) &&
+    /**
+     * Recursive helper for fillRect, the rectangle [left, right) x [top, bottom) is
+     * given in the coordinates of the node fillRect was called on.
+     * @param left - the left edge of the rectangle (inclusive)
+     * @param top - the top edge of the rectangle (inclusive)
+     * @param right - the right edge of the rectangle (exclusive)
+     * @param bottom - the bottom edge of the rectangle (exclusive)
+     * @param c - the new color of the rectangle
+     * @param startX - the x coordinate of this node
+     * @param startY - the y coordinate of this node
+     */
+    private void fillRectHelper(int left, int top, int right, int bottom, int c,
+                                int startX, int startY) {
+        //base case: this node lies fully inside the rectangle
+        if (left <= startX && top <= startY &&
+                startX + size <= right && startY + size <= bottom) {
+            color = c;
+            branch = null;
+            count = 1;
+            return;
+        }
+        if (branch == null) {
+            if (color == c) {
+                return;
+            }
+            split();
+        }
+        //recursive case: only the quadrants overlapping the rectangle change
+        int half = size / 2;
+        for (int i = 0; i < 4; i++) {
+            int childX = startX + (i & 1) * half;
+            int childY = startY + (i >> 1) * half;
+            if (childX < right && left < childX + half && childY < bottom && top < childY + half) {
+                branch.get(i).fillRectHelper(left, top, right, bottom, c, childX, childY);
+            }
+        }
+        if (isUniformLeaves(branch.topLeft, branch.topRight, branch.bottomLeft,
+                branch.bottomRight)) {
+            color = branch.topLeft.color;
+            branch = null;
+        }
+        recount();
+    }
 
-                        Objects.equals(getQuadrant(QuadName.BOTTOM_LEFT).color,
-                                getQuadrant(QuadName.TOP_LEFT).color) &&
+    //Runtime: O(log n) for updating the counts of the ancestors
+    @Override
+    public void fill(int c) {
+        color = c;
+        branch = null;
+        recountToRoot();
+    }
 
-                        Objects.equals(getQuadrant(QuadName.BOTTOM_RIGHT).color,
-                                getQuadrant(QuadName.TOP_LEFT).color)
-        );
+    /**
+     * Collapses every node depth levels below this one into a single leaf of the average
+     * color of its pixels, so the tree keeps at most depth levels under this node. The
+     * average is taken per 8-bit channel (alpha, red, green, blue) and weighted by the
+     * number of pixels. Children are dropped structurally in one post-order pass, so the
+     * cost is linear in the number of nodes rather than in the number of pixels.
+     *
+     * @param depth the number of levels to keep below this node, 0 collapses it entirely
+     * @throws IllegalArgumentException if depth is negative
+     */
+    //Runtime: O(n)
+    public void pruneToDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException();
+        }
+        new Pruner(size, depth, -1).prune(this, 0);
+        recountParents();
+    }
 
-        if (sameColor) {
-            //merge the children into one leaf node
-            color = getQuadrant(QuadName.TOP_LEFT).color;
-            children[0] = null;
-            children[1] = null;
-            children[2] = null;
-            children[3] = null;
+    /**
+     * Collapses every subtree whose pixels all lie within tolerance of their average
+     * color, in each 8-bit channel, into a single leaf of that average. No pixel changes
+     * by more than tolerance in any channel.
+     *
+     * @param tolerance the largest error allowed per channel, from 0 to 255
+     * @throws IllegalArgumentException if tolerance is out of range
+     */
+    //Runtime: O(n)
+    public void pruneToError(int tolerance) {
+        if (tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException();
+        }
+        new Pruner(size, Integer.MAX_VALUE, tolerance).prune(this, 0);
+        recountParents();
+    }
+
+    /**
+     * Collapses subtrees into averaged leaves, those with the smallest error first, until
+     * this node has at most maxNodes nodes. The error of a subtree is the largest
+     * difference between one of its pixels and its average color in any channel, or the
+     * error of one of its own subtrees if that is larger, so the subtrees collapsed always
+     * form the bottom of the tree. Nodes are only collapsed in whole error steps, so the
+     * result may be somewhat below maxNodes.
+     *
+     * @param maxNodes the largest number of nodes to keep, at least 1
+     * @throws IllegalArgumentException if maxNodes is less than 1
+     */
+    //Runtime: O(n)
+    public void pruneToNodeBudget(int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException();
+        }
+        if (count <= maxNodes) {
+            return;
+        }
+        //first pass: how many internal nodes have each error
+        Pruner survey = new Pruner(size, Integer.MAX_VALUE, -1);
+        survey.histogram = new int[256];
+        survey.prune(this, 0);
+        //every internal node that stays keeps its 4 children
+        int allowed = (maxNodes - 1) / 4;
+        int kept = 0;
+        int threshold = 255;
+        while (threshold >= 0 && kept + survey.histogram[threshold] <= allowed) {
+            kept += survey.histogram[threshold];
+            threshold--;
+        }
+        //second pass: collapse every subtree whose error is at most the threshold
+        Pruner pruner = new Pruner(size, Integer.MAX_VALUE, -1);
+        pruner.budgetThreshold = threshold;
+        pruner.prune(this, 0);
+        recountParents();
+    }
+
+    // Refresh the counts of the ancestors after this subtree was pruned
+    private void recountParents() {
+        if (parent != null) {
+            parent.recountToRoot();
+        }
+    }
+
+    /**
+     * One post-order pruning pass. The per-channel mean, minimum and maximum of the node
+     * being visited on each level live in scratch rows indexed by level, which works
+     * since the four quadrants of a node have the same number of pixels.
+     */
+    private static final class Pruner {
+        private final int maxDepth; //nodes at this depth are collapsed
+        private final int tolerance; //collapse nodes with at most this error, -1 for none
+        private int budgetThreshold = -1; //collapse nodes with at most this monotone error
+        private int[] histogram; //if not null, counts internal nodes per monotone error
+        private final double[][] mean; //[level][channel], channel 0 is the low (blue) byte
+        private final int[][] min;
+        private final int[][] max;
+        private final int[] monotoneError; //[level] max of the error and the children's
+
+        Pruner(int size, int maxDepth, int tolerance) {
+            int levels = Integer.numberOfTrailingZeros(size) + 1;
+            this.maxDepth = maxDepth;
+            this.tolerance = tolerance;
+            this.mean = new double[levels][4];
+            this.min = new int[levels][4];
+            this.max = new int[levels][4];
+            this.monotoneError = new int[levels];
+        }
+
+        /**
+         * Prunes the subtree of node and leaves its statistics in the row of its level.
+         * @param node - the node to prune
+         * @param depth - the depth of node below the node pruning started at
+         */
+        void prune(QuadTreeNodeImpl node, int depth) {
+            int level = Integer.numberOfTrailingZeros(node.size);
+            if (node.branch == null) {
+                for (int channel = 0; channel < 4; channel++) {
+                    int value = (node.color >>> (8 * channel)) & 0xFF;
+                    mean[level][channel] = value;
+                    min[level][channel] = value;
+                    max[level][channel] = value;
+                }
+                monotoneError[level] = 0;
+                return;
+            }
+            double[] nodeMean = mean[level];
+            int[] nodeMin = min[level];
+            int[] nodeMax = max[level];
+            Arrays.fill(nodeMean, 0);
+            Arrays.fill(nodeMin, 255);
+            Arrays.fill(nodeMax, 0);
+            int childrenError = 0;
+            for (int i = 0; i < 4; i++) {
+                prune(node.branch.get(i), depth + 1);
+                for (int channel = 0; channel < 4; channel++) {
+                    nodeMean[channel] += mean[level - 1][channel] / 4;
+                    nodeMin[channel] = Math.min(nodeMin[channel], min[level - 1][channel]);
+                    nodeMax[channel] = Math.max(nodeMax[channel], max[level - 1][channel]);
+                }
+                childrenError = Math.max(childrenError, monotoneError[level - 1]);
+            }
+            int average = 0;
+            int error = 0;
+            for (int channel = 0; channel < 4; channel++) {
+                int value = (int) Math.round(nodeMean[channel]);
+                average |= value << (8 * channel);
+                error = Math.max(error, Math.max(value - nodeMin[channel],
+                        nodeMax[channel] - value));
+            }
+            monotoneError[level] = Math.max(error, childrenError);
+            if (histogram != null) {
+                histogram[monotoneError[level]]++;
+            }
+
+            if (depth >= maxDepth || error <= tolerance
+                    || monotoneError[level] <= budgetThreshold) {
+                node.color = average;
+                node.branch = null;
+            } else if (isUniformLeaves(node.branch.topLeft, node.branch.topRight,
+                    node.branch.bottomLeft, node.branch.bottomRight)) {
+                //children collapsed into leaves of the same average
+                node.color = node.branch.topLeft.color;
+                node.branch = null;
+            }
+            node.recount();
+        }
+    }
+
+    /**
+     * Turns this leaf into an internal node with four leaf children of its color.
+     */
+    private void split() {
+        int half = size / 2;
+        branch = new Branch(this,
+                new QuadTreeNodeImpl(color, half), new QuadTreeNodeImpl(color, half),
+                new QuadTreeNodeImpl(color, half), new QuadTreeNodeImpl(color, half));
+    }
+
+    /**
+     * Turns this leaf into an internal node with the given children, for decoders which
+     * build a tree level by level. The children are not merged even if they are leaves of
+     * the same color.
+     * @param topLeft - the top left quadrant
+     * @param topRight - the top right quadrant
+     * @param bottomLeft - the bottom left quadrant
+     * @param bottomRight - the bottom right quadrant
+     */
+    //Runtime: O(log n)
+    void refine(QuadTreeNodeImpl topLeft, QuadTreeNodeImpl topRight,
+                QuadTreeNodeImpl bottomLeft, QuadTreeNodeImpl bottomRight) {
+        color = 0;
+        branch = new Branch(this, topLeft, topRight, bottomLeft, bottomRight);
+        recountToRoot();
+    }
+
+    //Check if every child except the one at index is a leaf of color c
+    //Runtime: O(1)
+    private boolean hasUniformSiblings(int index, int c) {
+        for (int i = 0; i < 4; i++) {
+            QuadTreeNodeImpl sibling = branch.get(i);
+            if (i != index && (sibling.branch != null || sibling.color != c)) {
+                return false;
+            }
         }
+        return true;
     }
 
 }
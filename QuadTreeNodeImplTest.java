@@ -1,5 +1,11 @@
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.Before;
 import org.junit.Test;
 public class QuadTreeNodeImplTest {
@@ -148,6 +154,36 @@ public class QuadTreeNodeImplTest {
         QuadTreeNodeImpl.buildFromIntArray(nullRowArray); //throws illegal argument exception
     }
 
+    /**
+     * Test the parallel build gives the same tree as the sequential one
+     */
+    @Test
+    public void testParallelBuildMatchesSequential() {
+        Random random = new Random(121);
+        int[][] image = new int[64][64];
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                image[y][x] = random.nextInt(8) == 0 ? random.nextInt(3) : 0;
+            }
+        }
+        QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int cutoff : new int[]{1, 2, 16, 64, 128}) {
+                QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image, pool, cutoff);
+                assertEquals(expected.getSize(), tree.getSize());
+                assertArrayEquals(image, tree.decompress());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testParallelBuildNullPool() {
+        QuadTreeNodeImpl.buildFromIntArray(array4Quadrants, null);
+    }
+
     /**
      * Test illegal argument exception for getColor
      */
@@ -210,6 +246,498 @@ public class QuadTreeNodeImplTest {
         QuadTreeNodeImpl.buildFromIntArray(emptyArray).decompress();
     }
 
+    @Test
+    public void testDecompressFlatBufferWithOffsetAndStride() {
+        int[] buffer = new int[3 + 3 * 6 + 4 + 2];
+        Arrays.fill(buffer, -1);
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).decompress(buffer, 3, 6);
+        for (int y = 0; y < 4; y++) {
+            assertArrayEquals(arrayMultiQuadrants[y],
+                    Arrays.copyOfRange(buffer, 3 + y * 6, 3 + y * 6 + 4));
+            if (y < 3) {
+                assertEquals(-1, buffer[3 + y * 6 + 4]);
+            }
+        }
+        assertEquals(-1, buffer[2]);
+        assertEquals(-1, buffer[buffer.length - 1]);
+    }
+
+    @Test
+    public void testDecompressFlatBufferClipped() {
+        int[] buffer = new int[6];
+        QuadTreeNodeImpl.buildFromIntArray(arrayUniqueAllPixels).decompress(buffer, 0, 3, 3, 2);
+        assertArrayEquals(new int[]{1, 2, 3, 5, 6, 7}, buffer);
+    }
+
+    @Test
+    public void testDecompressDirectIntBuffer() {
+        IntBuffer buffer = ByteBuffer.allocateDirect(4 * 16).asIntBuffer();
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).decompress(buffer, 0, 4);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(arrayMultiQuadrants[y][x], buffer.get(y * 4 + x));
+            }
+        }
+        assertEquals(0, buffer.position());
+    }
+
+    // Smooth gradient with some noise, in opaque ARGB colors
+    private static int[][] gradientImage(int dimension, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[dimension][dimension];
+        for (int y = 0; y < dimension; y++) {
+            for (int x = 0; x < dimension; x++) {
+                int red = Math.min(255, x * 256 / dimension + random.nextInt(4));
+                int green = y * 256 / dimension;
+                int blue = random.nextInt(16) == 0 ? random.nextInt(256) : 128;
+                image[y][x] = 0xFF000000 | red << 16 | green << 8 | blue;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Test a lossy build with no tolerance gives exactly the lossless tree
+     */
+    @Test
+    public void testLossyBuildZeroToleranceIsLossless() {
+        for (int[][] image : new int[][][]{array4Quadrants, arrayMultiQuadrants,
+            arrayUniformColor, arrayUniqueAllPixels, gradientImage(128, 121)}) {
+            QuadTreeNodeImpl lossless = QuadTreeNodeImpl.buildFromIntArray(image);
+            QuadTreeNodeImpl lossy = QuadTreeNodeImpl.buildFromIntArray(image, 0);
+            assertArrayEquals(image, lossy.decompress());
+            assertEquals(lossless.getSize(), lossy.getSize());
+        }
+    }
+
+    @Test
+    public void testLossyBuildStaysWithinTolerance() {
+        int[][] image = gradientImage(256, 7);
+        int previousSize = Integer.MAX_VALUE;
+        for (int tolerance : new int[]{1, 4, 16, 64}) {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image, tolerance);
+            int[][] result = tree.decompress();
+            for (int y = 0; y < 256; y++) {
+                for (int x = 0; x < 256; x++) {
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        int expected = (image[y][x] >>> shift) & 0xFF;
+                        int actual = (result[y][x] >>> shift) & 0xFF;
+                        assertTrue(Math.abs(expected - actual) <= tolerance);
+                    }
+                }
+            }
+            assertTrue(tree.getSize() < previousSize);
+            previousSize = tree.getSize();
+        }
+    }
+
+    @Test
+    public void testLossyBuildAveragesChannels() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(new int[][]{
+                {0x00000000, 0x00020202},
+                {0x00040404, 0x00060606}}, 3);
+        assertTrue(tree.isLeaf());
+        assertEquals(0x00030303, tree.getColor(1, 1));
+        assertTrue(QuadTreeNodeImpl.buildFromIntArray(gradientImage(64, 1), 255).isLeaf());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testLossyBuildNegativeTolerance() {
+        QuadTreeNodeImpl.buildFromIntArray(array4Quadrants, -1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testLossyBuildNotPowerOfTwo() {
+        QuadTreeNodeImpl.buildFromIntArray(notPowerOfTwoArray, 4);
+    }
+
+    /**
+     * Test pruning to a depth averages each dropped subtree weighted by pixels
+     */
+    @Test
+    public void testPruneToDepth() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(new int[][]{
+                {0x10, 0x10, 0x20, 0x30},
+                {0x10, 0x10, 0x10, 0x70},
+                {0x20, 0x20, 0x00, 0x00},
+                {0x20, 0x20, 0x00, 0x00}});
+        tree.pruneToDepth(1);
+        assertEquals(5, tree.getSize());
+        //the top right quadrant becomes the average of 0x20, 0x30, 0x10 and 0x70
+        assertEquals(0x34, tree.getColor(3, 0));
+        assertEquals(0x10, tree.getColor(0, 0));
+
+        tree.pruneToDepth(0);
+        assertTrue(tree.isLeaf());
+        //pixel weighted: (4 * 0x10 + 4 * 0x34 + 4 * 0x20 + 4 * 0x00) / 16
+        assertEquals(0x19, tree.getColor(0, 0));
+    }
+
+    @Test
+    public void testPruneToDepthAveragesChannelsSeparately() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(new int[][]{
+                {0xFF0000FF, 0x0000FF00},
+                {0x00FF0000, 0xFFFFFFFF}});
+        tree.pruneToDepth(0);
+        assertEquals(0x80808080, tree.getColor(0, 0));
+    }
+
+    @Test
+    public void testPruneQuadrantUpdatesSize() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayUniqueAllPixels);
+        tree.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT).pruneToDepth(0);
+        assertEquals(17, tree.getSize());
+        //pruning every quadrant to a leaf of the same color merges them
+        QuadTreeNodeImpl checkers = QuadTreeNodeImpl.buildFromIntArray(new int[][]{
+                {0, 2, 0, 2},
+                {2, 0, 2, 0},
+                {0, 2, 0, 2},
+                {2, 0, 2, 0}});
+        checkers.pruneToDepth(1);
+        assertTrue(checkers.isLeaf());
+        assertEquals(1, checkers.getColor(3, 3));
+    }
+
+    @Test
+    public void testPruneToErrorStaysWithinTolerance() {
+        int[][] image = gradientImage(128, 3);
+        for (int tolerance : new int[]{0, 3, 20}) {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            tree.pruneToError(tolerance);
+            int[][] result = tree.decompress();
+            for (int y = 0; y < 128; y++) {
+                for (int x = 0; x < 128; x++) {
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        assertTrue(Math.abs(((image[y][x] >>> shift) & 0xFF)
+                                - ((result[y][x] >>> shift) & 0xFF)) <= tolerance);
+                    }
+                }
+            }
+            assertEquals(QuadTreeNodeImpl.buildFromIntArray(result).getSize(), tree.getSize());
+        }
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        tree.pruneToError(0);
+        assertArrayEquals(image, tree.decompress());
+    }
+
+    @Test
+    public void testPruneToNodeBudget() {
+        int[][] image = gradientImage(256, 5);
+        for (int budget : new int[]{1, 5, 100, 1000, 20000}) {
+            QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+            tree.pruneToNodeBudget(budget);
+            assertTrue(tree.getSize() <= budget);
+            assertEquals(QuadTreeNodeImpl.buildFromIntArray(tree.decompress()).getSize(),
+                    tree.getSize());
+        }
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        int size = tree.getSize();
+        tree.pruneToNodeBudget(size);
+        assertArrayEquals(image, tree.decompress());
+        tree.pruneToNodeBudget(size / 2);
+        assertTrue(tree.getSize() > size / 8);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testPruneToDepthNegative() {
+        QuadTreeNodeImpl.buildFromIntArray(array4Quadrants).pruneToDepth(-1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testPruneToNodeBudgetZero() {
+        QuadTreeNodeImpl.buildFromIntArray(array4Quadrants).pruneToNodeBudget(0);
+    }
+
+    // Average color of a rectangle of an image, channel by channel, by brute force
+    private static int averageOf(int[][] image, int x, int y, int width, int height) {
+        int average = 0;
+        long area = (long) width * height;
+        for (int channel = 0; channel < 4; channel++) {
+            long sum = 0;
+            for (int j = y; j < y + height; j++) {
+                for (int i = x; i < x + width; i++) {
+                    sum += (image[j][i] >>> (8 * channel)) & 0xFF;
+                }
+            }
+            average |= (int) ((sum + area / 2) / area) << (8 * channel);
+        }
+        return average;
+    }
+
+    @Test
+    public void testAverageColor() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants);
+        assertEquals(1, tree.averageColor(0, 0, 2, 2));
+        assertEquals(averageOf(arrayMultiQuadrants, 0, 0, 4, 4), tree.averageColor(0, 0, 4, 4));
+        assertEquals(averageOf(arrayMultiQuadrants, 1, 1, 3, 2), tree.averageColor(1, 1, 3, 2));
+        assertEquals(7, tree.averageColor(3, 1, 1, 1));
+    }
+
+    @Test
+    public void testAverageColorFollowsUpdates() {
+        int[][] image = gradientImage(64, 11);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        Random random = new Random(12);
+        for (int round = 0; round < 50; round++) {
+            int x = random.nextInt(64);
+            int y = random.nextInt(64);
+            int c = random.nextInt();
+            switch (round % 3) {
+                case 0:
+                    tree.setColor(x, y, c);
+                    image[y][x] = c;
+                    break;
+                case 1:
+                    tree.setColors(new int[]{x, 63 - x}, new int[]{y, y}, new int[]{c, c});
+                    image[y][x] = c;
+                    image[y][63 - x] = c;
+                    break;
+                default:
+                    int width = random.nextInt(64 - x) + 1;
+                    int height = random.nextInt(64 - y) + 1;
+                    tree.fillRect(x, y, width, height, c);
+                    for (int j = y; j < y + height; j++) {
+                        Arrays.fill(image[j], x, x + width, c);
+                    }
+            }
+            int left = random.nextInt(64);
+            int top = random.nextInt(64);
+            int width = random.nextInt(64 - left) + 1;
+            int height = random.nextInt(64 - top) + 1;
+            assertEquals(averageOf(image, left, top, width, height),
+                    tree.averageColor(left, top, width, height));
+            assertEquals(averageOf(image, 0, 0, 64, 64), tree.averageColor(0, 0, 64, 64));
+        }
+        tree.pruneToDepth(3);
+        assertEquals(averageOf(tree.decompress(), 5, 9, 40, 17),
+                tree.averageColor(5, 9, 40, 17));
+    }
+
+    @Test
+    public void testAverageColorMatchesDefault() {
+        int[][] image = gradientImage(32, 13);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        QuadTreeNode other = PersistentQuadTreeNode.buildFromIntArray(image);
+        assertEquals(other.averageColor(3, 4, 20, 25), tree.averageColor(3, 4, 20, 25));
+        assertEquals(other.averageColor(0, 0, 32, 32), tree.averageColor(0, 0, 32, 32));
+    }
+
+    @Test
+    public void testCountColor() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants);
+        assertEquals(5, tree.countColor(0, 0, 4, 4, 1));
+        assertEquals(4, tree.countColor(0, 0, 4, 4, 0));
+        assertEquals(1, tree.countColor(2, 0, 2, 2, 7));
+        assertEquals(0, tree.countColor(0, 0, 2, 2, 7));
+        assertEquals(2, tree.countColor(1, 1, 2, 3, 2));
+        assertEquals(0, tree.countColor(1, 1, 0, 3, 2));
+        tree.setColor(3, 3, 7);
+        assertEquals(2, tree.countColor(0, 0, 4, 4, 7));
+        assertEquals(3, tree.countColor(0, 0, 4, 4, 0));
+    }
+
+    @Test
+    public void testCountColorMatchesDefault() {
+        int[][] image = new int[64][64];
+        Random random = new Random(14);
+        for (int[] row : image) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt(4) * 0x010203;
+            }
+        }
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        QuadTreeNode other = PersistentQuadTreeNode.buildFromIntArray(image);
+        for (int c = 0; c < 4; c++) {
+            assertEquals(other.countColor(7, 2, 50, 33, c * 0x010203),
+                    tree.countColor(7, 2, 50, 33, c * 0x010203));
+        }
+        assertEquals(0, tree.countColor(0, 0, 64, 64, 0x7F7F7F));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testAverageColorEmptyRect() {
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).averageColor(0, 0, 0, 1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testCountColorIllegalOverBounds() {
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).countColor(2, 2, 3, 1, 0);
+    }
+
+    // Leaves visited by forEachLeaf as {x, y, dimension, color} rows
+    private static int[][] leavesOf(QuadTreeNode tree, int x, int y, int width, int height,
+                                    QuadTreeNode.LeafOrder order) {
+        int[][] leaves = new int[tree.getSize()][];
+        int[] count = {0};
+        tree.forEachLeaf(x, y, width, height, order,
+                (leafX, leafY, dimension, color) ->
+                        leaves[count[0]++] = new int[]{leafX, leafY, dimension, color});
+        return Arrays.copyOf(leaves, count[0]);
+    }
+
+    @Test
+    public void testForEachLeafZOrder() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants);
+        int[][] expected = {{0, 0, 2, 1}, {2, 0, 1, 2}, {3, 0, 1, 3}, {2, 1, 1, 1},
+                {3, 1, 1, 7}, {0, 2, 2, 2}, {2, 2, 2, 0}};
+        int[][] leaves = new int[7][];
+        int[] count = {0};
+        tree.forEachLeaf((x, y, dimension, color) ->
+                leaves[count[0]++] = new int[]{x, y, dimension, color});
+        assertArrayEquals(expected, leaves);
+        assertArrayEquals(expected, leavesOf(tree, 0, 0, 4, 4, QuadTreeNode.LeafOrder.Z_ORDER));
+    }
+
+    @Test
+    public void testForEachLeafRowMajor() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants);
+        int[][] expected = {{0, 0, 2, 1}, {2, 0, 1, 2}, {3, 0, 1, 3}, {2, 1, 1, 1},
+                {3, 1, 1, 7}, {0, 2, 2, 2}, {2, 2, 2, 0}};
+        assertArrayEquals(expected, leavesOf(tree, 0, 0, 4, 4,
+                QuadTreeNode.LeafOrder.ROW_MAJOR));
+        //the leaf crossing the top of the rectangle comes first
+        assertArrayEquals(new int[][]{{0, 0, 2, 1}, {2, 1, 1, 1}, {0, 2, 2, 2}, {2, 2, 2, 0}},
+                leavesOf(tree, 1, 1, 2, 3, QuadTreeNode.LeafOrder.ROW_MAJOR));
+    }
+
+    @Test
+    public void testForEachLeafClipsAndCovers() {
+        int[][] image = gradientImage(64, 21);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image, 8);
+        QuadTreeNode other = PersistentQuadTreeNode.buildFromIntArray(tree.decompress());
+        for (QuadTreeNode.LeafOrder order : QuadTreeNode.LeafOrder.values()) {
+            int[][] leaves = leavesOf(tree, 5, 9, 40, 30, order);
+            assertArrayEquals(leavesOf(other, 5, 9, 40, 30, order), leaves);
+            long covered = 0;
+            for (int i = 0; i < leaves.length; i++) {
+                int[] leaf = leaves[i];
+                assertEquals(tree.getColor(leaf[0], leaf[1]), leaf[3]);
+                long width = Math.min(leaf[0] + leaf[2], 45) - Math.max(leaf[0], 5);
+                long height = Math.min(leaf[1] + leaf[2], 39) - Math.max(leaf[1], 9);
+                assertTrue(width > 0 && height > 0);
+                covered += width * height;
+                if (order == QuadTreeNode.LeafOrder.ROW_MAJOR && i > 0 && leaf[1] > 9) {
+                    int[] previous = leaves[i - 1];
+                    assertTrue(previous[1] < leaf[1]
+                            || previous[1] == leaf[1] && previous[0] < leaf[0]);
+                }
+            }
+            assertEquals(40 * 30, covered);
+        }
+        assertEquals(0, leavesOf(tree, 3, 3, 0, 5, QuadTreeNode.LeafOrder.Z_ORDER).length);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testForEachLeafNullVisitor() {
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).forEachLeaf(null);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testForEachLeafIllegalOverBounds() {
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).forEachLeaf(1, 0, 4, 1,
+                QuadTreeNode.LeafOrder.Z_ORDER, (x, y, dimension, color) -> { });
+    }
+
+    /**
+     * Test every level is the image averaged over squares of the size of its pixels
+     */
+    @Test
+    public void testDecompressAtLevel() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants);
+        assertArrayEquals(new int[][]{{averageOf(arrayMultiQuadrants, 0, 0, 4, 4)}},
+                tree.decompress(0));
+        assertArrayEquals(new int[][]{{1, averageOf(arrayMultiQuadrants, 2, 0, 2, 2)}, {2, 0}},
+                tree.decompress(1));
+        assertArrayEquals(arrayMultiQuadrants, tree.decompress(2));
+        assertEquals(averageOf(arrayMultiQuadrants, 2, 0, 2, 2), tree.getColorAtLevel(1, 0, 1));
+        assertEquals(2, tree.getColorAtLevel(0, 1, 1));
+
+        int[][] image = gradientImage(64, 21);
+        tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        for (int level = 0; level <= 6; level++) {
+            int scale = 64 >> level;
+            int[][] expected = new int[1 << level][1 << level];
+            for (int y = 0; y < 1 << level; y++) {
+                for (int x = 0; x < 1 << level; x++) {
+                    expected[y][x] = averageOf(image, x * scale, y * scale, scale, scale);
+                    assertEquals(expected[y][x], tree.getColorAtLevel(x, y, level));
+                }
+            }
+            assertArrayEquals(expected, tree.decompress(level));
+        }
+    }
+
+    @Test
+    public void testDecompressAtLevelFollowsUpdates() {
+        int[][] image = gradientImage(32, 22);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        assertEquals(averageOf(image, 0, 0, 32, 32), tree.getColorAtLevel(0, 0, 0));
+        tree.fillRect(0, 0, 16, 16, 0xFF000000);
+        tree.setColor(31, 31, 0xFFFFFFFF);
+        for (int y = 0; y < 16; y++) {
+            Arrays.fill(image[y], 0, 16, 0xFF000000);
+        }
+        image[31][31] = 0xFFFFFFFF;
+        int[][] level = tree.decompress(2);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(averageOf(image, x * 8, y * 8, 8, 8), level[y][x]);
+            }
+        }
+        assertEquals(averageOf(image, 0, 0, 32, 32), tree.getColorAtLevel(0, 0, 0));
+    }
+
+    @Test
+    public void testDecompressAtLevelMatchesDefault() {
+        int[][] image = gradientImage(32, 23);
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        QuadTreeNode other = PersistentQuadTreeNode.buildFromIntArray(image);
+        for (int level = 0; level <= 5; level++) {
+            assertArrayEquals(other.decompress(level), tree.decompress(level));
+            assertEquals(other.getColorAtLevel(level, level, level),
+                    tree.getColorAtLevel(level, level, level));
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testDecompressAtLevelTooDeep() {
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).decompress(3);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testGetColorAtLevelIllegalOverBounds() {
+        QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants).getColorAtLevel(2, 0, 1);
+    }
+
+    @Test
+    public void testParallelDecompressMatchesSequential() {
+        Random random = new Random(121);
+        int[][] image = new int[1024][1024];
+        for (int y = 0; y < 1024; y++) {
+            for (int x = 0; x < 1024; x++) {
+                image[y][x] = random.nextInt(16) == 0 ? random.nextInt(3) : (x / 300) % 2;
+            }
+        }
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(image, tree.decompress(pool));
+            int[] buffer = new int[1024 * 1024 + 7];
+            tree.decompress(buffer, 7, 1024, pool);
+            assertArrayEquals(image[1023], Arrays.copyOfRange(buffer, 7 + 1023 * 1024,
+                    buffer.length));
+            assertArrayEquals(image[511], Arrays.copyOfRange(buffer, 7 + 511 * 1024,
+                    7 + 512 * 1024));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testDecompressFlatBufferTooSmall() {
+        QuadTreeNodeImpl.buildFromIntArray(array4Quadrants).decompress(new int[15], 0, 4);
+    }
+
     /*
      * Test getQuadrant
      */
@@ -317,6 +845,125 @@ public class QuadTreeNodeImplTest {
         assertArrayEquals(expectedArray, tree.decompress());
     }
 
+    @Test
+    public void testSetColorMatchesRebuild() {
+        Random random = new Random(121);
+        int[][] image = new int[16][16];
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(16);
+            int y = random.nextInt(16);
+            int c = random.nextInt(3);
+            image[y][x] = c;
+            tree.setColor(x, y, c);
+            assertEquals(c, tree.getColor(x, y));
+        }
+        assertArrayEquals(image, tree.decompress());
+        //splits and merges keep the tree as small as a fresh build
+        assertEquals(QuadTreeNodeImpl.buildFromIntArray(image).getSize(), tree.getSize());
+    }
+
+    @Test
+    public void testSetColorOnQuadrantUpdatesRootSize() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(array4Quadrants);
+        assertEquals(5, tree.getSize());
+        assertEquals(4, tree.getLeafCount());
+        tree.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT).setColor(1, 0, 7);
+        assertEquals(9, tree.getSize());
+        assertEquals(9.0 / 16.0, tree.getCompressionRatio(), 0.0001);
+        tree.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT).setColor(1, 0, 4);
+        assertEquals(5, tree.getSize());
+    }
+
+    /**
+     * Test setColors
+     */
+    @Test
+    public void testSetColorsMatchesSetColor() {
+        Random random = new Random(121);
+        int[][] image = new int[32][32];
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        QuadTreeNodeImpl expected = QuadTreeNodeImpl.buildFromIntArray(image);
+        for (int batch = 0; batch < 20; batch++) {
+            int n = random.nextInt(400);
+            int[] xs = new int[n];
+            int[] ys = new int[n];
+            int[] colors = new int[n];
+            for (int i = 0; i < n; i++) {
+                xs[i] = random.nextInt(32);
+                ys[i] = random.nextInt(32);
+                colors[i] = random.nextInt(3);
+                expected.setColor(xs[i], ys[i], colors[i]);
+            }
+            tree.setColors(xs, ys, colors);
+            assertArrayEquals(expected.decompress(), tree.decompress());
+            assertEquals(expected.getSize(), tree.getSize());
+        }
+    }
+
+    @Test
+    public void testSetColorsLastUpdateWins() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(array4Quadrants);
+        tree.setColors(new int[]{3, 0, 3}, new int[]{3, 0, 3}, new int[]{5, 1, 4});
+        assertEquals(4, tree.getColor(3, 3));
+        assertEquals(5, tree.getSize());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testSetColorsIllegalOverBounds() {
+        QuadTreeNodeImpl.buildFromIntArray(array4Quadrants)
+                .setColors(new int[]{0, 4}, new int[]{0, 0}, new int[]{1, 1});
+    }
+
+    /**
+     * Test fillRect and fill
+     */
+    @Test
+    public void testFillRectMatchesSetColor() {
+        Random random = new Random(121);
+        int[][] image = new int[16][16];
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(image);
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(16);
+            int y = random.nextInt(16);
+            int width = random.nextInt(17 - x);
+            int height = random.nextInt(17 - y);
+            int c = random.nextInt(3);
+            for (int j = y; j < y + height; j++) {
+                for (int k = x; k < x + width; k++) {
+                    image[j][k] = c;
+                }
+            }
+            tree.fillRect(x, y, width, height, c);
+        }
+        assertArrayEquals(image, tree.decompress());
+        assertEquals(QuadTreeNodeImpl.buildFromIntArray(image).getSize(), tree.getSize());
+    }
+
+    @Test
+    public void testFillRectCollapsesCoveredNodes() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayUniqueAllPixels);
+        tree.fillRect(0, 0, 2, 4, 0);
+        assertEquals(13, tree.getSize());
+        assertTrue(tree.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT).isLeaf());
+        assertTrue(tree.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT).isLeaf());
+        tree.fillRect(0, 0, 4, 4, 2);
+        assertEquals(1, tree.getSize());
+    }
+
+    @Test
+    public void testFillQuadrant() {
+        QuadTreeNodeImpl tree = QuadTreeNodeImpl.buildFromIntArray(arrayMultiQuadrants);
+        tree.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT).fill(9);
+        assertEquals(5, tree.getSize());
+        assertEquals(9, tree.getColor(3, 1));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testFillRectIllegalOverBounds() {
+        QuadTreeNodeImpl.buildFromIntArray(array4Quadrants).fillRect(2, 2, 3, 1, 0);
+    }
+
     /**
      * Test illegal argument exception for setColor
      */
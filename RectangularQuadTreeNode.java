@@ -0,0 +1,508 @@
+// QuadTree
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A QuadTree of an image of any width and height.
+ * <p/>
+ * The pixels live in a square {@link QuadTreeNodeImpl} of the smallest power of two
+ * dimension containing the image, but the area outside of the image is void: it is never
+ * read, never causes a split, and a quadrant whose pixels inside the image all have one
+ * color is a single leaf whatever lies outside. A 4100 x 2200 photo therefore costs the
+ * nodes of its own pixels plus at most a few leaves along its right and bottom edges,
+ * instead of the nodes needed to describe an 8192 x 8192 padded square.
+ * <p/>
+ * getColor, setColor, decompress, the region queries and getCompressionRatio all work on
+ * the true width and height; getDimension still reports the dimension of the square, as
+ * the quadrants are the quadrants of that square. getQuadrant hands out views clipped to
+ * the image, so the view of a quadrant lying fully outside of it has a width or height
+ * of 0.
+ */
+public class RectangularQuadTreeNode implements QuadTreeNode {
+
+    private static final QuadName[] QUADRANTS = QuadName.values();
+
+    /*
+     * Attributes
+     */
+    private final QuadTreeNodeImpl node; //the square holding the pixels
+    private final int width; //columns of the square inside the image
+    private final int height; //rows of the square inside the image
+    //scratch space for the path of setColor, allocated by the first setColor that needs it
+    private QuadTreeNodeImpl[] path;
+
+    private RectangularQuadTreeNode(QuadTreeNodeImpl node, int width, int height) {
+        this.node = node;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Builds a QuadTree from an image of any width and height.
+     *
+     * @param image image to put into the tree, image[y][x] being the pixel at (x, y)
+     * @return the newly built RectangularQuadTreeNode which stores the compressed image
+     * @throws IllegalArgumentException if image is null, empty or its rows are null, empty
+     *                                  or of different lengths
+     */
+    public static RectangularQuadTreeNode buildFromIntArray(int[][] image) {
+        if (image == null || image.length == 0 || image[0] == null || image[0].length == 0) {
+            throw new IllegalArgumentException();
+        }
+        int width = image[0].length;
+        for (int[] row : image) {
+            if (row == null || row.length != width) {
+                throw new IllegalArgumentException();
+            }
+        }
+        int height = image.length;
+        int dimension = squareDimension(width, height);
+        QuadTreeNodeImpl root = buildFromArrayHelper(image, width, height, dimension, 0, 0);
+        return new RectangularQuadTreeNode(root != null ? root
+                : new QuadTreeNodeImpl(image[0][0], dimension), width, height);
+    }
+
+    /**
+     * Builds a QuadTree from a {@link BufferedImage} of any width and height, reading the
+     * raster band by band through {@link QuadTreeImages#buildFromImage(BufferedImage)}
+     * and then merging the quadrants along the right and bottom edges which only differ
+     * outside of the image.
+     *
+     * @param image the image to compress
+     * @return the compressed image
+     * @throws IllegalArgumentException if image is null
+     */
+    public static RectangularQuadTreeNode buildFromImage(BufferedImage image) {
+        if (image == null) {
+            throw new IllegalArgumentException("Image cannot be null");
+        }
+        return wrap(QuadTreeImages.buildFromImage(image), image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Wraps a square tree whose upper-left width x height pixels are the image, merging
+     * the quadrants which only differ outside of it. The tree is owned by the result.
+     * @param node - the square tree
+     * @param width - the width of the image, at most the dimension of node
+     * @param height - the height of the image, at most the dimension of node
+     * @return the tree of the image
+     */
+    static RectangularQuadTreeNode wrap(QuadTreeNodeImpl node, int width, int height) {
+        if (node == null || width <= 0 || height <= 0 ||
+                width > node.getDimension() || height > node.getDimension()) {
+            throw new IllegalArgumentException();
+        }
+        RectangularQuadTreeNode tree = new RectangularQuadTreeNode(node, width, height);
+        tree.mergeEdges(node, 0, 0);
+        return tree;
+    }
+
+    // Smallest power of two that is at least width and height
+    private static int squareDimension(int width, int height) {
+        int dimension = 1;
+        while (dimension < Math.max(width, height)) {
+            dimension *= 2;
+        }
+        return dimension;
+    }
+
+    /**
+     * Recursive helper method to build the QuadTree, for a quadrant whose upper-left pixel
+     * lies inside the image. As in QuadTreeNodeImpl a quadrant whose pixels have a single
+     * color is returned as null, its color being that of its upper-left pixel, and only
+     * the quadrants inside the image are compared.
+     * @param image - the image to be compressed
+     * @param width - the width of the image
+     * @param height - the height of the image
+     * @param size - the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     * @return null if the quadrant is uniform inside the image, otherwise an internal node
+     */
+    private static QuadTreeNodeImpl buildFromArrayHelper(int[][] image, int width, int height,
+                                                         int size, int x, int y) {
+        if (size == 1) {
+            return null;
+        }
+        int half = size / 2;
+        boolean right = x + half < width;
+        boolean below = y + half < height;
+        //the top left quadrant always overlaps the image, the others may be void
+        QuadTreeNodeImpl topLeft = buildFromArrayHelper(image, width, height, half, x, y);
+        QuadTreeNodeImpl topRight = right
+                ? buildFromArrayHelper(image, width, height, half, x + half, y) : null;
+        QuadTreeNodeImpl bottomLeft = below
+                ? buildFromArrayHelper(image, width, height, half, x, y + half) : null;
+        QuadTreeNodeImpl bottomRight = right && below
+                ? buildFromArrayHelper(image, width, height, half, x + half, y + half) : null;
+        int color = image[y][x];
+        boolean sameColor = topLeft == null &&
+                (!right || topRight == null && image[y][x + half] == color) &&
+                (!below || bottomLeft == null && image[y + half][x] == color) &&
+                (!right || !below || bottomRight == null && image[y + half][x + half] == color);
+        if (sameColor) {
+            return null;
+        }
+        return new QuadTreeNodeImpl(size,
+                materialize(topLeft, image, half, x, y, true, color),
+                materialize(topRight, image, half, x + half, y, right, color),
+                materialize(bottomLeft, image, half, x, y + half, below, color),
+                materialize(bottomRight, image, half, x + half, y + half, right && below,
+                        color));
+    }
+
+    /**
+     * Turns the null of a uniform quadrant into a leaf of the color of its upper-left
+     * pixel, or of the given color if the quadrant is void.
+     * @param node - the built quadrant, null if it is uniform or void
+     * @param image - the image to be compressed
+     * @param size - the length and width of the quadrant
+     * @param x - the x coordinate of the quadrant (top left)
+     * @param y - the y coordinate of the quadrant (top left)
+     * @param inside - whether the quadrant overlaps the image
+     * @param voidColor - the color of a void quadrant
+     * @return the quadrant
+     */
+    private static QuadTreeNodeImpl materialize(QuadTreeNodeImpl node, int[][] image, int size,
+                                                int x, int y, boolean inside, int voidColor) {
+        if (node != null) {
+            return node;
+        }
+        return new QuadTreeNodeImpl(inside ? image[y][x] : voidColor, size);
+    }
+
+    /**
+     * Merges the nodes crossing the right or bottom edge of the image whose children
+     * inside the image are leaves of one color. Nodes fully inside the image are skipped,
+     * they only merge when all their pixels are equal, which the build already did.
+     * @param n - the node to merge
+     * @param nodeX - the x coordinate of the node in this view
+     * @param nodeY - the y coordinate of the node in this view
+     */
+    private void mergeEdges(QuadTreeNodeImpl n, int nodeX, int nodeY) {
+        int dimension = n.getDimension();
+        if (n.isLeaf() || nodeX + dimension <= width && nodeY + dimension <= height) {
+            return;
+        }
+        int half = dimension / 2;
+        for (int i = 0; i < 4; i++) {
+            int childX = nodeX + (i & 1) * half;
+            int childY = nodeY + (i >> 1) * half;
+            if (childX < width && childY < height) {
+                mergeEdges(n.getQuadrant(QUADRANTS[i]), childX, childY);
+            }
+        }
+        mergeVoid(n, nodeX, nodeY);
+    }
+
+    /**
+     * Turns n into a leaf if its children inside the image are leaves of one color.
+     * @param n - an internal node overlapping the image
+     * @param nodeX - the x coordinate of the node in this view
+     * @param nodeY - the y coordinate of the node in this view
+     * @return whether n was merged
+     */
+    private boolean mergeVoid(QuadTreeNodeImpl n, int nodeX, int nodeY) {
+        int half = n.getDimension() / 2;
+        boolean first = true;
+        int color = 0;
+        for (int i = 0; i < 4; i++) {
+            if (nodeX + (i & 1) * half >= width || nodeY + (i >> 1) * half >= height) {
+                continue;
+            }
+            QuadTreeNodeImpl child = n.getQuadrant(QUADRANTS[i]);
+            if (!child.isLeaf() || !first && child.getColor(0, 0) != color) {
+                return false;
+            }
+            color = child.getColor(0, 0);
+            first = false;
+        }
+        n.fill(color);
+        return true;
+    }
+
+    /**
+     * Returns the width of the image this node covers.
+     *
+     * @return the number of columns inside the image
+     */
+    //Runtime: O(1)
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image this node covers.
+     *
+     * @return the number of rows inside the image
+     */
+    //Runtime: O(1)
+    public int getHeight() {
+        return height;
+    }
+
+    // The square tree holding the pixels, the inverse of wrap
+    QuadTreeNodeImpl square() {
+        return node;
+    }
+
+    //Runtime: O(log n)
+    @Override
+    public int getColor(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException();
+        }
+        return node.getColor(x, y);
+    }
+
+    /**
+     * Sets the color of the pixel at the given coordinates. Besides the merges
+     * QuadTreeNodeImpl does, the nodes on the path whose children inside the image are
+     * leaves of one color are merged too.
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @param c - the new color of the pixel
+     * @throws IllegalArgumentException if x or y are outside of the image
+     */
+    //Runtime: O(log n)
+    @Override
+    public void setColor(int x, int y, int c) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException();
+        }
+        node.setColor(x, y, c);
+        //only the nodes on the path crossing the right or bottom edge can merge with the
+        //void, and only up from a leaf: the walk stops at the first internal node fully
+        //inside the image, which for most pixels is right below the root
+        int length = 0;
+        for (QuadTreeNodeImpl n = node; !n.isLeaf(); length++) {
+            int dimension = n.getDimension();
+            if ((x & -dimension) + dimension <= width && (y & -dimension) + dimension <= height) {
+                return;
+            }
+            if (path == null) {
+                path = new QuadTreeNodeImpl[31];
+            }
+            path[length] = n;
+            int half = dimension / 2;
+            n = n.getQuadrant(QUADRANTS[((y & half) != 0 ? 2 : 0) | ((x & half) != 0 ? 1 : 0)]);
+        }
+        //once a node stays split, none of its ancestors can merge; all dimensions are
+        //powers of two, so the position of a node on the path follows from the pixel
+        for (int i = length - 1; i >= 0; i--) {
+            int dimension = path[i].getDimension();
+            if (!mergeVoid(path[i], x & -dimension, y & -dimension)) {
+                break;
+            }
+        }
+        if (length > 0) {
+            Arrays.fill(path, 0, length, null);
+        }
+    }
+
+    /**
+     * Sets the colors of a batch of pixels in a single traversal, then merges the nodes
+     * along the edges of the image.
+     * @throws IllegalArgumentException if the arrays are null or of different lengths,
+     *                                  or any pixel is outside of the image
+     */
+    @Override
+    public void setColors(int[] xs, int[] ys, int[] colors) {
+        if (xs == null || ys == null || colors == null ||
+                xs.length != ys.length || xs.length != colors.length) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < xs.length; i++) {
+            if (xs[i] < 0 || xs[i] >= width || ys[i] < 0 || ys[i] >= height) {
+                throw new IllegalArgumentException();
+            }
+        }
+        node.setColors(xs, ys, colors);
+        mergeEdges(node, 0, 0);
+    }
+
+    /**
+     * Sets the color of a rectangle of the image, then merges the nodes along the edges
+     * of the image.
+     * @throws IllegalArgumentException if the rectangle is not within the image
+     */
+    @Override
+    public void fillRect(int x, int y, int width, int height, int c) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > this.width - x || height > this.height - y) {
+            throw new IllegalArgumentException();
+        }
+        node.fillRect(x, y, width, height, c);
+        mergeEdges(node, 0, 0);
+    }
+
+    //Runtime: O(log n) for updating the counts of the ancestors
+    @Override
+    public void fill(int c) {
+        node.fill(c);
+    }
+
+    //Runtime: O(1)
+    @Override
+    public RectangularQuadTreeNode getQuadrant(QuadName quadrant) {
+        QuadTreeNodeImpl child = node.getQuadrant(quadrant);
+        if (child == null) {
+            return null;
+        }
+        int half = node.getDimension() / 2;
+        int index = quadrant.ordinal();
+        return new RectangularQuadTreeNode(child,
+                Math.max(0, Math.min(half, width - (index & 1) * half)),
+                Math.max(0, Math.min(half, height - (index >> 1) * half)));
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getDimension() {
+        return node.getDimension();
+    }
+
+    //Runtime: O(1)
+    @Override
+    public int getSize() {
+        return node.getSize();
+    }
+
+    //Runtime: O(1)
+    @Override
+    public boolean isLeaf() {
+        return node.isLeaf();
+    }
+
+    /**
+     * Decompresses the image into a {@code height x width} array, so that
+     * {@code result[y][x] == getColor(x, y)}. Nothing outside of the image is written.
+     *
+     * @return a newly initialized array storing the decompressed image data
+     */
+    //Runtime O(n)
+    @Override
+    public int[][] decompress() {
+        int[][] decompressedImage = new int[height][width];
+        node.forEachLeaf(0, 0, width, height, LeafOrder.Z_ORDER, (x, y, dimension, color) -> {
+            int toX = Math.min(x + dimension, width);
+            int toY = Math.min(y + dimension, height);
+            for (int row = y; row < toY; row++) {
+                Arrays.fill(decompressedImage[row], x, toX, color);
+            }
+        });
+        return decompressedImage;
+    }
+
+    /**
+     * Gets the color of a pixel at a coarser level of detail. The image of a level is
+     * {@code ceil(width / scale)} x {@code ceil(height / scale)} pixels, where scale is
+     * {@code getDimension() >> level}, and the pixels along the right and bottom edges
+     * average only the part of their square inside the image.
+     * @throws IllegalArgumentException if level is out of bounds or the pixel is not
+     *                                  within the image of the level
+     */
+    @Override
+    public int getColorAtLevel(int x, int y, int level) {
+        if (level < 0 || level > Integer.numberOfTrailingZeros(node.getDimension())) {
+            throw new IllegalArgumentException();
+        }
+        int scale = node.getDimension() >> level;
+        if (x < 0 || y < 0 || (long) x * scale >= width || (long) y * scale >= height) {
+            throw new IllegalArgumentException();
+        }
+        int left = x * scale;
+        int top = y * scale;
+        if (left + scale <= width && top + scale <= height) {
+            return node.getColorAtLevel(x, y, level);
+        }
+        return node.averageColor(left, top, Math.min(scale, width - left),
+                Math.min(scale, height - top));
+    }
+
+    /**
+     * Decompresses the image at a coarser level of detail, as
+     * {@link #getColorAtLevel(int, int, int)} gives it.
+     * @throws IllegalArgumentException if maxDepth is out of bounds
+     */
+    @Override
+    public int[][] decompress(int maxDepth) {
+        if (maxDepth < 0 || maxDepth > Integer.numberOfTrailingZeros(node.getDimension())) {
+            throw new IllegalArgumentException();
+        }
+        int scale = node.getDimension() >> maxDepth;
+        int levelWidth = (width + scale - 1) / scale;
+        int levelHeight = (height + scale - 1) / scale;
+        int[][] image = new int[levelHeight][levelWidth];
+        if (levelWidth == 0 || levelHeight == 0) {
+            return image;
+        }
+        node.decompressAtLevel(image, 0, 0, 1 << maxDepth);
+        //the averages of the nodes along the edges include the area outside of the image
+        if (width % scale != 0) {
+            for (int y = 0; y < levelHeight; y++) {
+                image[y][levelWidth - 1] = getColorAtLevel(levelWidth - 1, y, maxDepth);
+            }
+        }
+        if (height % scale != 0) {
+            for (int x = 0; x < levelWidth; x++) {
+                image[levelHeight - 1][x] = getColorAtLevel(x, levelHeight - 1, maxDepth);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Calls the visitor for every leaf overlapping a rectangle of the image. Leaves along
+     * the right and bottom edges may extend past the image.
+     * @throws IllegalArgumentException if order or visitor is null or the rectangle is not
+     *                                  within the image
+     */
+    @Override
+    public void forEachLeaf(int x, int y, int width, int height, LeafOrder order,
+                            LeafVisitor visitor) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > this.width - x || height > this.height - y) {
+            throw new IllegalArgumentException();
+        }
+        node.forEachLeaf(x, y, width, height, order, visitor);
+    }
+
+    /**
+     * Returns the average color of a rectangle of the image.
+     * @throws IllegalArgumentException if the rectangle is empty or not within the image
+     */
+    @Override
+    public int averageColor(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 ||
+                width > this.width - x || height > this.height - y) {
+            throw new IllegalArgumentException();
+        }
+        return node.averageColor(x, y, width, height);
+    }
+
+    /**
+     * Returns the number of pixels of a rectangle of the image having the given color.
+     * @throws IllegalArgumentException if the rectangle is not within the image
+     */
+    @Override
+    public long countColor(int x, int y, int width, int height, int c) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 ||
+                width > this.width - x || height > this.height - y) {
+            throw new IllegalArgumentException();
+        }
+        return node.countColor(x, y, width, height, c);
+    }
+
+    /**
+     * Gets the compression ratio over the pixels of the image only, the number of nodes
+     * divided by width x height.
+     *
+     * @return the compression ratio
+     */
+    @Override
+    public double getCompressionRatio() {
+        return (double) getSize() / ((double) width * height);
+    }
+}
@@ -0,0 +1,276 @@
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+public class RectangularQuadTreeNodeTest {
+    //setup
+    int [][] arrayMultiQuadrants;
+    int [][] arrayWide;
+
+    @Before
+    public void setUp() {
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+        arrayWide = new int[][]{
+                {1, 1, 2, 2, 4},
+                {1, 1, 2, 2, 4},
+                {3, 3, 3, 3, 4}};
+    }
+
+    // A random image of width x height with a few colors, so quadrants do merge
+    private static int[][] blockImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image[y][x] = (x / 8 + y / 4) % 3 == 0 ? random.nextInt(3) : 0xFF00FF;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Test a square power of two image gives the same tree as QuadTreeNodeImpl
+     */
+    @Test
+    public void testBuildSquareMatchesImpl() {
+        RectangularQuadTreeNode tree =
+                RectangularQuadTreeNode.buildFromIntArray(arrayMultiQuadrants);
+        assertArrayEquals(arrayMultiQuadrants, tree.decompress());
+        assertEquals(9, tree.getSize());
+        assertEquals(4, tree.getDimension());
+        assertEquals(4, tree.getWidth());
+        assertEquals(4, tree.getHeight());
+        assertEquals(9.0 / 16, tree.getCompressionRatio(), 0.0);
+    }
+
+    /**
+     * Test the area outside of the image never splits a quadrant
+     */
+    @Test
+    public void testBuildRectangle() {
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(arrayWide);
+        assertArrayEquals(arrayWide, tree.decompress());
+        assertEquals(8, tree.getDimension());
+        assertEquals(5, tree.getWidth());
+        assertEquals(3, tree.getHeight());
+        //the right half is one leaf since only its first column is inside the image,
+        //and the bottom left quadrant is void
+        assertEquals(4, tree.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT).getColor(0, 2));
+        assertTrue(tree.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT).isLeaf());
+        assertEquals(1 + 5 + 3, tree.getSize());
+        assertEquals(9.0 / 15, tree.getCompressionRatio(), 0.0);
+
+        int[][] uniform = new int[100][300];
+        tree = RectangularQuadTreeNode.buildFromIntArray(uniform);
+        assertEquals(1, tree.getSize());
+        assertEquals(512, tree.getDimension());
+    }
+
+    @Test
+    public void testBuildRandomRectangles() {
+        for (int[] extent : new int[][]{{1, 1}, {1, 7}, {13, 1}, {37, 20}, {64, 33}, {100, 257}}) {
+            int[][] image = blockImage(extent[0], extent[1], extent[0] * 31 + extent[1]);
+            RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(image);
+            assertArrayEquals(image, tree.decompress());
+            for (int y = 0; y < image.length; y++) {
+                for (int x = 0; x < image[0].length; x++) {
+                    assertEquals(image[y][x], tree.getColor(x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test building from a BufferedImage merges the padding away like the array build
+     */
+    @Test
+    public void testBuildFromImageMatchesArray() {
+        int[][] image = blockImage(37, 20, 3);
+        BufferedImage buffered = new BufferedImage(37, 20, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 37; x++) {
+                buffered.setRGB(x, y, image[y][x]);
+            }
+        }
+        //the pixels as QuadTreeImages converts them, cropped from the padded tree
+        QuadTreeNodeImpl padded = QuadTreeImages.buildFromImage(buffered);
+        int[][] expected = new int[20][];
+        for (int y = 0; y < 20; y++) {
+            expected[y] = Arrays.copyOf(padded.decompress()[y], 37);
+        }
+        RectangularQuadTreeNode fromImage = RectangularQuadTreeNode.buildFromImage(buffered);
+        RectangularQuadTreeNode fromArray = RectangularQuadTreeNode.buildFromIntArray(expected);
+        assertArrayEquals(expected, fromImage.decompress());
+        assertEquals(fromArray.getSize(), fromImage.getSize());
+        assertTrue(fromImage.getSize() < padded.getSize());
+    }
+
+    /**
+     * Test setColor merges quadrants that only differ outside of the image
+     */
+    @Test
+    public void testSetColorMergesAcrossVoid() {
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(arrayWide);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 5; x++) {
+                tree.setColor(x, y, 9);
+            }
+        }
+        assertEquals(1, tree.getSize());
+        assertEquals(9, tree.getColor(4, 2));
+        tree.setColor(4, 2, 5);
+        assertEquals(5, tree.getColor(4, 2));
+        assertEquals(9, tree.getColor(3, 2));
+        tree.setColor(4, 2, 9);
+        assertEquals(1, tree.getSize());
+    }
+
+    /**
+     * Test setColor of a pixel whose leaf lies inside the image still merges its parent
+     * when the parent crosses the edge, and leaves nodes fully inside alone
+     */
+    @Test
+    public void testSetColorMergesParentOfInsideLeaf() {
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(new int[][]{
+                {0, 0, 1},
+                {0, 0, 2},
+                {0, 0, 0}});
+        assertEquals(9, tree.getSize());
+        tree.setColor(2, 1, 1);
+        //the top right quadrant only has a void column left of differing pixels
+        assertEquals(5, tree.getSize());
+        assertTrue(tree.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT).isLeaf());
+        tree.setColor(0, 0, 3);
+        assertEquals(9, tree.getSize());
+        assertEquals(3, tree.getColor(0, 0));
+        assertEquals(1, tree.getColor(2, 1));
+    }
+
+    @Test
+    public void testSetColorMatchesRebuild() {
+        int[][] image = blockImage(45, 27, 5);
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(image);
+        Random random = new Random(6);
+        for (int i = 0; i < 500; i++) {
+            int x = random.nextInt(45);
+            int y = random.nextInt(27);
+            int c = random.nextInt(3);
+            tree.setColor(x, y, c);
+            image[y][x] = c;
+        }
+        assertArrayEquals(image, tree.decompress());
+        assertEquals(RectangularQuadTreeNode.buildFromIntArray(image).getSize(), tree.getSize());
+    }
+
+    @Test
+    public void testFillRectAndSetColors() {
+        int[][] image = blockImage(45, 27, 7);
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(image);
+        tree.fillRect(10, 3, 35, 24, 2);
+        for (int y = 3; y < 27; y++) {
+            Arrays.fill(image[y], 10, 45, 2);
+        }
+        tree.setColors(new int[]{0, 44}, new int[]{0, 26}, new int[]{1, 1});
+        image[0][0] = 1;
+        image[26][44] = 1;
+        assertArrayEquals(image, tree.decompress());
+        assertEquals(RectangularQuadTreeNode.buildFromIntArray(image).getSize(), tree.getSize());
+    }
+
+    /**
+     * Test the region queries and forEachLeaf stay within the image
+     */
+    @Test
+    public void testQueries() {
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(arrayWide);
+        assertEquals(3, tree.countColor(0, 0, 5, 3, 4));
+        assertEquals(4, tree.averageColor(4, 0, 1, 3));
+        long[] covered = {0};
+        tree.forEachLeaf(0, 0, 5, 3, QuadTreeNode.LeafOrder.ROW_MAJOR,
+            (x, y, dimension, color) -> covered[0] += (long) (Math.min(x + dimension, 5) - x)
+                    * (Math.min(y + dimension, 3) - y));
+        assertEquals(15, covered[0]);
+    }
+
+    /**
+     * Test the pixels of a level along the edges only average what is inside the image
+     */
+    @Test
+    public void testDecompressAtLevel() {
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(arrayWide);
+        //dimension 8, so level 2 has pixels of 2x2 and is 3x2 pixels
+        assertArrayEquals(new int[][]{{1, 2, 4}, {3, 3, 4}}, tree.decompress(2));
+        assertArrayEquals(arrayWide, tree.decompress(3));
+        assertEquals(2, tree.getColorAtLevel(0, 0, 0));
+
+        int[][] image = blockImage(45, 27, 8);
+        tree = RectangularQuadTreeNode.buildFromIntArray(image);
+        for (int level = 0; level <= 6; level++) {
+            int scale = 64 >> level;
+            int[][] levelImage = tree.decompress(level);
+            assertEquals((27 + scale - 1) / scale, levelImage.length);
+            assertEquals((45 + scale - 1) / scale, levelImage[0].length);
+            for (int y = 0; y < levelImage.length; y++) {
+                for (int x = 0; x < levelImage[0].length; x++) {
+                    int width = Math.min(scale, 45 - x * scale);
+                    int height = Math.min(scale, 27 - y * scale);
+                    assertEquals(tree.averageColor(x * scale, y * scale, width, height),
+                            levelImage[y][x]);
+                    assertEquals(levelImage[y][x], tree.getColorAtLevel(x, y, level));
+                }
+            }
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testGetColorAtLevelOutsideImage() {
+        RectangularQuadTreeNode.buildFromIntArray(arrayWide).getColorAtLevel(3, 0, 2);
+    }
+
+    @Test
+    public void testQuadrantViewsAreClipped() {
+        RectangularQuadTreeNode tree = RectangularQuadTreeNode.buildFromIntArray(arrayWide);
+        RectangularQuadTreeNode topLeft = tree.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT);
+        assertEquals(4, topLeft.getWidth());
+        assertEquals(3, topLeft.getHeight());
+        assertArrayEquals(new int[][]{{1, 1, 2, 2}, {1, 1, 2, 2}, {3, 3, 3, 3}},
+                topLeft.decompress());
+        RectangularQuadTreeNode bottomLeft =
+                tree.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT);
+        assertEquals(0, bottomLeft.getHeight());
+        assertEquals(0, bottomLeft.decompress().length);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testGetColorOutsideImage() {
+        RectangularQuadTreeNode.buildFromIntArray(arrayWide).getColor(5, 0);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testSetColorOutsideImage() {
+        RectangularQuadTreeNode.buildFromIntArray(arrayWide).setColor(0, 3, 1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testFillRectOutsideImage() {
+        RectangularQuadTreeNode.buildFromIntArray(arrayWide).fillRect(0, 0, 6, 1, 1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testBuildRaggedArray() {
+        RectangularQuadTreeNode.buildFromIntArray(new int[][]{{1, 2}, {3}});
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testBuildEmptyArray() {
+        RectangularQuadTreeNode.buildFromIntArray(new int[0][]);
+    }
+}
@@ -5,8 +5,12 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Simple paint program that uses the {@link QuadTreeNode} as a backing implementation. Most of the code
@@ -22,7 +26,8 @@ public class SimplePaint implements Runnable {
 
     /**
      * Builds a {@link QuadTreeNode} instance from a {@link BufferedImage}. Depends on {@link
-     * QuadTreeNodeImpl#buildFromIntArray}.
+     * QuadTreeImages#buildFromImage}, which reads the image raster band by band instead of
+     * copying it into an {@code int[][]} first.
      * <p/>
      * This method guarantees that even images with non-square dimensions are able to be loaded by
      * loading them in the smallest {@link QuadTreeNode} that can contain them.
@@ -33,22 +38,49 @@ public class SimplePaint implements Runnable {
      * @throws IllegalArgumentException if the specified {@link BufferedImage} is null
      */
     public static QuadTreeNode buildFromImage(BufferedImage image) {
-        if (image == null) {
-            throw new IllegalArgumentException("Image cannot be null");
+        return QuadTreeImages.buildFromImage(image);
+    }
+
+    /**
+     * Collapses every node depth levels below the root into a single leaf of its average
+     * color. QuadTreeNodeImpl prunes structurally; any other tree gets each collapsed node
+     * filled with its average through fillRect.
+     *
+     * @param tree  the tree to prune
+     * @param depth the number of levels to keep
+     * @throws UnsupportedOperationException if the tree cannot be changed
+     */
+    static void pruneToDepth(QuadTreeNode tree, int depth) {
+        if (tree instanceof QuadTreeNodeImpl) {
+            ((QuadTreeNodeImpl) tree).pruneToDepth(depth);
+            return;
         }
-        int maxDimensions = Math.max(image.getHeight(), image.getWidth());
-        int dimensions = 1;
-        while (dimensions < maxDimensions) {
-            dimensions *= 2;
+        //collect first, the nodes are replaced by the fills
+        List<int[]> collapsed = new ArrayList<>();
+        collectInternalNodes(tree, 0, 0, depth, collapsed);
+        for (int[] node : collapsed) {
+            tree.fillRect(node[0], node[1], node[2], node[2],
+                tree.averageColor(node[0], node[1], node[2], node[2]));
         }
-        int[][] imageData = new int[dimensions][dimensions];
-        for (int i = image.getMinX(); i < image.getWidth(); i++) {
-            for (int j = image.getMinY(); j < image.getHeight(); j++) {
-                // Remove alpha channel if it exists
-                imageData[j][i] = image.getRGB(i, j) % 0x1000000;
-            }
+    }
+
+    // Adds {x, y, dimension} of every internal node depth levels below node
+    private static void collectInternalNodes(QuadTreeNode node, int x, int y, int depth,
+                                             List<int[]> collapsed) {
+        if (node.isLeaf()) {
+            return;
+        }
+        int dimension = node.getDimension();
+        if (depth == 0) {
+            collapsed.add(new int[]{x, y, dimension});
+            return;
+        }
+        int half = dimension / 2;
+        QuadTreeNode.QuadName[] quadrants = QuadTreeNode.QuadName.values();
+        for (int i = 0; i < 4; i++) {
+            collectInternalNodes(node.getQuadrant(quadrants[i]), x + (i & 1) * half,
+                y + (i >> 1) * half, depth - 1, collapsed);
         }
-        return QuadTreeNodeImpl.buildFromIntArray(imageData);
     }
 
     @Override
@@ -93,9 +125,12 @@ public class SimplePaint implements Runnable {
             if (depth != null) {
                 try {
                     int depthInt = Integer.parseInt(depth);
-                    TreePruner.pruneTree(paint.getQuadTree(), Math.max(1, depthInt));
-                    paint.repaint();
+                    pruneToDepth(paint.getQuadTree(), Math.max(1, depthInt));
+                    paint.treeChanged();
                 } catch (NumberFormatException ignored) {
+                } catch (UnsupportedOperationException u) {
+                    JOptionPane.showMessageDialog(window,
+                        "Pruning is not supported for this tree.");
                 }
             }
         });
@@ -127,57 +162,11 @@ public class SimplePaint implements Runnable {
         window.repaint();
     }
 
-    private static class TreePruner {
-        private static int averageColor(int[] colors) {
-            int r = 0, g = 0, b = 0;
-            for (int color : colors) {
-                r += color / 65536;
-                g += (color % 65536) / 256;
-                b += color % 256;
-            }
-            return (int) Math.round((double) r / colors.length) * 65536
-                + (int) Math.round((double) g / colors.length) * 256
-                + (int) Math.round((double) b / colors.length);
-        }
-
-        private static boolean isCombinable(QuadTreeNode node) {
-            if (node == null) {
-                return false;
-            }
-            for (QuadTreeNode.QuadName quad : QuadTreeNode.QuadName.values()) {
-                if (node.getQuadrant(quad) == null || !node.getQuadrant(quad).isLeaf()) {
-                    return false;
-                }
-            }
-            return true;
-        }
-
-        public static void pruneTree(QuadTreeNode root, int depth) {
-            if (root == null || root.isLeaf()) {
-                return;
-            }
-            if (depth <= 0 && isCombinable(root)) {
-                int tl = root.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT).getColor(0, 0);
-                int tr = root.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT).getColor(0, 0);
-                int bl = root.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT).getColor(0, 0);
-                int br = root.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT).getColor(0, 0);
-                final int c = averageColor(new int[]{tl, tr, bl, br});
-                for (int i = 0; i < root.getDimension(); ++i)
-                    for (int j = 0; j < root.getDimension(); ++j) {
-                        root.setColor(i, j, c);
-                    }
-            } else {
-                pruneTree(root.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT), depth - 1);
-                pruneTree(root.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT), depth - 1);
-                pruneTree(root.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT), depth - 1);
-                pruneTree(root.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT), depth - 1);
-                if (depth <= 0) {
-                    pruneTree(root, depth);
-                }
-            }
-        }
-    }
-
+    /**
+     * Shows the tree and draws on it with the mouse. The tree is decompressed once into a
+     * back buffer which is then only updated where a stroke changed pixels, so a stroke
+     * costs the same whatever the size of the image.
+     */
     private static class PaintPanel extends Component
         implements MouseListener, MouseMotionListener {
         /**
@@ -185,18 +174,26 @@ public class SimplePaint implements Runnable {
          */
         private static final long serialVersionUID = -2271950113761629787L;
 
-        private static final Color BACKGROUND = Color.BLACK;
+        private static final Color BORDER = Color.RED;
         private final int currentColor = 0xffffff;
         private QuadTreeNode tree;
         private int width;
         private int height;
+        //the decompressed tree, pixels is the array backing it
+        private BufferedImage backBuffer;
+        private int[] pixels;
         private boolean showNodeBorders = false;
         private int prevX = -1, prevY = -1;
+        //pixels of the line being drawn, applied to the tree as one batch
+        private int[] lineXs = new int[64];
+        private int[] lineYs = new int[64];
+        private int linePoints = 0;
 
         public PaintPanel(QuadTreeNode backingInstance) {
             this.width = backingInstance.getDimension();
             this.height = backingInstance.getDimension();
             this.tree = backingInstance;
+            this.treeChanged();
             this.addMouseListener(this);
             this.addMouseMotionListener(this);
         }
@@ -214,9 +211,42 @@ public class SimplePaint implements Runnable {
             this.tree = qt;
             this.width = qt.getDimension();
             this.height = qt.getDimension();
+            this.treeChanged();
+        }
+
+        /**
+         * Redraws the whole back buffer from the tree, for changes that did not go through
+         * the mouse such as loading or pruning a tree.
+         */
+        public void treeChanged() {
+            if (backBuffer == null || backBuffer.getWidth() != width
+                || backBuffer.getHeight() != height) {
+                backBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                pixels = ((DataBufferInt) backBuffer.getRaster().getDataBuffer()).getData();
+            }
+            this.refresh(0, 0, width, height);
             this.repaint();
         }
 
+        /**
+         * Copies the pixels of the given rectangle from the tree into the back buffer.
+         * @param x - the x coordinate of the rectangle
+         * @param y - the y coordinate of the rectangle
+         * @param w - the width of the rectangle
+         * @param h - the height of the rectangle
+         */
+        private void refresh(int x, int y, int w, int h) {
+            this.tree.forEachLeaf(x, y, w, h, QuadTreeNode.LeafOrder.Z_ORDER,
+                (leafX, leafY, dimension, color) -> {
+                    int fromX = Math.max(leafX, x);
+                    int toX = Math.min(leafX + dimension, x + w);
+                    int toY = Math.min(leafY + dimension, y + h);
+                    for (int row = Math.max(leafY, y); row < toY; row++) {
+                        Arrays.fill(pixels, row * width + fromX, row * width + toX, color);
+                    }
+                });
+        }
+
         @Override
         public Dimension getPreferredSize() {
             return new Dimension(this.width, this.height);
@@ -229,25 +259,25 @@ public class SimplePaint implements Runnable {
 
         @Override
         public void paint(Graphics g) {
-            g.setColor(BACKGROUND);
-            g.fillRect(0, 0, width, height);
-            this.recursivePaint(g, this.tree, 0, 0);
-        }
-
-        private void recursivePaint(Graphics g, QuadTreeNode n, int x, int y) {
-            if (n.isLeaf()) {
-                g.setColor(new Color(n.getColor(0, 0)));
-                g.fillRect(x, y, n.getDimension(), n.getDimension());
-                if (showNodeBorders) {
-                    g.setColor(Color.RED);
-                    g.drawRect(x, y, n.getDimension(), n.getDimension());
+            //drawImage only copies the clip, which is the dirty rectangle after a stroke
+            g.drawImage(backBuffer, 0, 0, null);
+            if (showNodeBorders) {
+                Rectangle clip = g.getClipBounds();
+                if (clip == null) {
+                    clip = new Rectangle(0, 0, width, height);
+                }
+                //an outline is one pixel wider and taller than its leaf, so leaves ending
+                //just before the clip draw into it too
+                int left = Math.max(clip.x - 1, 0);
+                int top = Math.max(clip.y - 1, 0);
+                int right = Math.min(clip.x + clip.width, width);
+                int bottom = Math.min(clip.y + clip.height, height);
+                if (left < right && top < bottom) {
+                    g.setColor(BORDER);
+                    this.tree.forEachLeaf(left, top, right - left, bottom - top,
+                        QuadTreeNode.LeafOrder.Z_ORDER,
+                        (x, y, dimension, color) -> g.drawRect(x, y, dimension, dimension));
                 }
-            } else {
-                int midPoint = n.getDimension() / 2;
-                recursivePaint(g, n.getQuadrant(QuadTreeNode.QuadName.TOP_LEFT), x, y);
-                recursivePaint(g, n.getQuadrant(QuadTreeNode.QuadName.TOP_RIGHT), x + midPoint, y);
-                recursivePaint(g, n.getQuadrant(QuadTreeNode.QuadName.BOTTOM_LEFT), x, y + midPoint);
-                recursivePaint(g, n.getQuadrant(QuadTreeNode.QuadName.BOTTOM_RIGHT), x + midPoint, y + midPoint);
             }
         }
 
@@ -281,7 +311,6 @@ public class SimplePaint implements Runnable {
                 return;
             }
             this.drawLine(prevX, prevY, e.getX(), e.getY());
-            this.repaint();
             prevX = e.getX();
             prevY = e.getY();
         }
@@ -297,25 +326,27 @@ public class SimplePaint implements Runnable {
             toY = Math.min(Math.max(0, toY), this.tree.getDimension() - 1);
             int deltaX = toX - fromX;
             int deltaY = toY - fromY;
+            linePoints = 0;
             if (deltaX == 0) {
                 for (int y = fromY; toY > fromY ? y <= toY : y >= toY; ) {
-                    this.tree.setColor(fromX, y, this.currentColor);
+                    this.addLinePoint(fromX, y);
                     if (toY > fromY) {
                         y++;
                     } else {
                         y--;
                     }
                 }
+                this.flushLine();
                 return;
             }
             float error = 0;
             float deltaError = Math.abs((float) deltaY / deltaX);
             int y = fromY;
             for (int x = fromX; toX > fromX ? x <= toX : x >= toX; ) {
-                this.tree.setColor(x, y, this.currentColor);
+                this.addLinePoint(x, y);
                 error += deltaError;
                 while (error >= 0.5) {
-                    this.tree.setColor(x, y, this.currentColor);
+                    this.addLinePoint(x, y);
                     y = Math.min(Math.max(y + (toY > fromY ? 1 : -1), 0),
                         this.tree.getDimension() - 1);
                     error -= 1.0;
@@ -326,6 +357,39 @@ public class SimplePaint implements Runnable {
                     x--;
                 }
             }
+            this.flushLine();
+        }
+
+        private void addLinePoint(int x, int y) {
+            if (linePoints == lineXs.length) {
+                lineXs = Arrays.copyOf(lineXs, 2 * linePoints);
+                lineYs = Arrays.copyOf(lineYs, 2 * linePoints);
+            }
+            lineXs[linePoints] = x;
+            lineYs[linePoints] = y;
+            linePoints++;
+        }
+
+        private void flushLine() {
+            int[] colors = new int[linePoints];
+            Arrays.fill(colors, this.currentColor);
+            this.tree.setColors(Arrays.copyOf(lineXs, linePoints),
+                Arrays.copyOf(lineYs, linePoints), colors);
+            int minX = lineXs[0], maxX = lineXs[0];
+            int minY = lineYs[0], maxY = lineYs[0];
+            for (int i = 1; i < linePoints; i++) {
+                minX = Math.min(minX, lineXs[i]);
+                maxX = Math.max(maxX, lineXs[i]);
+                minY = Math.min(minY, lineYs[i]);
+                maxY = Math.max(maxY, lineYs[i]);
+            }
+            this.refresh(minX, minY, maxX - minX + 1, maxY - minY + 1);
+            if (showNodeBorders) {
+                //merging and splitting leaves moves borders outside the stroke
+                this.repaint();
+            } else {
+                this.repaint(minX, minY, maxX - minX + 1, maxY - minY + 1);
+            }
         }
     }
 }
@@ -0,0 +1,549 @@
+// QuadTree
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A canvas too large for a single QuadTree, stored as a grid of square tiles which are
+ * each an independent {@link RectangularQuadTreeNode}.
+ * <p/>
+ * Pixels are addressed with {@code long} coordinates, so a canvas may be far larger
+ * than any {@code int[][]}. A tile is only built, from the pixels a {@link TileSource}
+ * reads for it, the first time it is used, and at most a fixed number of tiles stay
+ * resident: when another tile is needed the least recently used one is dropped. A tile
+ * that was changed is not dropped but kept in the compact {@link QuadTreeCodec} format
+ * until it is used again, so edits are never lost and unchanged tiles are simply read
+ * again. The tiles along the right and bottom edges cover only what is left of the
+ * canvas.
+ * <p/>
+ * {@link #forEachTile} and {@link #updateTiles} hand a range of tiles to a visitor in a
+ * {@link ForkJoinPool}, each tile to one task, building the tiles in parallel as well.
+ * The resident set is safe to use from several threads, and tiles are encoded and
+ * decoded without holding its lock, but like QuadTreeNodeImpl a single tile is not:
+ * getColor and setColor must not be called on a tile while another thread changes it.
+ */
+public class TiledQuadTree {
+
+    /**
+     * Reads the pixels of one tile.
+     */
+    @FunctionalInterface
+    public interface TileSource {
+        /**
+         * Reads the pixels of the tile in the given column and row of the grid.
+         *
+         * @param column the column of the tile
+         * @param row    the row of the tile
+         * @param width  the width of the tile, less than the tile dimension on the right edge
+         * @param height the height of the tile, less than the tile dimension on the bottom
+         *               edge
+         * @return the pixels of the tile as {@code height} rows of {@code width} colors
+         * @throws IOException if the pixels cannot be read
+         */
+        int[][] read(long column, long row, int width, int height) throws IOException;
+    }
+
+    /**
+     * Callback for {@link #forEachTile} and {@link #updateTiles}.
+     */
+    @FunctionalInterface
+    public interface TileVisitor {
+        /**
+         * Visits one tile.
+         *
+         * @param column the column of the tile
+         * @param row    the row of the tile
+         * @param tile   the tile, whose pixel (0, 0) is pixel
+         *               {@code (column * tileDimension, row * tileDimension)} of the canvas
+         */
+        void visit(long column, long row, RectangularQuadTreeNode tile);
+    }
+
+    /*
+     * Attributes
+     */
+    private final long width;
+    private final long height;
+    private final int tileShift; //log2 of the tile dimension
+    private final long columns;
+    private final long rows;
+    private final int maxResidentTiles;
+    private final TileSource source;
+    //resident tiles by key, least recently used first; guards every field below
+    private final LinkedHashMap<Long, Tile> resident = new LinkedHashMap<>(16, 0.75f, true);
+    //tiles which were changed and then dropped from the resident set, kept encoded
+    private final Map<Long, Tile> evicted = new HashMap<>();
+    private Tile last; //most recently used tile, saves the map lookup for nearby pixels
+
+    /**
+     * Creates a tiled canvas. No tile is read until it is used. Tiles are numbered with a
+     * {@code long}, so the grid can have at most {@code Long.MAX_VALUE} tiles.
+     *
+     * @param width the width of the canvas
+     * @param height the height of the canvas
+     * @param tileDimension the length and width of a tile
+     * @param maxResidentTiles the number of tiles kept built at most
+     * @param source reads the pixels of a tile
+     * @throws IllegalArgumentException if width or height are not positive, tileDimension
+     *                                  is not a power of 2 between 1 and 2^30, the grid
+     *                                  has more than {@code Long.MAX_VALUE} tiles,
+     *                                  maxResidentTiles is not positive or source is null
+     */
+    public TiledQuadTree(long width, long height, int tileDimension, int maxResidentTiles,
+                         TileSource source) {
+        if (width <= 0 || height <= 0 || tileDimension <= 0 ||
+                !QuadTreeNodeImpl.isPowerOfTwo(tileDimension) || tileDimension > 1 << 30 ||
+                maxResidentTiles <= 0 || source == null) {
+            throw new IllegalArgumentException();
+        }
+        this.width = width;
+        this.height = height;
+        this.tileShift = Integer.numberOfTrailingZeros(tileDimension);
+        //rounded up without adding to width or height, which may be close to Long.MAX_VALUE
+        this.columns = ((width - 1) >>> tileShift) + 1;
+        this.rows = ((height - 1) >>> tileShift) + 1;
+        //every tile needs its own key, row * columns + column
+        if (rows > Long.MAX_VALUE / columns) {
+            throw new IllegalArgumentException();
+        }
+        this.maxResidentTiles = maxResidentTiles;
+        this.source = source;
+    }
+
+    //Runtime: O(1)
+    public long getWidth() {
+        return width;
+    }
+
+    //Runtime: O(1)
+    public long getHeight() {
+        return height;
+    }
+
+    //Runtime: O(1)
+    public int getTileDimension() {
+        return 1 << tileShift;
+    }
+
+    //Runtime: O(1)
+    public long getTileColumns() {
+        return columns;
+    }
+
+    //Runtime: O(1)
+    public long getTileRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of tiles currently built, which may briefly exceed the limit
+     * while more tiles than that are being visited at once.
+     *
+     * @return the number of resident tiles
+     */
+    public int getResidentTileCount() {
+        synchronized (resident) {
+            return resident.size();
+        }
+    }
+
+    /**
+     * Gets the color of a pixel of the canvas, building its tile if needed.
+     *
+     * @param x the x coordinate of the pixel
+     * @param y the y coordinate of the pixel
+     * @return the color of the pixel
+     * @throws IllegalArgumentException if x or y are out of bounds
+     * @throws UncheckedIOException if the tile source fails
+     */
+    //Runtime: O(log n) within the tile, plus building the tile if it is not resident
+    public int getColor(long x, long y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException();
+        }
+        int mask = (1 << tileShift) - 1;
+        Tile tile = pin(x >>> tileShift, y >>> tileShift);
+        try {
+            return tile.tree.getColor((int) (x & mask), (int) (y & mask));
+        } finally {
+            unpin(tile, false);
+        }
+    }
+
+    /**
+     * Sets the color of a pixel of the canvas, building its tile if needed.
+     *
+     * @param x the x coordinate of the pixel
+     * @param y the y coordinate of the pixel
+     * @param c the new color of the pixel
+     * @throws IllegalArgumentException if x or y are out of bounds
+     * @throws UncheckedIOException if the tile source fails
+     */
+    //Runtime: O(log n) within the tile, plus building the tile if it is not resident
+    public void setColor(long x, long y, int c) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException();
+        }
+        int mask = (1 << tileShift) - 1;
+        Tile tile = pin(x >>> tileShift, y >>> tileShift);
+        try {
+            tile.tree.setColor((int) (x & mask), (int) (y & mask), c);
+        } finally {
+            unpin(tile, true);
+        }
+    }
+
+    /**
+     * Hands every tile of a range of the grid to the visitor, in parallel in the given
+     * pool. The visitor must not change the tiles; use {@link #updateTiles} for that.
+     *
+     * @param column the first column of the range
+     * @param row the first row of the range
+     * @param tileColumns the number of columns of the range
+     * @param tileRows the number of rows of the range
+     * @param pool the pool to run the visitor in
+     * @param visitor the visitor to call
+     * @throws IllegalArgumentException if the range is not within the grid or pool or
+     *                                  visitor is null
+     * @throws UncheckedIOException if the tile source fails
+     */
+    public void forEachTile(long column, long row, long tileColumns, long tileRows,
+                            ForkJoinPool pool, TileVisitor visitor) {
+        visitTiles(column, row, tileColumns, tileRows, pool, visitor, false);
+    }
+
+    /**
+     * Hands every tile of a range of the grid to the visitor, in parallel in the given
+     * pool, which may change them. Every visited tile is kept as changed.
+     *
+     * @param column the first column of the range
+     * @param row the first row of the range
+     * @param tileColumns the number of columns of the range
+     * @param tileRows the number of rows of the range
+     * @param pool the pool to run the visitor in
+     * @param visitor the visitor to call
+     * @throws IllegalArgumentException if the range is not within the grid or pool or
+     *                                  visitor is null
+     * @throws UncheckedIOException if the tile source fails
+     */
+    public void updateTiles(long column, long row, long tileColumns, long tileRows,
+                            ForkJoinPool pool, TileVisitor visitor) {
+        visitTiles(column, row, tileColumns, tileRows, pool, visitor, true);
+    }
+
+    private void visitTiles(long column, long row, long tileColumns, long tileRows,
+                            ForkJoinPool pool, TileVisitor visitor, boolean changes) {
+        if (column < 0 || row < 0 || tileColumns < 0 || tileRows < 0 ||
+                tileColumns > columns - column || tileRows > rows - row ||
+                pool == null || visitor == null) {
+            throw new IllegalArgumentException();
+        }
+        if (tileColumns > 0 && tileRows > 0) {
+            pool.invoke(new TileTask(this, column, row, tileColumns, tileRows, visitor,
+                    changes));
+        }
+    }
+
+    /**
+     * Visits a range of tiles, splitting it in halves along its longer side until a
+     * single tile is left.
+     */
+    private static final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final TiledQuadTree tiles;
+        private final long column;
+        private final long row;
+        private final long tileColumns;
+        private final long tileRows;
+        private final TileVisitor visitor;
+        private final boolean changes;
+
+        TileTask(TiledQuadTree tiles, long column, long row, long tileColumns,
+                 long tileRows, TileVisitor visitor, boolean changes) {
+            this.tiles = tiles;
+            this.column = column;
+            this.row = row;
+            this.tileColumns = tileColumns;
+            this.tileRows = tileRows;
+            this.visitor = visitor;
+            this.changes = changes;
+        }
+
+        @Override
+        protected void compute() {
+            if (tileColumns == 1 && tileRows == 1) {
+                Tile tile = tiles.pin(column, row);
+                try {
+                    visitor.visit(column, row, tile.tree);
+                } finally {
+                    tiles.unpin(tile, changes);
+                }
+            } else if (tileColumns >= tileRows) {
+                long half = tileColumns / 2;
+                invokeAll(new TileTask(tiles, column, row, half, tileRows, visitor, changes),
+                        new TileTask(tiles, column + half, row, tileColumns - half, tileRows,
+                                visitor, changes));
+            } else {
+                long half = tileRows / 2;
+                invokeAll(new TileTask(tiles, column, row, tileColumns, half, visitor, changes),
+                        new TileTask(tiles, column, row + half, tileColumns, tileRows - half,
+                                visitor, changes));
+            }
+        }
+    }
+
+    /**
+     * Returns the tile in the given column and row, building it if it is not resident,
+     * and keeps it resident until it is unpinned.
+     * @param column - the column of the tile
+     * @param row - the row of the tile
+     * @return the pinned tile
+     */
+    private Tile pin(long column, long row) {
+        long key = row * columns + column;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Tile tile;
+                synchronized (resident) {
+                    tile = last != null && last.key == key ? last : resident.get(key);
+                    if (tile != null) {
+                        tile.pins++;
+                        last = tile;
+                        return tile;
+                    }
+                    tile = evicted.get(key);
+                    if (tile != null && tile.busy) {
+                        //another thread is encoding or decoding the tile, so look again
+                        //once it is done
+                        interrupted |= awaitTiles();
+                        continue;
+                    }
+                    if (tile != null) {
+                        tile.busy = true;
+                    }
+                }
+                if (tile != null) {
+                    return restore(tile, column, row);
+                }
+                //reading and building the tile is the slow part, so it runs without the
+                //lock; two threads building the same unchanged tile build identical trees
+                RectangularQuadTreeNode tree = build(column, row);
+                List<Tile> dropped;
+                synchronized (resident) {
+                    if (resident.containsKey(key) || evicted.containsKey(key)) {
+                        //meanwhile another thread built the tile, and it may have changed
+                        //and dropped it again, so the tree read from the source is not used
+                        continue;
+                    }
+                    tile = new Tile(key, tree, false);
+                    tile.pins++;
+                    last = tile;
+                    dropped = admit(tile);
+                }
+                store(dropped);
+                return tile;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Makes a changed tile that was dropped resident and pinned again, decoding it
+     * without the lock. The caller marked the tile busy, so other threads wait for it.
+     * @param tile - the dropped tile
+     * @param column - the column of the tile
+     * @param row - the row of the tile
+     * @return the pinned tile
+     */
+    private Tile restore(Tile tile, long column, long row) {
+        RectangularQuadTreeNode tree;
+        try {
+            //the tree is still there if encoding it failed
+            tree = tile.tree != null ? tile.tree : decode(tile.encoded, column, row);
+        } catch (RuntimeException e) {
+            synchronized (resident) {
+                tile.busy = false;
+                resident.notifyAll();
+            }
+            throw e;
+        }
+        List<Tile> dropped;
+        synchronized (resident) {
+            evicted.remove(tile.key);
+            tile.tree = tree;
+            tile.encoded = null;
+            tile.busy = false;
+            resident.notifyAll();
+            tile.pins++;
+            last = tile;
+            dropped = admit(tile);
+        }
+        store(dropped);
+        return tile;
+    }
+
+    // Releases a tile returned by pin, remembering whether it was changed
+    private void unpin(Tile tile, boolean changed) {
+        List<Tile> dropped;
+        synchronized (resident) {
+            tile.pins--;
+            tile.changed |= changed;
+            dropped = evict();
+        }
+        store(dropped);
+    }
+
+    // Adds a tile to the resident set, the caller holds the lock and encodes what is dropped
+    private List<Tile> admit(Tile tile) {
+        resident.put(tile.key, tile);
+        return evict();
+    }
+
+    /**
+     * Drops the least recently used unpinned tiles over the limit, the caller holds the
+     * lock. Changed tiles are moved to the evicted ones and marked busy, and are left to
+     * the caller to encode with {@link #store} once it released the lock.
+     * @return the changed tiles which were dropped, or null if there are none
+     */
+    private List<Tile> evict() {
+        List<Tile> dropped = null;
+        Iterator<Tile> iterator = resident.values().iterator();
+        while (resident.size() > maxResidentTiles && iterator.hasNext()) {
+            Tile tile = iterator.next();
+            if (tile.pins > 0) {
+                continue;
+            }
+            iterator.remove();
+            if (tile == last) {
+                last = null;
+            }
+            if (tile.changed) {
+                tile.busy = true;
+                evicted.put(tile.key, tile);
+                if (dropped == null) {
+                    dropped = new ArrayList<>();
+                }
+                dropped.add(tile);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Encodes the changed tiles evict dropped, without the lock, and then lets go of their
+     * trees. A tile whose encoding fails keeps its tree.
+     * @param dropped - the tiles returned by evict, or null
+     */
+    private void store(List<Tile> dropped) {
+        if (dropped == null) {
+            return;
+        }
+        RuntimeException failure = null;
+        for (Tile tile : dropped) {
+            byte[] encoded = null;
+            try {
+                encoded = encode(tile.tree);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            synchronized (resident) {
+                if (encoded != null) {
+                    tile.encoded = encoded;
+                    tile.tree = null;
+                }
+                tile.busy = false;
+                resident.notifyAll();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Waits until a busy tile is done, the caller holds the lock; returns whether the
+    // thread was interrupted meanwhile, so pin can keep waiting and interrupt it again later
+    private boolean awaitTiles() {
+        try {
+            resident.wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    // Reads the pixels of a tile from the source and builds it
+    private RectangularQuadTreeNode build(long column, long row) {
+        int tileWidth = (int) Math.min(1L << tileShift, width - (column << tileShift));
+        int tileHeight = (int) Math.min(1L << tileShift, height - (row << tileShift));
+        int[][] pixels;
+        try {
+            pixels = source.read(column, row, tileWidth, tileHeight);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (pixels == null || pixels.length != tileHeight || pixels[0] == null ||
+                pixels[0].length != tileWidth) {
+            throw new IllegalStateException("Tile source returned a tile of the wrong size");
+        }
+        return RectangularQuadTreeNode.buildFromIntArray(pixels);
+    }
+
+    private static byte[] encode(RectangularQuadTreeNode tree) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            //the square tree, since the views of the clipped quadrants may hold no pixels
+            QuadTreeCodec.write(tree.square(), out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private RectangularQuadTreeNode decode(byte[] encoded, long column, long row) {
+        int tileWidth = (int) Math.min(1L << tileShift, width - (column << tileShift));
+        int tileHeight = (int) Math.min(1L << tileShift, height - (row << tileShift));
+        try {
+            QuadTreeNodeImpl node = QuadTreeCodec.read(
+                    new DataInputStream(new ByteArrayInputStream(encoded)));
+            return RectangularQuadTreeNode.wrap(node, tileWidth, tileHeight);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A resident tile, or a changed one that was dropped and is kept encoded. The fields
+     * other than the key are guarded by the lock of the resident set.
+     */
+    private static final class Tile {
+        private final long key; //row * columns + column
+        private RectangularQuadTreeNode tree; //null once a dropped tile is encoded
+        private byte[] encoded; //set while a dropped tile has no tree
+        private boolean busy; //being encoded or decoded without the lock
+        private boolean changed; //differs from what the source reads
+        private int pins; //number of callers using the tile right now
+
+        Tile(long key, RectangularQuadTreeNode tree, boolean changed) {
+            this.key = key;
+            this.tree = tree;
+            this.changed = changed;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+public class TiledQuadTreeTest {
+    //setup
+    int [][] arrayMultiQuadrants;
+    ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        arrayMultiQuadrants = new int[][]{
+                {1, 1, 2, 3},
+                {1, 1, 1, 7},
+                {2, 2, 0, 0},
+                {2, 2, 0, 0}};
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    // A random image of width x height with a few colors, so quadrants do merge
+    private static int[][] blockImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[][] image = new int[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image[y][x] = (x / 8 + y / 4) % 3 == 0 ? random.nextInt(3) : 0xFF00FF;
+            }
+        }
+        return image;
+    }
+
+    // Reads tiles out of an in-memory image, counting the reads
+    private static TiledQuadTree.TileSource sourceOf(int[][] image, int tileDimension,
+                                                    AtomicInteger reads) {
+        return (column, row, width, height) -> {
+            reads.incrementAndGet();
+            int[][] tile = new int[height][width];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(image[(int) row * tileDimension + y],
+                        (int) column * tileDimension, tile[y], 0, width);
+            }
+            return tile;
+        };
+    }
+
+    @Test
+    public void testGetColorMatchesImage() {
+        AtomicInteger reads = new AtomicInteger();
+        TiledQuadTree tiles = new TiledQuadTree(4, 4, 2, 4,
+                sourceOf(arrayMultiQuadrants, 2, reads));
+        assertEquals(0, reads.get());
+        assertEquals(2, tiles.getTileColumns());
+        assertEquals(2, tiles.getTileRows());
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(arrayMultiQuadrants[y][x], tiles.getColor(x, y));
+            }
+        }
+        assertEquals(4, reads.get());
+        assertEquals(4, tiles.getResidentTileCount());
+    }
+
+    /**
+     * Test the tiles on the right and bottom edges only cover what is left of the canvas
+     */
+    @Test
+    public void testPartialEdgeTiles() {
+        int[][] image = blockImage(37, 20, 1);
+        TiledQuadTree tiles = new TiledQuadTree(37, 20, 16, 6,
+                sourceOf(image, 16, new AtomicInteger()));
+        assertEquals(3, tiles.getTileColumns());
+        assertEquals(2, tiles.getTileRows());
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 37; x++) {
+                assertEquals(image[y][x], tiles.getColor(x, y));
+            }
+        }
+        AtomicLong area = new AtomicLong();
+        tiles.forEachTile(0, 0, 3, 2, pool,
+            (column, row, tile) -> area.addAndGet((long) tile.getWidth() * tile.getHeight()));
+        assertEquals(37 * 20, area.get());
+    }
+
+    /**
+     * Test at most the given number of tiles stay resident and unchanged tiles are read
+     * again
+     */
+    @Test
+    public void testResidentTilesAreBounded() {
+        int[][] image = blockImage(64, 64, 2);
+        AtomicInteger reads = new AtomicInteger();
+        TiledQuadTree tiles = new TiledQuadTree(64, 64, 8, 3, sourceOf(image, 8, reads));
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                assertEquals(image[y][x], tiles.getColor(x, y));
+                assertTrue(tiles.getResidentTileCount() <= 3);
+            }
+        }
+        //every row of pixels goes through one row of tiles again
+        assertEquals(64 * 8, reads.get());
+    }
+
+    /**
+     * Test changed tiles keep their edits when they are dropped and used again
+     */
+    @Test
+    public void testEditsSurviveEviction() {
+        int[][] image = blockImage(40, 24, 3);
+        AtomicInteger reads = new AtomicInteger();
+        TiledQuadTree tiles = new TiledQuadTree(40, 24, 8, 2, sourceOf(image, 8, reads));
+        int[][] expected = new int[24][];
+        for (int y = 0; y < 24; y++) {
+            expected[y] = image[y].clone();
+        }
+        Random random = new Random(4);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(40);
+            int y = random.nextInt(24);
+            int c = random.nextInt(4);
+            tiles.setColor(x, y, c);
+            expected[y][x] = c;
+        }
+        for (int y = 0; y < 24; y++) {
+            for (int x = 0; x < 40; x++) {
+                assertEquals(expected[y][x], tiles.getColor(x, y));
+            }
+        }
+        //changed tiles are decoded rather than read again
+        assertEquals(15, reads.get());
+    }
+
+    @Test
+    public void testForEachTileInParallel() {
+        int[][] image = blockImage(100, 70, 5);
+        AtomicInteger reads = new AtomicInteger();
+        TiledQuadTree tiles = new TiledQuadTree(100, 70, 16, 4, sourceOf(image, 16, reads));
+        AtomicLong ones = new AtomicLong();
+        AtomicInteger visits = new AtomicInteger();
+        tiles.forEachTile(0, 0, tiles.getTileColumns(), tiles.getTileRows(), pool,
+            (column, row, tile) -> {
+                visits.incrementAndGet();
+                ones.addAndGet(tile.countColor(0, 0, tile.getWidth(), tile.getHeight(), 1));
+            });
+        long expected = 0;
+        for (int[] line : image) {
+            for (int color : line) {
+                expected += color == 1 ? 1 : 0;
+            }
+        }
+        assertEquals(7 * 5, visits.get());
+        assertEquals(7 * 5, reads.get());
+        assertEquals(expected, ones.get());
+        assertTrue(tiles.getResidentTileCount() <= 4);
+    }
+
+    @Test
+    public void testUpdateTilesKeepsEdits() {
+        int[][] image = blockImage(64, 48, 6);
+        TiledQuadTree tiles = new TiledQuadTree(64, 48, 16, 2,
+                sourceOf(image, 16, new AtomicInteger()));
+        tiles.updateTiles(1, 1, 3, 2, pool, (column, row, tile) -> tile.fill((int) column));
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) {
+                int expected = x >= 16 && y >= 16 ? x / 16 : image[y][x];
+                assertEquals(expected, tiles.getColor(x, y));
+            }
+        }
+    }
+
+    /**
+     * Test coordinates beyond the range of an int
+     */
+    @Test
+    public void testLongCoordinates() {
+        long side = 1L << 36;
+        TiledQuadTree tiles = new TiledQuadTree(side, side, 1 << 8, 4,
+            (column, row, width, height) -> {
+                int[][] tile = new int[height][width];
+                tile[0][0] = (int) (column ^ row);
+                return tile;
+            });
+        long x = side - (1 << 8);
+        long y = 3L << 32;
+        assertEquals((int) ((x >>> 8) ^ (y >>> 8)), tiles.getColor(x, y));
+        assertEquals(0, tiles.getColor(side - 1, side - 1));
+        tiles.setColor(side - 1, side - 1, 9);
+        assertEquals(9, tiles.getColor(side - 1, side - 1));
+    }
+
+    /**
+     * Test a tile read from the source while another thread changes and drops the same
+     * tile does not replace the changes
+     */
+    @Test
+    public void testEditsSurviveConcurrentRead() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        TiledQuadTree.TileSource image = sourceOf(arrayMultiQuadrants, 2, new AtomicInteger());
+        TiledQuadTree tiles = new TiledQuadTree(4, 4, 2, 1, (column, row, width, height) -> {
+            if (column == 0 && row == 0 && reads.getAndIncrement() == 0) {
+                //the first read of the top left tile stalls until the edits are dropped
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return image.read(column, row, width, height);
+        });
+        int[] color = new int[1];
+        Thread reader = new Thread(() -> color[0] = tiles.getColor(0, 0));
+        reader.start();
+        reading.await();
+        tiles.setColor(0, 0, 9);
+        //only one tile stays resident, so this drops the changed top left tile
+        assertEquals(2, tiles.getColor(2, 0));
+        release.countDown();
+        reader.join();
+        assertEquals(9, color[0]);
+        assertEquals(9, tiles.getColor(0, 0));
+        assertEquals(1, tiles.getColor(1, 1));
+    }
+
+    /**
+     * Test changed tiles keep their edits while threads drop and use them again at the
+     * same time, each thread changing tiles of its own
+     */
+    @Test
+    public void testEditsSurviveConcurrentEviction() throws Exception {
+        int[][] image = blockImage(64, 64, 7);
+        TiledQuadTree tiles = new TiledQuadTree(64, 64, 8, 2,
+                sourceOf(image, 8, new AtomicInteger()));
+        int[][] expected = new int[64][];
+        for (int y = 0; y < 64; y++) {
+            expected[y] = image[y].clone();
+        }
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int column = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(column);
+                for (int i = 0; i < 5000; i++) {
+                    //the tiles in every fourth column belong to this thread
+                    int x = (column + 4 * random.nextInt(2)) * 8 + random.nextInt(8);
+                    int y = random.nextInt(64);
+                    int c = random.nextInt(4);
+                    tiles.setColor(x, y, c);
+                    expected[y][x] = c;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                assertEquals(expected[y][x], tiles.getColor(x, y));
+            }
+        }
+    }
+
+    @Test (expected = UncheckedIOException.class)
+    public void testSourceFailure() {
+        new TiledQuadTree(4, 4, 2, 1, (column, row, width, height) -> {
+            throw new IOException("unreadable");
+        }).getColor(0, 0);
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void testSourceReturnsWrongSize() {
+        new TiledQuadTree(4, 4, 2, 1, (column, row, width, height) -> new int[1][1])
+                .getColor(0, 0);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testGetColorOutOfBounds() {
+        new TiledQuadTree(4, 4, 2, 1, sourceOf(arrayMultiQuadrants, 2, new AtomicInteger()))
+                .getColor(4, 0);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testTileDimensionNotPowerOfTwo() {
+        new TiledQuadTree(4, 4, 3, 1, sourceOf(arrayMultiQuadrants, 2, new AtomicInteger()));
+    }
+
+    /**
+     * Test grids with more tiles than a long can number are rejected
+     */
+    @Test
+    public void testTooManyTiles() {
+        TiledQuadTree.TileSource source = sourceOf(arrayMultiQuadrants, 2, new AtomicInteger());
+        try {
+            new TiledQuadTree(1L << 40, 1L << 40, 1, 1, source);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new TiledQuadTree(Long.MAX_VALUE, Long.MAX_VALUE, 1 << 30, 1, source);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new TiledQuadTree(1L << 31, 1L << 32, 1, 1, source);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        //the largest grids that still fit
+        TiledQuadTree tiles = new TiledQuadTree(1L << 31, (1L << 32) - 1, 1, 1, source);
+        assertEquals((1L << 31) * ((1L << 32) - 1), tiles.getTileColumns() * tiles.getTileRows());
+        tiles = new TiledQuadTree(Long.MAX_VALUE, 1, 1 << 30, 1, source);
+        assertEquals((Long.MAX_VALUE >>> 30) + 1, tiles.getTileColumns());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testForEachTileOutsideGrid() {
+        new TiledQuadTree(4, 4, 2, 1, sourceOf(arrayMultiQuadrants, 2, new AtomicInteger()))
+                .forEachTile(1, 0, 2, 1, pool, (column, row, tile) -> { });
+    }
+}